@@ -735,6 +735,9 @@ async function pollCompressionProgress() {
             if (remainingTime) {
                 if (isCompleted || hasResult || finalProgress >= 100) {
                     remainingTime.textContent = 'Complete!';
+                } else if (statusLower === 'queued' && status.queuePosition > 0) {
+                    // Waiting for a free compression slot on the server
+                    remainingTime.textContent = 'Queued (position ' + status.queuePosition + ')';
                 } else {
                     // Always show "Compressing..." during compression
                     remainingTime.textContent = 'Compressing...';
@@ -0,0 +1,163 @@
+package com.ismafilecompressor.service.compressor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD bodies of the PixelKernels loops, built only with the vector profile
+ * (src/main/java-vector). PixelKernels instantiates it by name once it has
+ * seen the incubator module in the boot layer.
+ */
+final class VectorPixelKernels implements SimdKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = INTS.length();
+    // One byte per int lane for widening gray samples; 64 bits is the smallest
+    // byte shape, so with 128-bit ints (NEON, SSE) only its low half is used
+    private static final VectorSpecies<Byte> BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, LANES * Byte.SIZE)));
+    // An SSIM tile row is 8 floats; wider shapes would straddle tiles
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED.length() >= 8
+            ? FloatVector.SPECIES_256 : FloatVector.SPECIES_128;
+    // Gather maps for the even and odd pixels of a row pair
+    private static final int[] EVEN = new int[LANES];
+    private static final int[] ODD = new int[LANES];
+
+    static {
+        for (int i = 0; i < LANES; i++) {
+            EVEN[i] = 2 * i;
+            ODD[i] = 2 * i + 1;
+        }
+    }
+
+    VectorPixelKernels() {
+    }
+
+    /**
+     * Below four lanes the scalar loops are as fast.
+     */
+    @Override
+    public boolean isUsable() {
+        return LANES >= 4;
+    }
+
+    @Override
+    public String describe() {
+        return "vector " + INTS.vectorBitSize() + "-bit, " + LANES + " lanes";
+    }
+
+    @Override
+    public int flattenOnWhite(int[] src, int[] dst, int length) {
+        int bound = INTS.loopBound(length);
+        for (int i = 0; i < bound; i += LANES) {
+            IntVector p = IntVector.fromArray(INTS, src, i);
+            IntVector a = p.lanewise(VectorOperators.LSHR, 24);
+            IntVector white = a.neg().add(255).mul(255);
+            IntVector r = div255(channel(p, 16).mul(a).add(white));
+            IntVector g = div255(channel(p, 8).mul(a).add(white));
+            IntVector b = div255(channel(p, 0).mul(a).add(white));
+            r.lanewise(VectorOperators.LSHL, 16)
+                    .or(g.lanewise(VectorOperators.LSHL, 8))
+                    .or(b)
+                    .or(0xFF000000)
+                    .intoArray(dst, i);
+        }
+        return bound;
+    }
+
+    @Override
+    public int swapRedBlue(int[] src, int[] dst, int length) {
+        int bound = INTS.loopBound(length);
+        for (int i = 0; i < bound; i += LANES) {
+            IntVector p = IntVector.fromArray(INTS, src, i);
+            channel(p, 0).lanewise(VectorOperators.LSHL, 16)
+                    .or(p.and(0xFF00))
+                    .or(channel(p, 16))
+                    .or(0xFF000000)
+                    .intoArray(dst, i);
+        }
+        return bound;
+    }
+
+    @Override
+    public int grayToRgb(byte[] src, int[] dst, int length) {
+        // Each load reads BYTES.length() samples, which may be more than LANES
+        int bound = INTS.loopBound(Math.max(0, length - (BYTES.length() - LANES)));
+        for (int i = 0; i < bound; i += LANES) {
+            IntVector v = ((IntVector) ByteVector.fromArray(BYTES, src, i)
+                    .convertShape(VectorOperators.B2I, INTS, 0)).and(0xFF);
+            v.lanewise(VectorOperators.LSHL, 16)
+                    .or(v.lanewise(VectorOperators.LSHL, 8))
+                    .or(v)
+                    .or(0xFF000000)
+                    .intoArray(dst, i);
+        }
+        return bound;
+    }
+
+    @Override
+    public int halveRow(int[] src, int row0, int row1, int[] dst, int out, int halfWidth) {
+        int bound = INTS.loopBound(halfWidth);
+        for (int x = 0; x < bound; x += LANES) {
+            IntVector p0 = IntVector.fromArray(INTS, src, row0 + 2 * x, EVEN, 0);
+            IntVector p1 = IntVector.fromArray(INTS, src, row0 + 2 * x, ODD, 0);
+            IntVector p2 = IntVector.fromArray(INTS, src, row1 + 2 * x, EVEN, 0);
+            IntVector p3 = IntVector.fromArray(INTS, src, row1 + 2 * x, ODD, 0);
+            IntVector result = IntVector.zero(INTS);
+            for (int shift = 0; shift < 32; shift += 8) {
+                IntVector sum = channel(p0, shift).add(channel(p1, shift))
+                        .add(channel(p2, shift)).add(channel(p3, shift));
+                result = result.or(sum.add(2).lanewise(VectorOperators.LSHR, 2)
+                        .lanewise(VectorOperators.LSHL, shift));
+            }
+            result.intoArray(dst, out + x);
+        }
+        return bound;
+    }
+
+    @Override
+    public void blockMoments(float[] a, float[] b, int offset, int stride, int size, float[] sums) {
+        FloatVector sa = FloatVector.zero(FLOATS);
+        FloatVector sb = sa, saa = sa, sbb = sa, sab = sa;
+        int bound = FLOATS.loopBound(size);
+        float ta = 0, tb = 0, taa = 0, tbb = 0, tab = 0;
+        for (int y = 0; y < size; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < bound; x += FLOATS.length()) {
+                FloatVector va = FloatVector.fromArray(FLOATS, a, row + x);
+                FloatVector vb = FloatVector.fromArray(FLOATS, b, row + x);
+                sa = sa.add(va);
+                sb = sb.add(vb);
+                saa = va.fma(va, saa);
+                sbb = vb.fma(vb, sbb);
+                sab = va.fma(vb, sab);
+            }
+            for (int x = bound; x < size; x++) {
+                float va = a[row + x];
+                float vb = b[row + x];
+                ta += va;
+                tb += vb;
+                taa += va * va;
+                tbb += vb * vb;
+                tab += va * vb;
+            }
+        }
+        sums[0] = sa.reduceLanes(VectorOperators.ADD) + ta;
+        sums[1] = sb.reduceLanes(VectorOperators.ADD) + tb;
+        sums[2] = saa.reduceLanes(VectorOperators.ADD) + taa;
+        sums[3] = sbb.reduceLanes(VectorOperators.ADD) + tbb;
+        sums[4] = sab.reduceLanes(VectorOperators.ADD) + tab;
+    }
+
+    private static IntVector channel(IntVector p, int shift) {
+        return p.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+    }
+
+    private static IntVector div255(IntVector x) {
+        IntVector y = x.add(128);
+        return y.add(y.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+}
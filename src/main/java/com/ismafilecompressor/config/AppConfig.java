@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.file.Paths;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
 public class AppConfig {
     private static final String CONFIG_FILE = "config.properties";
@@ -207,16 +209,40 @@ public class AppConfig {
         props.setProperty("web.port", "8080");
         props.setProperty("web.enabled", "true");
         props.setProperty("web.maxFileSize", "104857600"); // 100MB
+        props.setProperty("web.maxConcurrentJobs", "4");
+        props.setProperty("web.queueDepth", "32");
+        props.setProperty("web.maxJobsPerClient", "2");
+        props.setProperty("web.trustedProxies", "");
+        props.setProperty("web.adminToken", "");
 
         // Compression
         props.setProperty("compression.defaultQuality", "75");
         props.setProperty("compression.defaultLevel", "balanced");
         props.setProperty("compression.threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        props.setProperty("compression.processThreads", String.valueOf(getDefaultProcessThreads()));
+        props.setProperty("compression.ioThreads", "4");
+        props.setProperty("compression.processCpuBudget", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        props.setProperty("compression.virtualThreads", "true");
+        props.setProperty("compression.processInFlight", "64");
+        props.setProperty("compression.jpegRestartInterval", "0");
+        props.setProperty("compression.raceBudgetMs", "20000");
+        props.setProperty("compression.decodeBudgetMB", "0");
+        props.setProperty("compression.decodeBudgetFraction", "0.5");
+        props.setProperty("compression.vectorKernels", "true");
+        props.setProperty("compression.pdfLargeDocumentMB", "256");
+        props.setProperty("compression.pdfHeapMB", "64");
+        props.setProperty("compression.pdfWindowPages", "16");
+        props.setProperty("compression.pdfSplitMB", "32");
 
         // Output - Use OS-aware path
         props.setProperty("output.defaultFolder", getDefaultOutputFolder());
         props.setProperty("output.keepOriginals", "true");
 
+        // Result cache
+        props.setProperty("cache.enabled", "true");
+        props.setProperty("cache.folder", getDefaultCacheFolder());
+        props.setProperty("cache.maxSizeMB", "512");
+
         // UI
         props.setProperty("ui.theme", "dark");
         props.setProperty("ui.animationSpeed", "normal");
@@ -246,6 +272,34 @@ public class AppConfig {
         return Long.parseLong(props.getProperty("web.maxFileSize", "104857600"));
     }
 
+    public static int getMaxConcurrentJobs() {
+        return Integer.parseInt(props.getProperty("web.maxConcurrentJobs", "4"));
+    }
+
+    public static int getJobQueueDepth() {
+        return Integer.parseInt(props.getProperty("web.queueDepth", "32"));
+    }
+
+    public static int getMaxJobsPerClient() {
+        return Integer.parseInt(props.getProperty("web.maxJobsPerClient", "2"));
+    }
+
+    // Addresses of reverse proxies whose X-Forwarded-For header is believed; empty trusts none
+    public static Set<String> getTrustedProxies() {
+        Set<String> proxies = new HashSet<>();
+        for (String proxy : props.getProperty("web.trustedProxies", "").split(",")) {
+            if (!proxy.isBlank()) {
+                proxies.add(proxy.trim());
+            }
+        }
+        return proxies;
+    }
+
+    // Token that lets remote clients call admin endpoints; empty allows only localhost
+    public static String getAdminToken() {
+        return props.getProperty("web.adminToken", "").trim();
+    }
+
     public static int getDefaultQuality() {
         return Integer.parseInt(props.getProperty("compression.defaultQuality", "75"));
     }
@@ -259,6 +313,79 @@ public class AppConfig {
                 String.valueOf(Runtime.getRuntime().availableProcessors())));
     }
 
+    // External tools are multithreaded themselves, so only a few run side by side
+    public static int getProcessThreadCount() {
+        return Integer.parseInt(props.getProperty("compression.processThreads",
+                String.valueOf(getDefaultProcessThreads())));
+    }
+
+    public static int getIoThreadCount() {
+        return Integer.parseInt(props.getProperty("compression.ioThreads", "4"));
+    }
+
+    // Cores shared by all running external tools
+    public static int getProcessCpuBudget() {
+        return Integer.parseInt(props.getProperty("compression.processCpuBudget",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    // Run external-tool jobs on virtual threads, limited by the CPU budget instead of lane width
+    public static boolean isVirtualThreadsEnabled() {
+        return Boolean.parseBoolean(props.getProperty("compression.virtualThreads", "true"));
+    }
+
+    public static int getProcessInFlight() {
+        return Integer.parseInt(props.getProperty("compression.processInFlight", "64"));
+    }
+
+    // MCUs between JPEG restart markers in Java-encoded files; 0 disables them
+    public static int getJpegRestartInterval() {
+        return Integer.parseInt(props.getProperty("compression.jpegRestartInterval", "0"));
+    }
+
+    // Wall-clock time an encoder race may take per file before slower encoders are killed
+    public static long getEncoderRaceBudgetMs() {
+        return Long.parseLong(props.getProperty("compression.raceBudgetMs", "20000"));
+    }
+
+    // Heap reserved for decoded image pixels across all running compressions; 0 = derive from -Xmx
+    public static long getDecodeBudgetMb() {
+        return Long.parseLong(props.getProperty("compression.decodeBudgetMB", "0"));
+    }
+
+    public static double getDecodeBudgetFraction() {
+        return Double.parseDouble(props.getProperty("compression.decodeBudgetFraction", "0.5"));
+    }
+
+    // SIMD pixel kernels; only used by -Pvector builds running with --add-modules jdk.incubator.vector
+    public static boolean isVectorKernelsEnabled() {
+        return Boolean.parseBoolean(props.getProperty("compression.vectorKernels", "true"));
+    }
+
+    // PDFs from this size on are loaded with a capped heap and scratch-file spillover
+    public static long getPdfLargeDocumentMb() {
+        return Long.parseLong(props.getProperty("compression.pdfLargeDocumentMB", "256"));
+    }
+
+    // Heap PDFBox may use per document in large-document mode
+    public static long getPdfHeapMb() {
+        return Long.parseLong(props.getProperty("compression.pdfHeapMB", "64"));
+    }
+
+    // Rendered pages that may wait, encoded, ahead of the page being written out
+    public static int getPdfWindowPages() {
+        return Integer.parseInt(props.getProperty("compression.pdfWindowPages", "16"));
+    }
+
+    // PDFs from this size on are written by parallel gs processes over page ranges; 0 disables
+    public static long getPdfSplitMb() {
+        return Long.parseLong(props.getProperty("compression.pdfSplitMB", "32"));
+    }
+
+    private static int getDefaultProcessThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    }
+
     public static String getOutputFolder() {
         String configuredFolder = props.getProperty("output.defaultFolder");
         String finalPath;
@@ -320,6 +447,24 @@ public class AppConfig {
         return Boolean.parseBoolean(props.getProperty("output.keepOriginals", "true"));
     }
 
+    public static boolean isResultCacheEnabled() {
+        return Boolean.parseBoolean(props.getProperty("cache.enabled", "true"));
+    }
+
+    public static String getCacheFolder() {
+        String folder = props.getProperty("cache.folder");
+        return folder == null || folder.trim().isEmpty() ? getDefaultCacheFolder() : folder;
+    }
+
+    public static long getCacheMaxBytes() {
+        return Long.parseLong(props.getProperty("cache.maxSizeMB", "512")) * 1024 * 1024;
+    }
+
+    // Kept outside the output folder so the cleanup service never deletes cache entries
+    private static String getDefaultCacheFolder() {
+        return Paths.get(System.getProperty("java.io.tmpdir", "/tmp"), "isma-result-cache").toString();
+    }
+
     public static String getTheme() {
         return props.getProperty("ui.theme", "dark");
     }
@@ -46,6 +46,10 @@ public class CompressionOptions {
     private int maxHeight = 1080;
     private boolean keepOriginals = true;
     private String outputFormat = "auto"; // auto, jpeg, webp, png
+    private boolean losslessJpeg = false; // JPEG -> JPEG without touching the pixels
+    private boolean raceEncoders = false; // run all image encoders at once, keep the smallest
+    private long targetSizeBytes = 0; // largest acceptable output per file, 0 = no target
+    private double minSsim = 0; // lowest acceptable MS-SSIM against the source, 0 = fixed quality
 
     // Getters and Setters
     public CompressionLevel getCompressionLevel() { return compressionLevel; }
@@ -80,6 +84,18 @@ public class CompressionOptions {
     public String getOutputFormat() { return outputFormat; }
     public void setOutputFormat(String outputFormat) { this.outputFormat = outputFormat; }
 
+    public boolean isLosslessJpeg() { return losslessJpeg; }
+    public void setLosslessJpeg(boolean losslessJpeg) { this.losslessJpeg = losslessJpeg; }
+
+    public boolean isRaceEncoders() { return raceEncoders; }
+    public void setRaceEncoders(boolean raceEncoders) { this.raceEncoders = raceEncoders; }
+
+    public long getTargetSizeBytes() { return targetSizeBytes; }
+    public void setTargetSizeBytes(long targetSizeBytes) { this.targetSizeBytes = Math.max(0, targetSizeBytes); }
+
+    public double getMinSsim() { return minSsim; }
+    public void setMinSsim(double minSsim) { this.minSsim = Math.max(0, Math.min(1, minSsim)); }
+
     // Helper methods
     public float getQualityFactor() {
         return compressionLevel.getQuality() / 100.0f;
@@ -101,6 +117,28 @@ public class CompressionOptions {
         return compressionLevel.isRemoveMetadata();
     }
 
+    /**
+     * Canonical description of every option that influences the compressed bytes.
+     * Used as part of the result cache key, so any new option that changes the
+     * output must be appended here. Output location and bookkeeping flags are
+     * deliberately left out.
+     */
+    public String getFingerprint() {
+        return "level=" + compressionLevel.name() +
+                ";quality=" + compressionLevel.getQuality() +
+                ";aggressive=" + compressionLevel.isAggressive() +
+                ";stripMeta=" + compressionLevel.isRemoveMetadata() +
+                ";dpi=" + compressionLevel.getDpi() +
+                ";png2jpg=" + convertPngToJpeg +
+                ";tiff2jpg=" + convertTiffToJpeg +
+                ";resize=" + (resizeImages ? maxWidth + "x" + maxHeight : "off") +
+                ";format=" + (outputFormat == null ? "auto" : outputFormat.toLowerCase()) +
+                ";losslessJpeg=" + losslessJpeg +
+                ";race=" + raceEncoders +
+                ";target=" + targetSizeBytes +
+                ";minSsim=" + minSsim;
+    }
+
     @Override
     public String toString() {
         return String.format("CompressionOptions{level=%s, quality=%d%%, format=%s}",
@@ -15,6 +15,7 @@ public class FileInfo {
     private String mimeType;
     private String compressionLevel = "Balanced";
     private String errorMessage;
+    private boolean cacheHit;
 
     public FileInfo() {
         this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
@@ -55,6 +56,9 @@ public class FileInfo {
     public String getErrorMessage() { return errorMessage; }
     public void setErrorMessage(String errorMessage) { this.errorMessage = errorMessage; }
 
+    public boolean isCacheHit() { return cacheHit; }
+    public void setCacheHit(boolean cacheHit) { this.cacheHit = cacheHit; }
+
     // Calculated properties
     public double getCompressionRatio() {
         if (originalSize == 0) return 0;
@@ -0,0 +1,151 @@
+package com.ismafilecompressor.service;
+
+import com.ismafilecompressor.model.CompressionResult;
+import com.ismafilecompressor.model.FileInfo;
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle for one batch submitted to {@link CompressionService}.
+ * Each job owns its listeners, cancellation flag, progress counters and
+ * completion future, so concurrent sessions never see each other's events.
+ */
+public class CompressionJob {
+    private final String id;
+    private final int totalFiles;
+    private final long createdAt;
+    private final List<CompressionService.CompressionListener> listeners;
+    private final CompletableFuture<CompressionResult> completion;
+    private final AtomicInteger processedCount;
+    private final AtomicInteger failedCount;
+    private final Set<Thread> workers;
+    private volatile boolean cancelled = false;
+
+    CompressionJob(int totalFiles) {
+        this.id = UUID.randomUUID().toString();
+        this.totalFiles = totalFiles;
+        this.createdAt = System.currentTimeMillis();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.completion = new CompletableFuture<>();
+        this.processedCount = new AtomicInteger(0);
+        this.failedCount = new AtomicInteger(0);
+        this.workers = new HashSet<>();
+    }
+
+    public String getId() { return id; }
+    public int getTotalFiles() { return totalFiles; }
+    public long getCreatedAt() { return createdAt; }
+    public int getProcessedCount() { return processedCount.get(); }
+    public int getFailedCount() { return failedCount.get(); }
+    public boolean isCancelled() { return cancelled; }
+    public boolean isDone() { return completion.isDone(); }
+
+    public void addListener(CompressionService.CompressionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CompressionService.CompressionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Cancel this job only. Files that have not started are reported as
+     * cancelled; files in progress are interrupted.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (workers) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    public CompletableFuture<CompressionResult> getCompletionFuture() {
+        return completion;
+    }
+
+    /**
+     * Block until every file of the job has been processed.
+     */
+    public CompressionResult await() throws InterruptedException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Compression job failed", e.getCause());
+        }
+    }
+
+    public CompressionResult await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        try {
+            return completion.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Compression job failed", e.getCause());
+        }
+    }
+
+    // Called by CompressionService worker threads
+
+    void enterWorker() {
+        synchronized (workers) {
+            workers.add(Thread.currentThread());
+        }
+    }
+
+    void exitWorker() {
+        synchronized (workers) {
+            workers.remove(Thread.currentThread());
+            // Swallow an interrupt aimed at this job so it cannot leak into the next task
+            Thread.interrupted();
+        }
+    }
+
+    int markProcessed(FileInfo fileInfo) {
+        if (!"Completed".equals(fileInfo.getStatus())) {
+            failedCount.incrementAndGet();
+        }
+        return processedCount.incrementAndGet();
+    }
+
+    void notifyProgress(FileInfo fileInfo, int processed) {
+        for (CompressionService.CompressionListener listener : listeners) {
+            try {
+                listener.onProgress(fileInfo, totalFiles, processed);
+            } catch (RuntimeException e) {
+                listenerFailed("onProgress", e);
+            }
+        }
+    }
+
+    void notifyError(FileInfo fileInfo, Exception e) {
+        for (CompressionService.CompressionListener listener : listeners) {
+            try {
+                listener.onError(fileInfo, e);
+            } catch (RuntimeException listenerError) {
+                listenerFailed("onError", listenerError);
+            }
+        }
+    }
+
+    /**
+     * The future completes before listeners run, so a listener that throws
+     * cannot leave await() callers waiting forever.
+     */
+    void complete(CompressionResult result) {
+        completion.complete(result);
+        for (CompressionService.CompressionListener listener : listeners) {
+            try {
+                listener.onComplete(result);
+            } catch (RuntimeException e) {
+                listenerFailed("onComplete", e);
+            }
+        }
+    }
+
+    private void listenerFailed(String event, RuntimeException e) {
+        LoggerUtil.logWarning("Compression job " + id + ": listener " + event + " failed: " + e.getMessage());
+    }
+}
@@ -0,0 +1,266 @@
+package com.ismafilecompressor.service;
+
+import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.service.compressor.CodecPool;
+import com.ismafilecompressor.service.compressor.PdfImageCache;
+import com.ismafilecompressor.util.CpuSlots;
+import com.ismafilecompressor.util.DecodeMemoryBudget;
+import com.ismafilecompressor.util.FileManager;
+import com.ismafilecompressor.util.FormatDetector;
+import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Runs compression tasks on separate lanes for Java encoding (CPU), external
+ * tools (PROCESS) and plain copies (IO). Within a lane, tasks are ordered by
+ * submit time plus estimated cost, so short files overtake long ones but a long
+ * file still starts once it has waited about as long as it is expected to run.
+ */
+public class CompressionScheduler {
+    public enum Lane { CPU, PROCESS, IO }
+
+    // Fixed overhead per file (detection, output file creation, logging)
+    private static final long BASE_COST_MS = 50;
+    // Weight of a new observation in the per-category cost average
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final Map<Lane, ThreadPoolExecutor> lanes;
+    private final Map<String, Double> msPerMegabyte;
+    private final AtomicLong sequence;
+    private final Map<Lane, AtomicLong> completedTasks;
+    // Format detection reads the file head, so it runs here rather than on the submitting thread
+    private final ExecutorService detector;
+
+    public CompressionScheduler(int cpuThreads, int processThreads, int ioThreads, boolean virtualProcessLane) {
+        this.lanes = new EnumMap<>(Lane.class);
+        this.lanes.put(Lane.CPU, createLane("cpu", cpuThreads, false));
+        this.lanes.put(Lane.PROCESS, createLane("process", processThreads, virtualProcessLane));
+        this.lanes.put(Lane.IO, createLane("io", ioThreads, false));
+        this.msPerMegabyte = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+        this.completedTasks = new EnumMap<>(Lane.class);
+        this.detector = Executors.newVirtualThreadPerTaskExecutor();
+        for (Lane lane : Lane.values()) {
+            completedTasks.put(lane, new AtomicLong());
+        }
+
+        LoggerUtil.logInfo(String.format("Compression scheduler: %d CPU, %d %s process, %d IO threads",
+                cpuThreads, processThreads, virtualProcessLane ? "virtual" : "platform", ioThreads));
+    }
+
+    public static CompressionScheduler fromConfig() {
+        if (AppConfig.isVirtualThreadsEnabled()) {
+            // Waiting on a process is nearly free on a virtual thread, so keep many jobs
+            // in flight and let the ProcessRunner CPU budget decide how many tools run
+            return new CompressionScheduler(AppConfig.getThreadCount(), AppConfig.getProcessInFlight(),
+                    AppConfig.getIoThreadCount(), true);
+        }
+        return new CompressionScheduler(AppConfig.getThreadCount(),
+                AppConfig.getProcessThreadCount(), AppConfig.getIoThreadCount(), false);
+    }
+
+    /**
+     * Threads each multithreaded external tool (ffmpeg, 7z, zstd) may use, so
+     * that a full PROCESS lane does not oversubscribe the machine's cores.
+     */
+    public static int getToolThreadBudget() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, cores / Math.max(1, AppConfig.getProcessThreadCount()));
+    }
+
+    /**
+     * PDFs go to the PROCESS lane when gs is installed; the PDFBox fallback
+     * inside that lane takes a {@link CpuSlots} slot before it runs.
+     */
+    public Lane selectLane(FormatDetector.FileFormat format) {
+        switch (format.getCategory()) {
+            case "VIDEO":
+            case "AUDIO":
+                // Without ffmpeg these are plain copies
+                return ToolRegistry.isAvailable(ToolRegistry.FFMPEG) ? Lane.PROCESS : Lane.IO;
+            case "PDF":
+                return ToolRegistry.isAvailable(ToolRegistry.GHOSTSCRIPT) ? Lane.PROCESS : Lane.CPU;
+            case "ARCHIVE":
+                return ToolRegistry.isAvailable(ToolRegistry.SEVEN_ZIP)
+                        || ToolRegistry.isAvailable(ToolRegistry.ZSTD) ? Lane.PROCESS : Lane.CPU;
+            case "IMAGE":
+            case "DOCUMENT":
+                return Lane.CPU;
+            default:
+                return Lane.IO;
+        }
+    }
+
+    /**
+     * Rough wall-clock estimate for one file, refined by observed run times.
+     */
+    public long estimateCostMs(FormatDetector.FileFormat format) {
+        double megabytes = format.getSize() / (1024.0 * 1024.0);
+        double rate = msPerMegabyte.getOrDefault(format.getCategory(), defaultMsPerMegabyte(format.getCategory()));
+        return BASE_COST_MS + (long) (megabytes * rate);
+    }
+
+    /**
+     * Detect the file's format off the caller's thread, then queue the task
+     * the factory builds for it on the lane for that format.
+     */
+    public void submit(File file, Function<FormatDetector.FileFormat, Runnable> taskFactory) {
+        detector.execute(() -> {
+            FormatDetector.FileFormat format;
+            try {
+                format = FormatDetector.detect(file);
+            } catch (RuntimeException e) {
+                // Still run the task, so the job sees the file and can report it
+                format = new FormatDetector.FileFormat(file.getName(),
+                        FileManager.getFileExtension(file.getName()), "application/octet-stream", "UNKNOWN",
+                        file.length());
+            }
+            submit(format, taskFactory.apply(format));
+        });
+    }
+
+    public void submit(FormatDetector.FileFormat format, Runnable task) {
+        Lane lane = selectLane(format);
+        long estimate = estimateCostMs(format);
+        lanes.get(lane).execute(new ScheduledTask(this, lane, format, estimate, sequence.incrementAndGet(), task));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<Lane, ThreadPoolExecutor> entry : lanes.entrySet()) {
+            ThreadPoolExecutor executor = entry.getValue();
+            Map<String, Object> laneStats = new LinkedHashMap<>();
+            laneStats.put("threads", executor.getMaximumPoolSize());
+            laneStats.put("active", executor.getActiveCount());
+            laneStats.put("queued", executor.getQueue().size());
+            laneStats.put("completed", completedTasks.get(entry.getKey()).get());
+            stats.put(entry.getKey().name().toLowerCase(), laneStats);
+        }
+        Map<String, Object> rates = new TreeMap<>();
+        for (Map.Entry<String, Double> rate : msPerMegabyte.entrySet()) {
+            rates.put(rate.getKey(), Math.round(rate.getValue()));
+        }
+        stats.put("msPerMegabyte", rates);
+        stats.put("externalProcesses", ProcessRunner.getStats());
+        stats.put("decodeMemory", DecodeMemoryBudget.getStats());
+        stats.put("cpuSlots", CpuSlots.getStats());
+        stats.put("codecPool", CodecPool.getStats());
+        stats.put("pdfImages", PdfImageCache.getStats());
+        return stats;
+    }
+
+    public void shutdown() {
+        detector.shutdown();
+        for (ThreadPoolExecutor executor : lanes.values()) {
+            executor.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor executor : lanes.values()) {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor executor : lanes.values()) {
+                executor.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordCompletion(Lane lane, FormatDetector.FileFormat format, long elapsedMs) {
+        completedTasks.get(lane).incrementAndGet();
+        double megabytes = format.getSize() / (1024.0 * 1024.0);
+        // Tiny files are dominated by fixed overhead and would skew the rate
+        if (megabytes < 0.05) {
+            return;
+        }
+        double observed = Math.max(0, elapsedMs - BASE_COST_MS) / megabytes;
+        msPerMegabyte.merge(format.getCategory(), observed,
+                (previous, sample) -> previous + EWMA_ALPHA * (sample - previous));
+    }
+
+    private static double defaultMsPerMegabyte(String category) {
+        switch (category) {
+            case "VIDEO": return 4000;
+            case "PDF": return 600;
+            case "AUDIO": return 400;
+            case "ARCHIVE": return 300;
+            case "IMAGE": return 150;
+            case "DOCUMENT": return 80;
+            default: return 20;
+        }
+    }
+
+    private static ThreadPoolExecutor createLane(String name, int threads, boolean virtual) {
+        int size = Math.max(1, threads);
+        ThreadFactory factory;
+        if (virtual) {
+            factory = Thread.ofVirtual().name("compress-" + name + "-", 1).factory();
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            factory = runnable -> {
+                Thread thread = new Thread(runnable, "compress-" + name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+        // Unbounded priority queue: admission is limited by the callers, ordering by the tasks
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), factory);
+    }
+
+    private static final class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+        private final CompressionScheduler scheduler;
+        private final Lane lane;
+        private final FormatDetector.FileFormat format;
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        private ScheduledTask(CompressionScheduler scheduler, Lane lane, FormatDetector.FileFormat format,
+                              long estimateMs, long sequence, Runnable task) {
+            this.scheduler = scheduler;
+            this.lane = lane;
+            this.format = format;
+            this.deadline = System.currentTimeMillis() + estimateMs;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            CpuSlots.Slot slot = null;
+            try {
+                if (lane == Lane.CPU) {
+                    slot = CpuSlots.acquire();
+                }
+            } catch (InterruptedException e) {
+                // Cancelled while waiting; the task sees the interrupt and reports it
+                Thread.currentThread().interrupt();
+            }
+            try {
+                task.run();
+            } finally {
+                if (slot != null) {
+                    slot.close();
+                }
+                scheduler.recordCompletion(lane, format, System.currentTimeMillis() - start);
+            }
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byDeadline = Long.compare(deadline, other.deadline);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,29 +1,33 @@
 package com.ismafilecompressor.service;
 
+import com.ismafilecompressor.config.AppConfig;
 import com.ismafilecompressor.model.*;
 import com.ismafilecompressor.service.compressor.*;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.FormatDetector;
 import com.ismafilecompressor.util.LoggerUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class CompressionService {
     private final Map<String, FileCompressor> compressors;
-    private final ExecutorService executorService;
-    private final List<CompressionListener> listeners;
+    private final CompressionScheduler scheduler;
+    private final Map<String, CompressionJob> activeJobs;
+    private final ResultCache resultCache;
 
     public CompressionService() {
         this.compressors = new HashMap<>();
-        this.listeners = new ArrayList<>();
+        this.activeJobs = new ConcurrentHashMap<>();
+        // Probe external tools once up front instead of on every file
+        ToolRegistry.initialize();
         initializeCompressors();
-        this.executorService = Executors.newFixedThreadPool(
-                Runtime.getRuntime().availableProcessors()
-        );
+        this.resultCache = createResultCache();
+        this.scheduler = CompressionScheduler.fromConfig();
     }
 
     private void initializeCompressors() {
@@ -35,6 +39,18 @@ public class CompressionService {
         registerCompressor(new ArchiveCompressor());
     }
 
+    private ResultCache createResultCache() {
+        if (!AppConfig.isResultCacheEnabled()) {
+            return null;
+        }
+        try {
+            return new ResultCache(Paths.get(AppConfig.getCacheFolder()), AppConfig.getCacheMaxBytes());
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Result cache disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
     private void registerCompressor(FileCompressor compressor) {
         String[] formats = compressor.getSupportedFormats().split(",");
         for (String format : formats) {
@@ -42,56 +58,46 @@ public class CompressionService {
         }
     }
 
-    public void addListener(CompressionListener listener) {
-        listeners.add(listener);
+    public Future<CompressionResult> compressFilesAsync(List<File> files, CompressionOptions options) {
+        return compressFiles(files, options).getCompletionFuture();
     }
 
-    public void removeListener(CompressionListener listener) {
-        listeners.remove(listener);
+    public int getActiveJobCount() {
+        return activeJobs.size();
     }
 
-    private void notifyProgress(FileInfo fileInfo, int total, int processed) {
-        for (CompressionListener listener : listeners) {
-            listener.onProgress(fileInfo, total, processed);
+    public Map<String, Object> getCacheStats() {
+        if (resultCache == null) {
+            return Collections.singletonMap("enabled", false);
         }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", true);
+        stats.putAll(resultCache.getStats());
+        return stats;
     }
 
-    private void notifyComplete(CompressionResult result) {
-        for (CompressionListener listener : listeners) {
-            listener.onComplete(result);
-        }
+    public Map<String, Object> getSchedulerStats() {
+        return scheduler.getStats();
     }
 
-    private void notifyError(FileInfo fileInfo, Exception e) {
-        for (CompressionListener listener : listeners) {
-            listener.onError(fileInfo, e);
+    /**
+     * Start compressing a batch. Returns immediately with a handle carrying the
+     * job's own listeners, cancellation and completion future.
+     */
+    public CompressionJob compressFiles(List<File> files, CompressionOptions options,
+                                        CompressionListener... jobListeners) {
+        int totalFiles = files == null ? 0 : files.size();
+        CompressionJob job = new CompressionJob(totalFiles);
+        for (CompressionListener listener : jobListeners) {
+            job.addListener(listener);
         }
-    }
-
-    public Future<CompressionResult> compressFilesAsync(List<File> files, CompressionOptions options) {
-        return executorService.submit(() -> compressFiles(files, options));
-    }
-
-    private volatile boolean cancelled = false;
-
-    public void cancel() {
-        this.cancelled = true;
-    }
-
-    public CompressionResult compressFiles(List<File> files, CompressionOptions options) {
-        return compressFiles(files, options, null);
-    }
 
-    public CompressionResult compressFiles(List<File> files, CompressionOptions options, 
-                                           java.util.function.Supplier<Boolean> cancellationChecker) {
-        CompressionResult result = new CompressionResult();
-        result.setTimestamp(System.currentTimeMillis());
-        this.cancelled = false;
-
-        if (files == null || files.isEmpty()) {
+        if (totalFiles == 0) {
+            CompressionResult result = new CompressionResult();
             result.setSuccess(false);
             result.setMessage("No files to compress");
-            return result;
+            job.complete(result);
+            return job;
         }
 
         // Ensure output directory is set
@@ -99,101 +105,103 @@ public class CompressionService {
             options.setOutputDirectory(com.ismafilecompressor.config.AppConfig.getOutputFolder());
         }
 
-        List<Future<FileInfo>> futures = new ArrayList<>();
-        CountDownLatch latch = new CountDownLatch(files.size());
-        final int totalFiles = files.size();
-        final AtomicInteger processedCount = new AtomicInteger(0);
-
-        for (File file : files) {
-            if (cancelled || (cancellationChecker != null && cancellationChecker.get())) {
-                result.setSuccess(false);
-                result.setMessage("Compression was cancelled");
-                break;
-            }
-
-            Future<FileInfo> future = executorService.submit(() -> {
+        activeJobs.put(job.getId(), job);
+        final long startTime = System.currentTimeMillis();
+        final FileInfo[] fileInfos = new FileInfo[totalFiles];
+
+        for (int i = 0; i < totalFiles; i++) {
+            final int index = i;
+            final File file = files.get(i);
+            // The scheduler detects the format off this thread to pick a lane and estimate the cost
+            scheduler.submit(file, format -> () -> {
+                FileInfo fileInfo;
+                job.enterWorker();
                 try {
-                    if (cancelled || (cancellationChecker != null && cancellationChecker.get())) {
-                        throw new InterruptedException("Compression cancelled");
+                    if (job.isCancelled()) {
+                        fileInfo = cancelledFileInfo(file);
+                    } else {
+                        fileInfo = compressSingleFile(file, options, job, format);
+                        if (job.isCancelled() && !"Completed".equals(fileInfo.getStatus())) {
+                            fileInfo = cancelledFileInfo(file);
+                        }
                     }
+                } catch (Exception e) {
+                    fileInfo = new FileInfo(file.toPath());
+                    fileInfo.setStatus("Error");
+                    fileInfo.setErrorMessage(e.getMessage());
+                } finally {
+                    job.exitWorker();
+                }
 
-                    FileInfo fileInfo = compressSingleFile(file, options);
-                    int current = processedCount.incrementAndGet();
-                    
+                fileInfos[index] = fileInfo;
+                int processed = job.markProcessed(fileInfo);
+                try {
                     // Notify progress as each file completes
-                    notifyProgress(fileInfo, totalFiles, current);
-                    
-                    latch.countDown();
-                    return fileInfo;
-                } catch (Exception e) {
-                    if (cancelled || (cancellationChecker != null && cancellationChecker.get())) {
-                        FileInfo errorInfo = new FileInfo(file.toPath());
-                        errorInfo.setStatus("Cancelled");
-                        errorInfo.setErrorMessage("Compression was cancelled");
-                        notifyProgress(errorInfo, totalFiles, processedCount.incrementAndGet());
-                        latch.countDown();
-                        return errorInfo;
+                    job.notifyProgress(fileInfo, processed);
+                } finally {
+                    if (processed == totalFiles) {
+                        finishJob(job, fileInfos, startTime);
                     }
-                    int current = processedCount.incrementAndGet();
-                    FileInfo errorInfo = new FileInfo(file.toPath());
-                    errorInfo.setStatus("Error");
-                    errorInfo.setErrorMessage(e.getMessage());
-                    notifyProgress(errorInfo, totalFiles, current);
-                    latch.countDown();
-                    throw e;
                 }
             });
-            futures.add(future);
         }
 
-        try {
-            latch.await();
+        return job;
+    }
 
-            for (Future<FileInfo> future : futures) {
-                try {
-                    FileInfo fileInfo = future.get();
-                    result.addFile(fileInfo);
-                    result.setFilesProcessed(result.getFilesProcessed() + 1);
+    private FileInfo cancelledFileInfo(File file) {
+        FileInfo info = new FileInfo(file.toPath());
+        info.setStatus("Cancelled");
+        info.setErrorMessage("Compression was cancelled");
+        return info;
+    }
 
-                    if ("Completed".equals(fileInfo.getStatus())) {
-                        result.setTotalOriginalSize(result.getTotalOriginalSize() + fileInfo.getOriginalSize());
-                        result.setTotalCompressedSize(result.getTotalCompressedSize() + fileInfo.getCompressedSize());
-                    } else {
-                        result.setFilesFailed(result.getFilesFailed() + 1);
-                    }
+    private void finishJob(CompressionJob job, FileInfo[] fileInfos, long startTime) {
+        CompressionResult result = new CompressionResult();
+        result.setTimestamp(startTime);
 
-                } catch (Exception e) {
+        try {
+            for (FileInfo fileInfo : fileInfos) {
+                result.addFile(fileInfo);
+                result.setFilesProcessed(result.getFilesProcessed() + 1);
+
+                if ("Completed".equals(fileInfo.getStatus())) {
+                    result.setTotalOriginalSize(result.getTotalOriginalSize() + fileInfo.getOriginalSize());
+                    result.setTotalCompressedSize(result.getTotalCompressedSize() + fileInfo.getCompressedSize());
+                } else {
                     result.setFilesFailed(result.getFilesFailed() + 1);
-                    LoggerUtil.logError("Failed to compress file", e);
                 }
             }
 
-            result.setSuccess(true);
-            result.setMessage(String.format(
-                    "Compressed %d files successfully (%d failed). Average compression: %.1f%%",
-                    result.getFilesProcessed() - result.getFilesFailed(),
-                    result.getFilesFailed(),
-                    result.getAverageCompressionRatio()
-            ));
-
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            result.setSuccess(false);
-            result.setMessage("Compression was interrupted");
-            // Cancel all remaining tasks
-            for (Future<FileInfo> future : futures) {
-                if (!future.isDone()) {
-                    future.cancel(true);
-                }
+            if (job.isCancelled()) {
+                result.setSuccess(false);
+                result.setMessage("Compression was cancelled");
+            } else {
+                result.setSuccess(true);
+                result.setMessage(String.format(
+                        "Compressed %d files successfully (%d failed). Average compression: %.1f%%",
+                        result.getFilesProcessed() - result.getFilesFailed(),
+                        result.getFilesFailed(),
+                        result.getAverageCompressionRatio()
+                ));
             }
+        } catch (RuntimeException e) {
+            result.setSuccess(false);
+            result.setMessage("Failed to summarise results: " + e.getMessage());
+        } finally {
+            // Always complete, or await() on this job would never return
+            result.setTotalTimeMs(System.currentTimeMillis() - startTime);
+            activeJobs.remove(job.getId());
+            job.complete(result);
         }
-
-        result.setTotalTimeMs(System.currentTimeMillis() - result.getTimestamp());
-        notifyComplete(result);
-        return result;
     }
 
     public FileInfo compressSingleFile(File file, CompressionOptions options) {
+        return compressSingleFile(file, options, null, null);
+    }
+
+    private FileInfo compressSingleFile(File file, CompressionOptions options, CompressionJob job,
+                                        FormatDetector.FileFormat format) {
         // Validate inputs
         if (file == null || !file.exists()) {
             FileInfo errorInfo = new FileInfo();
@@ -217,7 +225,9 @@ public class CompressionService {
             }
             
             // Detect file type
-            FormatDetector.FileFormat format = FormatDetector.detect(file);
+            if (format == null) {
+                format = FormatDetector.detect(file);
+            }
             fileInfo.setFileType(format.getCategory());
             fileInfo.setMimeType(format.getMimeType());
 
@@ -229,14 +239,41 @@ public class CompressionService {
                 );
             }
 
-            // Compress the file
-            File outputFile = compressor.compress(file, options);
+            // Key is computed up front: compressors may tweak the options they are handed
+            String cacheKey = computeCacheKey(file, options);
+            File outputFile = cacheKey != null
+                    ? resultCache.lookup(cacheKey, file, options.getOutputDirectory())
+                    : null;
+
+            String fallback = null;
+            if (outputFile != null) {
+                fileInfo.setCacheHit(true);
+            } else {
+                // Compress the file
+                FallbackReport.clear();
+                try {
+                    outputFile = compressor.compress(file, options);
+                } finally {
+                    fallback = FallbackReport.take();
+                }
+            }
 
             // Verify output file exists and get its size
             if (!outputFile.exists()) {
                 throw new Exception("Compressed file was not created: " + outputFile.getPath());
             }
 
+            if (cacheKey != null && !fileInfo.isCacheHit()) {
+                if (fallback != null) {
+                    LoggerUtil.logInfo("Not caching " + file.getName() + ": " + fallback);
+                } else if (FileManager.getFileSize(outputFile) >= fileInfo.getOriginalSize()) {
+                    // Nothing gained; a later run with the tools less busy may do better
+                    LoggerUtil.logInfo("Not caching " + file.getName() + ": output is not smaller");
+                } else {
+                    resultCache.store(cacheKey, outputFile);
+                }
+            }
+
             long compressedSize = FileManager.getFileSize(outputFile);
             long originalSize = fileInfo.getOriginalSize();
 
@@ -249,11 +286,12 @@ public class CompressionService {
             double compressionRatio = originalSize > 0 ? 
                 (1.0 - (double)compressedSize / originalSize) * 100.0 : 0.0;
             LoggerUtil.logInfo(String.format(
-                "File: %s | Original: %s | Compressed: %s | Saved: %.1f%%",
+                "File: %s | Original: %s | Compressed: %s | Saved: %.1f%%%s",
                 file.getName(),
                 FileManager.formatFileSize(originalSize),
                 FileManager.formatFileSize(compressedSize),
-                compressionRatio
+                compressionRatio,
+                fileInfo.isCacheHit() ? " (cached)" : ""
             ));
 
             LoggerUtil.logFileInfo(fileInfo);
@@ -262,12 +300,26 @@ public class CompressionService {
             fileInfo.setStatus("Error");
             fileInfo.setErrorMessage(e.getMessage());
             LoggerUtil.logError("Failed to compress file: " + file.getName(), e);
-            notifyError(fileInfo, e);
+            if (job != null) {
+                job.notifyError(fileInfo, e);
+            }
         }
 
         return fileInfo;
     }
 
+    private String computeCacheKey(File file, CompressionOptions options) {
+        if (resultCache == null) {
+            return null;
+        }
+        try {
+            return resultCache.computeKey(file, options);
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Could not hash " + file.getName() + " for the result cache: " + e.getMessage());
+            return null;
+        }
+    }
+
     private FileCompressor findCompressor(FormatDetector.FileFormat format) {
         // Try exact format first
         FileCompressor compressor = compressors.get(format.getExtension());
@@ -286,15 +338,7 @@ public class CompressionService {
     }
 
     public void shutdown() {
-        executorService.shutdown();
-        try {
-            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
+        scheduler.shutdown();
     }
 
     public interface CompressionListener {
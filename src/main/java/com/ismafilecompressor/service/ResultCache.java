@@ -0,0 +1,301 @@
+package com.ismafilecompressor.service;
+
+import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.util.DecodeMemoryBudget;
+import com.ismafilecompressor.util.FileManager;
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed on-disk cache of compression results.
+ * Entries are keyed by the SHA-256 of the input bytes, the options fingerprint
+ * and the installed tool versions, and evicted least-recently-used once the
+ * cache grows past its size limit.
+ */
+public class ResultCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private long currentBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        // Access order turns the map into an LRU list
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        Files.createDirectories(directory);
+        loadIndex();
+    }
+
+    /**
+     * Compute the cache key for a file. Must be called before compressing,
+     * since compressors may adjust the options they are given.
+     */
+    public String computeKey(File input, CompressionOptions options) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(input.toPath())) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        byte[] contentHash = digest.digest();
+
+        digest.reset();
+        digest.update(contentHash);
+        digest.update(options.getFingerprint().getBytes(StandardCharsets.UTF_8));
+        digest.update(ToolRegistry.getFingerprint().getBytes(StandardCharsets.UTF_8));
+        digest.update(configFingerprint().getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Settings from the config file rather than the options that change which
+     * path a compressor takes, and so the bytes it writes.
+     */
+    private static String configFingerprint() {
+        return "jpegRestart=" + AppConfig.getJpegRestartInterval()
+                // Slower encoders are cut off at the budget, so it decides races
+                + "|raceBudgetMs=" + AppConfig.getEncoderRaceBudgetMs()
+                // The decode budget picks between whole-image and tiled encoding
+                + "|decodeBudget=" + DecodeMemoryBudget.getCapacityBytes()
+                + "|pdfSplitMB=" + AppConfig.getPdfSplitMb()
+                // The number of split parts follows the tool thread budget
+                + "|toolThreads=" + CompressionScheduler.getToolThreadBudget()
+                + "|pdfLargeDocumentMB=" + AppConfig.getPdfLargeDocumentMb()
+                + "|pdfHeapMB=" + AppConfig.getPdfHeapMb();
+    }
+
+    /**
+     * Copy a cached result to a fresh output file next to the other results.
+     * Returns null on a miss.
+     */
+    public File lookup(String key, File input, String outputDirectory) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) {
+                // Pinned: eviction leaves the file in place until the copy is done
+                entry.readers++;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            File output = FileManager.createOutputFile(input, "compressed_", outputDirectory, entry.extension);
+            Files.copy(entry.path, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // Persist recency so LRU order survives a restart
+            entry.path.toFile().setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return output;
+        } catch (IOException e) {
+            // File removed from outside the cache - drop the entry, unless it was replaced meanwhile
+            synchronized (this) {
+                if (entries.get(key) == entry) {
+                    removeEntry(key);
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            synchronized (this) {
+                entry.readers--;
+                Entry current = entries.get(key);
+                // A store under the same key may have written the same path again since
+                if (entry.removed && entry.readers == 0 && (current == null || !current.path.equals(entry.path))) {
+                    deleteQuietly(entry.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a freshly compressed output under the given key.
+     */
+    public void store(String key, File output) {
+        long size = FileManager.getFileSize(output);
+        if (size <= 0 || size > maxBytes) {
+            return;
+        }
+
+        String extension = FileManager.getFileExtension(output.getName());
+        Path target = directory.resolve(extension.isEmpty() ? key : key + "." + extension);
+        Path temp = directory.resolve(key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.readers > 0) {
+                // Same key means same content; do not replace a file that is being copied
+                return;
+            }
+        }
+        try {
+            Files.copy(output.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Could not store result in cache: " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(target, extension, size));
+            if (previous != null) {
+                currentBytes -= previous.size;
+                if (!previous.path.equals(target)) {
+                    // Same key under another extension; the old file is no longer indexed
+                    release(previous);
+                }
+            }
+            currentBytes += size;
+            evictIfNeeded();
+        }
+        stores.incrementAndGet();
+    }
+
+    public synchronized void clear() {
+        for (String key : new ArrayList<>(entries.keySet())) {
+            removeEntry(key);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("evictions", evictions.get());
+        stats.put("stores", stores.get());
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("sizeBytes", currentBytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("directory", directory.toString());
+        return stats;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            currentBytes -= eldest.size;
+            release(eldest);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            currentBytes -= entry.size;
+            release(entry);
+        }
+    }
+
+    // Delete a removed entry's file now, or once its last lookup has copied it
+    private void release(Entry entry) {
+        entry.removed = true;
+        if (entry.readers == 0) {
+            deleteQuietly(entry.path);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (!Files.isRegularFile(path)) {
+                    continue;
+                }
+                if (path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    // Leftover from an interrupted store
+                    deleteQuietly(path);
+                } else {
+                    files.add(path);
+                }
+            }
+        }
+
+        // Oldest first, so the most recently used entries end up at the tail
+        files.sort(Comparator.comparingLong(path -> path.toFile().lastModified()));
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            int dot = name.indexOf('.');
+            String key = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot + 1) : "";
+            long size = FileManager.getFileSize(path.toFile());
+            entries.put(key, new Entry(path, extension, size));
+            currentBytes += size;
+        }
+        evictIfNeeded();
+
+        LoggerUtil.logInfo(String.format("Result cache: %d entries (%s) in %s",
+                entries.size(), FileManager.formatFileSize(currentBytes), directory));
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Could not delete cache file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final String extension;
+        private final long size;
+        // Guarded by the cache's lock
+        private int readers;
+        private boolean removed;
+
+        private Entry(Path path, String extension, long size) {
+            this.path = path;
+            this.extension = extension;
+            this.size = size;
+        }
+    }
+}
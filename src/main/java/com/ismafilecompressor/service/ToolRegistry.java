@@ -0,0 +1,346 @@
+package com.ismafilecompressor.service;
+
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of external compression tools.
+ * Every binary (and every FFmpeg codec we care about) is probed once at startup
+ * or on an explicit {@link #refresh()}, instead of once per compressed file.
+ */
+public class ToolRegistry {
+    // Tool names
+    public static final String GUETZLI = "guetzli";
+    public static final String CJPEG = "cjpeg";
+    public static final String PNGQUANT = "pngquant";
+    public static final String ZOPFLIPNG = "zopflipng";
+    public static final String OPTIPNG = "optipng";
+    public static final String CWEBP = "cwebp";
+    public static final String DWEBP = "dwebp";
+    public static final String GHOSTSCRIPT = "gs";
+    public static final String SEVEN_ZIP = "7z";
+    public static final String ZSTD = "zstd";
+    public static final String FFMPEG = "ffmpeg";
+
+    // Capability flags derived from a tool's help output
+    public static final String CWEBP_ANIMATION = "cwebp.animation";
+    public static final String CWEBP_STDIN = "cwebp.stdin";
+
+    // FFmpeg codecs the audio/video compressors choose between
+    private static final String[] FFMPEG_CODECS = {
+            "libx264", "libx265", "libvpx-vp9", "libaom-av1",
+            "aac", "libmp3lame", "libopus", "libvorbis"
+    };
+
+    private static final List<ToolProbe> PROBES = List.of(
+            new ToolProbe(GUETZLI, true, "guetzli", "--version"),
+            new ToolProbe(CJPEG, false, "cjpeg", "-version"),
+            new ToolProbe(PNGQUANT, false, "pngquant", "--version"),
+            new ToolProbe(ZOPFLIPNG, false, "zopflipng", "--version"),
+            new ToolProbe(OPTIPNG, false, "optipng", "-v"),
+            new ToolProbe(CWEBP, false, "cwebp", "-version"),
+            new ToolProbe(DWEBP, false, "dwebp", "-version"),
+            new ToolProbe(GHOSTSCRIPT, true, "gs", "--version"),
+            new ToolProbe(SEVEN_ZIP, false, "7z", "i"),
+            new ToolProbe(ZSTD, false, "zstd", "--version"),
+            new ToolProbe(FFMPEG, true, "ffmpeg", "-version")
+    );
+
+    private static final List<CapabilityProbe> CAPABILITIES = List.of(
+            new CapabilityProbe(CWEBP_ANIMATION, CWEBP, new String[]{"-loop", "animation"}, "cwebp", "-help"),
+            // Older cwebp builds only accept a file path as input
+            new CapabilityProbe(CWEBP_STDIN, CWEBP, new String[]{"stdin"}, "cwebp", "-longhelp")
+    );
+
+    private static final long PROBE_TIMEOUT_SECONDS = 5;
+
+    private static volatile Snapshot snapshot;
+
+    private ToolRegistry() {
+    }
+
+    /**
+     * Probe all tools if this has not happened yet.
+     */
+    public static void initialize() {
+        if (snapshot == null) {
+            synchronized (ToolRegistry.class) {
+                if (snapshot == null) {
+                    snapshot = probeAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-probe all tools, e.g. after installing a binary on a running node.
+     */
+    public static synchronized void refresh() {
+        snapshot = probeAll();
+    }
+
+    public static boolean isAvailable(String tool) {
+        ToolInfo info = current().tools.get(tool);
+        return info != null && info.isAvailable();
+    }
+
+    public static String getVersion(String tool) {
+        ToolInfo info = current().tools.get(tool);
+        return info != null && info.isAvailable() ? info.getVersion() : "Not available";
+    }
+
+    public static boolean hasFfmpegCodec(String codec) {
+        Snapshot current = current();
+        Boolean known = current.ffmpegCodecs.get(codec);
+        if (known != null) {
+            return known;
+        }
+        return current.ffmpegCodecListing.contains(codec);
+    }
+
+    public static boolean hasCapability(String capability) {
+        Boolean flag = current().capabilities.get(capability);
+        return flag != null && flag;
+    }
+
+    public static long getLastProbeTime() {
+        return current().probedAt;
+    }
+
+    /**
+     * Stable string describing the installed tool versions. Changes whenever a
+     * tool is installed, removed or upgraded.
+     */
+    public static String getFingerprint() {
+        Snapshot current = current();
+        StringBuilder sb = new StringBuilder();
+        for (ToolInfo info : current.tools.values()) {
+            sb.append(info.getName()).append('=')
+                    .append(info.isAvailable() ? info.getVersion() : "-").append(';');
+        }
+        for (Map.Entry<String, Boolean> codec : current.ffmpegCodecs.entrySet()) {
+            sb.append(codec.getKey()).append('=').append(codec.getValue()).append(';');
+        }
+        return sb.toString();
+    }
+
+    public static Map<String, Object> getToolInfo() {
+        Snapshot current = current();
+        Map<String, Object> info = new LinkedHashMap<>();
+
+        Map<String, Object> tools = new LinkedHashMap<>();
+        for (ToolInfo tool : current.tools.values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("available", tool.isAvailable());
+            entry.put("version", tool.getVersion());
+            tools.put(tool.getName(), entry);
+        }
+        info.put("tools", tools);
+        info.put("ffmpegCodecs", new LinkedHashMap<>(current.ffmpegCodecs));
+        info.put("capabilities", new LinkedHashMap<>(current.capabilities));
+        info.put("probedAt", new Date(current.probedAt).toString());
+        return info;
+    }
+
+    private static Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            initialize();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    private static Snapshot probeAll() {
+        long start = System.currentTimeMillis();
+        Map<String, ToolInfo> tools = new LinkedHashMap<>();
+        for (ToolProbe probe : PROBES) {
+            tools.put(probe.name, probe.run());
+        }
+
+        String codecListing = "";
+        Map<String, Boolean> codecs = new LinkedHashMap<>();
+        if (tools.get(FFMPEG).isAvailable()) {
+            codecListing = readFfmpegCodecs();
+        }
+        for (String codec : FFMPEG_CODECS) {
+            codecs.put(codec, codecListing.contains(codec));
+        }
+
+        Map<String, Boolean> capabilities = new LinkedHashMap<>();
+        for (CapabilityProbe probe : CAPABILITIES) {
+            capabilities.put(probe.name, tools.get(probe.tool).isAvailable() && probe.run());
+        }
+
+        long available = tools.values().stream().filter(ToolInfo::isAvailable).count();
+        LoggerUtil.logInfo(String.format("Tool registry: %d/%d external tools available (probed in %d ms)",
+                available, tools.size(), System.currentTimeMillis() - start));
+
+        return new Snapshot(Collections.unmodifiableMap(tools), Collections.unmodifiableMap(codecs),
+                Collections.unmodifiableMap(capabilities), codecListing, System.currentTimeMillis());
+    }
+
+    private static String readFfmpegCodecs() {
+        return readOutput("ffmpeg", "-hide_banner", "-codecs");
+    }
+
+    private static String readOutput(String... command) {
+        try {
+            return probe(command).output;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    /**
+     * Run a probe command with a bounded wait. Output is drained on its own
+     * thread, so a tool that hangs without closing stdout is killed at the
+     * timeout instead of blocking startup.
+     */
+    private static ProbeOutput probe(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+        // Nothing is fed to a probe; a tool waiting on stdin sees EOF
+        process.getOutputStream().close();
+        StringBuffer output = new StringBuffer();
+        Thread drainer = Thread.ofVirtual().name("probe-" + command[0]).start(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                // Stream closed when the process was destroyed
+            }
+        });
+        try {
+            if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                drainer.join(TimeUnit.SECONDS.toMillis(1));
+                return new ProbeOutput(output.toString(), -1, true);
+            }
+            // A grandchild may hold the pipe open; do not wait for EOF forever
+            drainer.join(TimeUnit.SECONDS.toMillis(PROBE_TIMEOUT_SECONDS));
+            return new ProbeOutput(output.toString(), process.exitValue(), false);
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+    }
+
+    private static final class ProbeOutput {
+        private final String output;
+        private final int exitCode;
+        private final boolean timedOut;
+
+        private ProbeOutput(String output, int exitCode, boolean timedOut) {
+            this.output = output;
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<String, ToolInfo> tools;
+        private final Map<String, Boolean> ffmpegCodecs;
+        private final Map<String, Boolean> capabilities;
+        private final String ffmpegCodecListing;
+        private final long probedAt;
+
+        private Snapshot(Map<String, ToolInfo> tools, Map<String, Boolean> ffmpegCodecs,
+                         Map<String, Boolean> capabilities, String ffmpegCodecListing, long probedAt) {
+            this.tools = tools;
+            this.ffmpegCodecs = ffmpegCodecs;
+            this.capabilities = capabilities;
+            this.ffmpegCodecListing = ffmpegCodecListing;
+            this.probedAt = probedAt;
+        }
+    }
+
+    private static final class ToolProbe {
+        private final String name;
+        private final boolean requireZeroExit;
+        private final String[] command;
+
+        private ToolProbe(String name, boolean requireZeroExit, String... command) {
+            this.name = name;
+            this.requireZeroExit = requireZeroExit;
+            this.command = command;
+        }
+
+        private ToolInfo run() {
+            try {
+                ProbeOutput result = probe(command);
+                if (result.timedOut) {
+                    return new ToolInfo(name, false, "Timed out");
+                }
+                if (requireZeroExit && result.exitCode != 0) {
+                    return new ToolInfo(name, false, "Exited with code " + result.exitCode);
+                }
+                String firstLine = null;
+                for (String line : result.output.split("\n")) {
+                    if (!line.isBlank()) {
+                        firstLine = line.trim();
+                        break;
+                    }
+                }
+                return new ToolInfo(name, true, firstLine != null ? firstLine : "Unknown");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ToolInfo(name, false, "Interrupted");
+            } catch (Exception e) {
+                // Binary not on PATH
+                return new ToolInfo(name, false, "Not installed");
+            }
+        }
+    }
+
+    private static final class CapabilityProbe {
+        private final String name;
+        private final String tool;
+        private final String[] markers;
+        private final String[] command;
+
+        private CapabilityProbe(String name, String tool, String[] markers, String... command) {
+            this.name = name;
+            this.tool = tool;
+            this.markers = markers;
+            this.command = command;
+        }
+
+        private boolean run() {
+            String output = readOutput(command);
+            for (String marker : markers) {
+                if (output.contains(marker)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static final class ToolInfo {
+        private final String name;
+        private final boolean available;
+        private final String version;
+
+        ToolInfo(String name, boolean available, String version) {
+            this.name = name;
+            this.available = available;
+            this.version = version;
+        }
+
+        public String getName() { return name; }
+        public boolean isAvailable() { return available; }
+        public String getVersion() { return version; }
+    }
+}
@@ -1,8 +1,12 @@
 package com.ismafilecompressor.service.compressor;
 
 import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.service.CompressionScheduler;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -45,8 +49,7 @@ public class ArchiveCompressor implements FileCompressor {
     
     private File try7zCompression(File input, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("7z", "i").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.SEVEN_ZIP)) {
                 return null;
             }
             
@@ -75,24 +78,29 @@ public class ArchiveCompressor implements FileCompressor {
                     method = "LZMA2";
             }
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "7z",
                 "a", // Add to archive
                 "-tzip", // ZIP format
                 "-mm=" + method, // Compression method
                 "-mx=" + compressionLevel, // Compression level
-                "-mmt=on", // Multi-threading
+                "-mmt=" + CompressionScheduler.getToolThreadBudget(), // Share of the cores
                 output.getAbsolutePath(),
                 input.getAbsolutePath()
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(300, TimeUnit.SECONDS);
+            ProcessRunner.Result result = runner
+                    .threads(CompressionScheduler.getToolThreadBudget())
+                    .timeout(300, TimeUnit.SECONDS)
+                    .run();
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used 7z for archive compression");
                 return output;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // 7z not available
         }
@@ -101,8 +109,7 @@ public class ArchiveCompressor implements FileCompressor {
     
     private File tryZstdCompression(File input, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("zstd", "--version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.ZSTD)) {
                 return null;
             }
             
@@ -126,22 +133,27 @@ public class ArchiveCompressor implements FileCompressor {
                     compressionLevel = 10;
             }
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "zstd",
                 "-" + compressionLevel,
                 "--long", // Enable long distance matching
-                "-T0", // Use all CPU cores
+                "-T" + CompressionScheduler.getToolThreadBudget(), // Share of the cores
                 input.getAbsolutePath(),
                 "-o", output.getAbsolutePath()
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(300, TimeUnit.SECONDS);
+            ProcessRunner.Result result = runner
+                    .threads(CompressionScheduler.getToolThreadBudget())
+                    .timeout(300, TimeUnit.SECONDS)
+                    .run();
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used zstd for archive compression");
                 return output;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // zstd not available
         }
@@ -149,6 +161,10 @@ public class ArchiveCompressor implements FileCompressor {
     }
     
     private File recompress7z(File input, CompressionOptions options) throws Exception {
+        if (!ToolRegistry.isAvailable(ToolRegistry.SEVEN_ZIP)) {
+            return copyFile(input, options);
+        }
+
         // Recompress 7z with better settings
         File output = FileManager.createOutputFile(input, "compressed_",
                 options.getOutputDirectory(), "7z");
@@ -156,21 +172,23 @@ public class ArchiveCompressor implements FileCompressor {
         CompressionOptions.CompressionLevel level = options.getCompressionLevel();
         String compressionLevel = level.isAggressive() ? "9" : "6";
         
-        ProcessBuilder pb = new ProcessBuilder(
+        ProcessRunner runner = ProcessRunner.of(
             "7z",
             "a",
             "-t7z",
             "-mm=LZMA2",
             "-mx=" + compressionLevel,
-            "-mmt=on",
+            "-mmt=" + CompressionScheduler.getToolThreadBudget(),
             output.getAbsolutePath(),
             input.getAbsolutePath()
         );
         
-        Process process = pb.start();
-        boolean completed = process.waitFor(300, TimeUnit.SECONDS);
+        ProcessRunner.Result result = runner
+                .threads(CompressionScheduler.getToolThreadBudget())
+                .timeout(300, TimeUnit.SECONDS)
+                .run();
         
-        if (!completed || process.exitValue() != 0 || !output.exists()) {
+        if (!result.isSuccess() || !output.exists()) {
             // Fallback to copy
             return copyFile(input, options);
         }
@@ -361,6 +379,7 @@ public class ArchiveCompressor implements FileCompressor {
             fis.transferTo(fos);
         }
 
+        FallbackReport.mark("copied the original");
         return output;
     }
 
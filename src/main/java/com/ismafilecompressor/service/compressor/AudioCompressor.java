@@ -1,8 +1,11 @@
 package com.ismafilecompressor.service.compressor;
 
 import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
 import java.io.*;
 import java.util.concurrent.TimeUnit;
 
@@ -50,6 +53,12 @@ public class AudioCompressor implements FileCompressor {
             }
             
             return output;
+        } catch (InterruptedException e) {
+            // Cancelled: drop the partial output instead of falling back to a copy
+            if (output.exists()) {
+                output.delete();
+            }
+            throw e;
         } catch (Exception e) {
             LoggerUtil.logError("Audio compression failed: " + e.getMessage(), e);
             // Fallback to copy
@@ -141,27 +150,17 @@ public class AudioCompressor implements FileCompressor {
             }
         }
 
-        Process process = pb.start();
+        // Audio compression can take time
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(300, TimeUnit.SECONDS) // 5 minutes timeout
+                .run();
 
-        // Read error stream (FFmpeg outputs to stderr)
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-        }
-
-        // Wait for process (audio compression can take time)
-        boolean completed = process.waitFor(300, TimeUnit.SECONDS); // 5 minutes timeout
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("FFmpeg audio compression timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("FFmpeg failed with exit code " + exitCode + ": " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("FFmpeg failed with exit code " + result.getExitCode() + ": " + result.getOutput());
         }
     }
 
@@ -265,21 +264,7 @@ public class AudioCompressor implements FileCompressor {
     }
     
     private boolean isOpusAvailable() {
-        try {
-            Process process = new ProcessBuilder("ffmpeg", "-codecs").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("libopus")) {
-                    process.destroy();
-                    return true;
-                }
-            }
-            process.destroy();
-        } catch (Exception e) {
-            // Ignore
-        }
-        return false;
+        return ToolRegistry.hasFfmpegCodec("libopus");
     }
 
     private File copyFile(File input, CompressionOptions options) throws Exception {
@@ -292,16 +277,12 @@ public class AudioCompressor implements FileCompressor {
             fis.transferTo(fos);
         }
 
+        FallbackReport.mark("copied the original");
         return output;
     }
 
     private boolean isFfmpegAvailable() {
-        try {
-            Process process = new ProcessBuilder("ffmpeg", "-version").start();
-            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return ToolRegistry.isAvailable(ToolRegistry.FFMPEG);
     }
 
     @Override
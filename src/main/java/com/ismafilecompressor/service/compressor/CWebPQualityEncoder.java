@@ -0,0 +1,111 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.util.ProcessRunner;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quality encoder for the target-size and perceptual searches that runs
+ * cwebp, so a WebP output really is WebP (alpha included) when no Java WebP
+ * writer is installed. The image is PNG-encoded once per distinct image; a
+ * search trying several qualities on it pays for that once. cwebp builds that
+ * read stdin get the PNG through a pipe and write the WebP to stdout, so no
+ * temp files are involved; older builds get a temp PNG and a temp output.
+ */
+final class CWebPQualityEncoder implements TargetSizeEncoder.QualityEncoder, AutoCloseable {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private final boolean viaStdin;
+    private BufferedImage source;
+    private byte[] sourcePng;
+    private File sourceFile;
+    private File encoded;
+
+    CWebPQualityEncoder() {
+        this.viaStdin = ToolRegistry.hasCapability(ToolRegistry.CWEBP_STDIN);
+    }
+
+    @Override
+    public void encode(BufferedImage image, int quality, OutputStream out) throws IOException {
+        if (image != source) {
+            deleteSource();
+            if (viaStdin) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                EncoderBridge.writePng(image, png);
+                sourcePng = png.toByteArray();
+            } else {
+                sourceFile = EncoderBridge.writeTempPng(image, "cwebp_search_");
+            }
+            source = image;
+        }
+        try {
+            if (viaStdin) {
+                encodePiped(quality, out);
+            } else {
+                encodeFiles(quality, out);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cwebp interrupted");
+        }
+    }
+
+    private void encodePiped(int quality, OutputStream out) throws IOException, InterruptedException {
+        byte[] png = sourcePng;
+        ProcessRunner.Result result = ProcessRunner.of("cwebp",
+                "-q", String.valueOf(quality),
+                "-m", "6",
+                "-o", "-",
+                "--", "-")
+                .stdin(stdin -> stdin.write(png))
+                .redirectOutput(out)
+                .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .run();
+        if (!result.isSuccess()) {
+            throw new IOException("cwebp failed at quality " + quality + ": " + result.getOutput());
+        }
+    }
+
+    private void encodeFiles(int quality, OutputStream out) throws IOException, InterruptedException {
+        if (encoded == null) {
+            encoded = File.createTempFile("cwebp_search_", ".webp");
+        }
+        ProcessRunner.Result result = ProcessRunner.of("cwebp",
+                "-q", String.valueOf(quality),
+                "-m", "6",
+                "-o", encoded.getAbsolutePath(),
+                "--", sourceFile.getAbsolutePath())
+                .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .run();
+        if (!result.isSuccess() || encoded.length() == 0) {
+            throw new IOException("cwebp failed at quality " + quality + ": " + result.getOutput());
+        }
+        Files.copy(encoded.toPath(), out);
+    }
+
+    @Override
+    public void close() {
+        deleteSource();
+        if (encoded != null) {
+            encoded.delete();
+            encoded = null;
+        }
+    }
+
+    private void deleteSource() {
+        if (sourceFile != null) {
+            sourceFile.delete();
+            sourceFile = null;
+        }
+        sourcePng = null;
+        source = null;
+    }
+}
@@ -0,0 +1,169 @@
+package com.ismafilecompressor.service.compressor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable ImageIO readers, writers and encode buffers. Looking a codec up
+ * walks the IIORegistry and instantiates a new plugin every time, which adds
+ * up when a PDF carries hundreds of small images. Compressions run on short
+ * lived virtual threads, so codecs are pooled process-wide rather than per
+ * thread: a lease is exclusive while held and the codec is reset on return.
+ */
+public final class CodecPool {
+    // Idle instances kept per codec; more than one per core is never in use at once
+    private static final int MAX_IDLE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Buffers that grew past this are dropped rather than pinned in the pool
+    private static final int MAX_POOLED_BUFFER = 16 * 1024 * 1024;
+
+    private static final Map<String, ConcurrentLinkedDeque<ImageWriter>> WRITERS = new ConcurrentHashMap<>();
+    private static final Map<ImageReaderSpi, ConcurrentLinkedDeque<ImageReader>> READERS = new ConcurrentHashMap<>();
+    private static final ConcurrentLinkedDeque<Buffer> BUFFERS = new ConcurrentLinkedDeque<>();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private CodecPool() {
+    }
+
+    /**
+     * Writer for a format name such as "jpeg", or a MIME type such as
+     * "image/webp". Returns null when no plugin is installed for it.
+     */
+    public static Lease<ImageWriter> writer(String format) {
+        ConcurrentLinkedDeque<ImageWriter> idle = WRITERS.computeIfAbsent(format, k -> new ConcurrentLinkedDeque<>());
+        ImageWriter writer = idle.pollFirst();
+        if (writer != null) {
+            HITS.incrementAndGet();
+            return new Lease<>(writer, idle);
+        }
+        Iterator<ImageWriter> writers = format.indexOf('/') >= 0
+                ? ImageIO.getImageWritersByMIMEType(format)
+                : ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            return null;
+        }
+        MISSES.incrementAndGet();
+        return new Lease<>(writers.next(), idle);
+    }
+
+    /**
+     * Reader that can decode the stream, with its input not yet set. Providers
+     * that were picked before are asked first, so repeat formats skip the
+     * registry; anything new goes through ImageIO's usual lookup and ordering.
+     * Returns null when no reader recognises the stream.
+     */
+    public static Lease<ImageReader> reader(ImageInputStream iis) throws IOException {
+        for (Map.Entry<ImageReaderSpi, ConcurrentLinkedDeque<ImageReader>> entry : READERS.entrySet()) {
+            if (entry.getKey().canDecodeInput(iis)) {
+                ImageReader reader = entry.getValue().pollFirst();
+                if (reader != null) {
+                    HITS.incrementAndGet();
+                } else {
+                    MISSES.incrementAndGet();
+                    reader = entry.getKey().createReaderInstance();
+                }
+                return new Lease<>(reader, entry.getValue());
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        MISSES.incrementAndGet();
+        ImageReader reader = readers.next();
+        ConcurrentLinkedDeque<ImageReader> idle = reader.getOriginatingProvider() == null
+                ? new ConcurrentLinkedDeque<>()
+                : READERS.computeIfAbsent(reader.getOriginatingProvider(), k -> new ConcurrentLinkedDeque<>());
+        return new Lease<>(reader, idle);
+    }
+
+    /**
+     * An empty growable buffer; close() hands it back for the next encode.
+     */
+    public static Buffer buffer() {
+        Buffer buffer = BUFFERS.pollFirst();
+        if (buffer == null) {
+            return new Buffer();
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", HITS.get());
+        stats.put("misses", MISSES.get());
+        int idle = 0;
+        for (ConcurrentLinkedDeque<ImageWriter> writers : WRITERS.values()) {
+            idle += writers.size();
+        }
+        for (ConcurrentLinkedDeque<ImageReader> readers : READERS.values()) {
+            idle += readers.size();
+        }
+        stats.put("idleCodecs", idle);
+        stats.put("idleBuffers", BUFFERS.size());
+        return stats;
+    }
+
+    /**
+     * Exclusive use of a reader or writer until closed.
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final T codec;
+        private final ConcurrentLinkedDeque<T> idle;
+
+        private Lease(T codec, ConcurrentLinkedDeque<T> idle) {
+            this.codec = codec;
+            this.idle = idle;
+        }
+
+        public T get() {
+            return codec;
+        }
+
+        @Override
+        public void close() {
+            // reset() drops the input/output, listeners and any half-written state
+            if (codec instanceof ImageWriter) {
+                ImageWriter writer = (ImageWriter) codec;
+                writer.reset();
+                if (idle.size() >= MAX_IDLE) {
+                    writer.dispose();
+                    return;
+                }
+            } else if (codec instanceof ImageReader) {
+                ImageReader reader = (ImageReader) codec;
+                reader.reset();
+                if (idle.size() >= MAX_IDLE) {
+                    reader.dispose();
+                    return;
+                }
+            }
+            idle.offerFirst(codec);
+        }
+    }
+
+    public static final class Buffer extends ByteArrayOutputStream implements AutoCloseable {
+        private Buffer() {
+            super(64 * 1024);
+        }
+
+        @Override
+        public void close() {
+            if (buf.length <= MAX_POOLED_BUFFER && BUFFERS.size() < MAX_IDLE) {
+                BUFFERS.offerFirst(this);
+            }
+        }
+    }
+}
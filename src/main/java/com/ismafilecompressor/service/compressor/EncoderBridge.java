@@ -0,0 +1,121 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.util.ProcessRunner;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Hands decoded pixels to external encoders without a lossy round trip.
+ * Tools that read stdin get a PPM or PNG stream over a pipe; tools that need a
+ * seekable input file get a quickly deflated lossless PNG temp file.
+ */
+public final class EncoderBridge {
+    // The tool recompresses everything, so the intermediate PNG only needs to be lossless.
+    // The JDK writer uses deflate level (int) (9 * (1 - quality)): 0.8 gives level 1, 0.9 would store uncompressed
+    private static final float FAST_PNG_QUALITY = 0.8f;
+    private static final int PIPE_BUFFER = 64 * 1024;
+
+    private EncoderBridge() {
+    }
+
+    /**
+     * Binary PPM (P6) for encoders such as cjpeg. Alpha is dropped, so callers
+     * must have flattened it already.
+     */
+    public static ProcessRunner.StdinWriter ppm(BufferedImage image) {
+        return stdin -> writePpm(image, stdin);
+    }
+
+    /**
+     * Lossless PNG for encoders that read PNG from stdin (pngquant, cwebp).
+     */
+    public static ProcessRunner.StdinWriter png(BufferedImage image) {
+        return stdin -> writePng(image, stdin);
+    }
+
+    /**
+     * Lossless PNG temp file for tools that only take file paths. The caller
+     * deletes it.
+     */
+    public static File writeTempPng(BufferedImage image, String prefix) throws IOException {
+        File temp = File.createTempFile(prefix, ".png");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            writePng(image, out);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return temp;
+    }
+
+    public static void writePpm(BufferedImage image, OutputStream stdin) throws IOException {
+        OutputStream out = new BufferedOutputStream(stdin, PIPE_BUFFER);
+        writePpmHeader(image.getWidth(), image.getHeight(), out);
+        writePpmRows(image, out);
+        out.flush();
+    }
+
+    public static void writePpmHeader(int width, int height, OutputStream out) throws IOException {
+        out.write(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Append the image's rows as PPM pixel data, without a header, so large
+     * images can be streamed one strip at a time.
+     */
+    public static void writePpmRows(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] line = new byte[width * 3];
+        int[] pixels = PixelKernels.packedPixels(image);
+        int[] row = pixels == null ? new int[width] : null;
+        for (int y = 0; y < height; y++) {
+            int offset = 0;
+            if (pixels == null) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+            }
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels != null ? pixels[y * width + x] : row[x];
+                line[offset++] = (byte) (rgb >> 16);
+                line[offset++] = (byte) (rgb >> 8);
+                line[offset++] = (byte) rgb;
+            }
+            out.write(line);
+        }
+    }
+
+    public static void writePng(BufferedImage image, OutputStream stdin) throws IOException {
+        OutputStream out = new BufferedOutputStream(stdin, PIPE_BUFFER);
+        CodecPool.Lease<ImageWriter> lease = CodecPool.writer("png");
+        if (lease == null) {
+            ImageIO.write(image, "png", out);
+            out.flush();
+            return;
+        }
+
+        ImageWriter writer = lease.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(FAST_PNG_QUALITY);
+        }
+        // Not ImageIO.createImageOutputStream: that may buffer through a disk cache file
+        try (lease; ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        out.flush();
+    }
+}
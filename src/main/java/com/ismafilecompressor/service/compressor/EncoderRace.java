@@ -0,0 +1,190 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Runs several encoders for the same image side by side, each into its own
+ * file in the temp directory, and keeps the smallest output that passes the
+ * quality gate. Once one candidate is usable the others get a short grace
+ * period to beat it, and nothing runs past the wall-clock budget: encoders
+ * still running then are cancelled, and external tools are killed by
+ * ProcessRunner on interrupt. If nothing usable finished in time the race
+ * has no winner and the caller falls back to its own encoder.
+ */
+public class EncoderRace {
+    private static final Map<String, AtomicLong> WINS = new ConcurrentHashMap<>();
+    // After the first usable result, the rest get this many times its encode time to beat it
+    private static final int GRACE_FACTOR = 2;
+
+    private final String label;
+    private final long budgetMs;
+    private final Map<String, Encoder> encoders;
+    private Predicate<File> qualityGate;
+
+    public EncoderRace(String label, long budgetMs) {
+        this.label = label;
+        this.budgetMs = budgetMs;
+        this.encoders = new LinkedHashMap<>();
+        this.qualityGate = file -> file.length() > 0;
+    }
+
+    public EncoderRace add(String name, Encoder encoder) {
+        encoders.put(name, encoder);
+        return this;
+    }
+
+    /**
+     * Extra acceptance check on a finished candidate, on top of it being non-empty.
+     */
+    public EncoderRace qualityGate(Predicate<File> gate) {
+        Predicate<File> nonEmpty = this.qualityGate;
+        this.qualityGate = file -> nonEmpty.test(file) && gate.test(file);
+        return this;
+    }
+
+    public int size() {
+        return encoders.size();
+    }
+
+    /**
+     * Run all encoders and move the winner to output.
+     *
+     * @return the winning encoder's name, or null if none produced a usable file
+     */
+    public String run(File output) throws IOException, InterruptedException {
+        String suffix = "." + extensionOf(output);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+
+        Map<Future<Boolean>, Candidate> running = new HashMap<>();
+        List<Candidate> finished = new ArrayList<>();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        boolean decided = false;
+        try {
+            for (Map.Entry<String, Encoder> entry : encoders.entrySet()) {
+                // Candidates live in the temp dir so a crash never leaves them beside the outputs
+                Candidate candidate = new Candidate(entry.getKey(),
+                        File.createTempFile("race_" + entry.getKey() + "_", suffix));
+                Encoder encoder = entry.getValue();
+                running.put(completion.submit(() -> encoder.encode(candidate.file)), candidate);
+            }
+
+            while (!running.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                Future<Boolean> done = completion.poll(remaining, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    continue;
+                }
+
+                Candidate candidate = running.remove(done);
+                if (succeeded(done, candidate) && qualityGate.test(candidate.file)) {
+                    candidate.size = candidate.file.length();
+                    if (finished.isEmpty()) {
+                        long now = System.nanoTime();
+                        deadline = Math.min(deadline, now + GRACE_FACTOR * (now - start));
+                    }
+                    finished.add(candidate);
+                } else {
+                    candidate.file.delete();
+                }
+            }
+
+            for (Map.Entry<Future<Boolean>, Candidate> loser : running.entrySet()) {
+                loser.getKey().cancel(true);
+                LoggerUtil.logInfo("Encoder race " + label + ": cancelled " + loser.getValue().name
+                        + (finished.isEmpty() ? " at budget" : " after a winner was found"));
+            }
+            decided = true;
+        } finally {
+            executor.shutdownNow();
+            // Cancelled encoders may still be writing; wait briefly so their files can be removed
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            for (Candidate loser : running.values()) {
+                loser.file.delete();
+            }
+            if (!decided) {
+                // Interrupted (job cancelled) before a winner was picked
+                for (Candidate candidate : finished) {
+                    candidate.file.delete();
+                }
+            }
+        }
+
+        Candidate winner = null;
+        for (Candidate candidate : finished) {
+            if (winner == null || candidate.size < winner.size) {
+                winner = candidate;
+            }
+        }
+        StringBuilder sizes = new StringBuilder();
+        for (Candidate candidate : finished) {
+            sizes.append(' ').append(candidate.name).append('=').append(candidate.size);
+            if (candidate != winner) {
+                candidate.file.delete();
+            }
+        }
+        if (winner == null) {
+            return null;
+        }
+
+        Files.move(winner.file.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        WINS.computeIfAbsent(winner.name, k -> new AtomicLong()).incrementAndGet();
+        LoggerUtil.logInfo("Encoder race " + label + ": " + winner.name + " won," + sizes);
+        return winner.name;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : WINS.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().get());
+        }
+        return stats;
+    }
+
+    private boolean succeeded(Future<Boolean> done, Candidate candidate) throws InterruptedException {
+        try {
+            return Boolean.TRUE.equals(done.get()) && candidate.file.exists();
+        } catch (ExecutionException e) {
+            LoggerUtil.logWarning("Encoder race " + label + ": " + candidate.name + " failed: "
+                    + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    private static String extensionOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot + 1) : "tmp";
+    }
+
+    /**
+     * One encoder writing its result to the given file.
+     */
+    public interface Encoder {
+        boolean encode(File output) throws Exception;
+    }
+
+    private static final class Candidate {
+        private final String name;
+        private final File file;
+        private long size;
+
+        private Candidate(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+}
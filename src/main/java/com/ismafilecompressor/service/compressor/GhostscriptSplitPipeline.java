@@ -0,0 +1,131 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.util.CpuSlots;
+import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ghostscript's pdfwrite device runs on one core, so a large PDF is cut into
+ * page ranges that separate gs processes write side by side, each with the
+ * same settings. The parts are appended into one document with
+ * PDFMergerUtility, and streams that several parts carried along (images,
+ * fonts, ICC profiles) are merged before it is saved.
+ */
+public class GhostscriptSplitPipeline {
+    private final int pages;
+    private final int parts;
+    private final MemoryUsageSetting memory;
+
+    public GhostscriptSplitPipeline(int pages, int parts, MemoryUsageSetting memory) {
+        this.pages = pages;
+        this.parts = Math.max(1, Math.min(parts, pages));
+        this.memory = memory;
+    }
+
+    /**
+     * Write the whole document to output.
+     *
+     * @return false if any part failed; output is then left untouched
+     */
+    public boolean run(RangeCommand command, File output, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        File dir = output.getAbsoluteFile().getParentFile();
+        List<File> partFiles = new ArrayList<>();
+        List<Future<Boolean>> running = new ArrayList<>();
+        long start = System.nanoTime();
+        // The gs processes take their cores from ProcessRunner's CPU budget
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            for (int part = 0; part < parts; part++) {
+                int firstPage = (int) ((long) part * pages / parts) + 1;
+                int lastPage = (int) ((long) (part + 1) * pages / parts);
+                File partFile = File.createTempFile("gs_part_" + part + "_", ".pdf", dir);
+                partFiles.add(partFile);
+                running.add(executor.submit(() -> {
+                    ProcessRunner.Result result = ProcessRunner.of(command.build(firstPage, lastPage, partFile))
+                            .timeout(timeout, unit)
+                            .run();
+                    if (!result.isSuccess()) {
+                        LoggerUtil.logWarning(String.format("Ghostscript pages %d-%d failed%s: %s", firstPage,
+                                lastPage, result.isTimedOut() ? " (timed out)" : "", result.getOutput()));
+                    }
+                    return result.isSuccess() && partFile.length() > 0;
+                }));
+            }
+            for (Future<Boolean> part : running) {
+                try {
+                    if (!part.get()) {
+                        return false;
+                    }
+                } catch (ExecutionException e) {
+                    LoggerUtil.logWarning("Ghostscript part failed: " + e.getCause().getMessage());
+                    return false;
+                }
+            }
+            long written = System.nanoTime();
+
+            // Merging runs PDFBox in this JVM, so it takes a CPU slot like any Java encode
+            try (CpuSlots.Slot slot = CpuSlots.acquire()) {
+                merge(partFiles, output);
+            }
+            LoggerUtil.logInfo(String.format("Ghostscript wrote %d pages as %d parts in %d ms, merged in %d ms",
+                    pages, parts, TimeUnit.NANOSECONDS.toMillis(written - start),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - written)));
+            return true;
+        } finally {
+            // Cancels the remaining parts; ProcessRunner kills gs on interrupt
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            for (File partFile : partFiles) {
+                partFile.delete();
+            }
+        }
+    }
+
+    private void merge(List<File> partFiles, File output) throws IOException {
+        List<PDDocument> sources = new ArrayList<>();
+        PDDocument merged = new PDDocument(memory);
+        try {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (File partFile : partFiles) {
+                // Sources stay open until the merged document is saved
+                PDDocument source = PDDocument.load(partFile, memory);
+                sources.add(source);
+                merger.appendDocument(merged, source);
+            }
+            PdfStreamDeduplicator deduplicator = new PdfStreamDeduplicator();
+            int duplicates = deduplicator.deduplicate(merged);
+            if (duplicates > 0) {
+                LoggerUtil.logInfo(String.format("Merged %d duplicate streams across parts (%d bytes)",
+                        duplicates, deduplicator.getBytesSaved()));
+            }
+            merged.save(output);
+        } finally {
+            merged.close();
+            for (PDDocument source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * The gs command line that writes pages firstPage..lastPage (1-based,
+     * inclusive) of the input to output.
+     */
+    public interface RangeCommand {
+        List<String> build(int firstPage, int lastPage, File output);
+    }
+}
@@ -1,141 +1,90 @@
 package com.ismafilecompressor.service.compressor;
 
+import com.ismafilecompressor.config.AppConfig;
 import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.service.optimizer.JpegLosslessOptimizer;
+import com.ismafilecompressor.service.optimizer.JpegQualityEstimator;
+import com.ismafilecompressor.util.DecodeMemoryBudget;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
+import com.ismafilecompressor.util.StageTimer;
 import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.resizers.configurations.Antialiasing;
+import net.coobird.thumbnailator.resizers.configurations.Rendering;
 import javax.imageio.*;
 import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
 public class ImageCompressor implements FileCompressor {
+    // Re-encoding this close to the source quality saves little and adds generation loss
+    private static final int REENCODE_QUALITY_MARGIN = 5;
+    // Lowest quality a target-size search may use before it starts scaling down
+    private static final int TARGET_MIN_QUALITY = 20;
+    // Each perceptual-search step costs one in-memory encode plus a subsampled decode
+    private static final int SSIM_MAX_ITERATIONS = 6;
 
     @Override
     public File compress(File input, CompressionOptions options) throws Exception {
-        // For PNG files with potential color space issues, automatically convert to JPEG
-        String inputExt = FileManager.getFileExtension(input.getName()).toLowerCase();
-        if ("png".equals(inputExt)) {
-            // Check if we should convert to JPEG (avoids color space issues)
-            boolean shouldConvert = options.isConvertPngToJpeg() || 
-                                   options.getCompressionLevel() == CompressionOptions.CompressionLevel.BALANCED ||
-                                   options.getCompressionLevel().isAggressive();
-            
-            if (shouldConvert) {
-                // Try to read to check for transparency
-                try {
-                    BufferedImage testImage = ImageIO.read(input);
-                    if (testImage != null && !testImage.getColorModel().hasAlpha()) {
-                        // No transparency, safe to convert - will be handled in getOutputFormat
-                    }
-                } catch (javax.imageio.IIOException e) {
-                    // If reading fails due to color space, force JPEG conversion
-                    String errorMsg = e.getMessage() != null ? e.getMessage().toLowerCase() : "";
-                    if (errorMsg.contains("colorspace") || errorMsg.contains("bogus")) {
-                        options.setConvertPngToJpeg(true);
-                    }
-                }
-            }
+        StageTimer timer = new StageTimer(input.getName());
+
+        boolean jpegToJpeg = isJpegToJpeg(input, options);
+        if (jpegToJpeg && options.isLosslessJpeg() && !options.isResizeImages()) {
+            // Resizing needs pixels, so it always goes through the full pipeline
+            return compressJpegLossless(input, options, timer);
         }
-        
-        BufferedImage image = null;
-        
-        // Try to read image with better color space handling
-        // Catch color space errors during reading - use multiple fallback strategies
-        try {
-            image = ImageIO.read(input);
-        } catch (Exception e) {
-            // If reading fails, check if it's a color space error
-            String errorMsg = e.getMessage() != null ? e.getMessage().toLowerCase() : "";
-            boolean isColorSpaceError = errorMsg.contains("colorspace") || errorMsg.contains("bogus");
-            String ext = FileManager.getFileExtension(input.getName()).toLowerCase();
-            
-            if (isColorSpaceError || (e instanceof javax.imageio.IIOException && "png".equals(ext))) {
-                // For PNG with color space issues, automatically convert to JPEG
-                if ("png".equals(ext)) {
-                    // Force JPEG conversion
-                    options.setConvertPngToJpeg(true);
-                    // Try reading again - this will go through JPEG compression path
-                    // But first, we need to read the image somehow
-                    // Use a workaround: read with a different approach
-                    try {
-                        java.util.Iterator<javax.imageio.ImageReader> readers = ImageIO.getImageReadersByFormatName("png");
-                        if (readers.hasNext()) {
-                            javax.imageio.ImageReader reader = readers.next();
-                            try (javax.imageio.stream.ImageInputStream iis = ImageIO.createImageInputStream(input)) {
-                                if (iis != null) {
-                                    reader.setInput(iis);
-                                    javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
-                                    image = reader.read(0, param);
-                                }
-                            } catch (Exception ex) {
-                                // If still fails, we'll handle it by converting format
-                                throw new Exception("PNG has color space issues - converting to JPEG", e);
-                            } finally {
-                                reader.dispose();
-                            }
-                        } else {
-                            throw new Exception("PNG has color space issues - converting to JPEG", e);
-                        }
-                    } catch (Exception ex2) {
-                        // Final fallback: re-throw with message indicating JPEG conversion
-                        throw new Exception("PNG file has color space issues. Will convert to JPEG format automatically.", e);
-                    }
-                } else {
-                    throw new Exception("Failed to read image: " + e.getMessage(), e);
+
+        // Never re-encode a JPEG above the quality it was saved with
+        int maxQuality = 100;
+        if (jpegToJpeg) {
+            int sourceQuality = JpegQualityEstimator.estimateQuality(input);
+            timer.mark("quality-estimate");
+            if (sourceQuality != JpegQualityEstimator.UNKNOWN) {
+                maxQuality = sourceQuality;
+                if (!options.isResizeImages() && !needsTargetSearch(input, options)
+                        && levelJpegQuality(options) > sourceQuality - REENCODE_QUALITY_MARGIN) {
+                    LoggerUtil.logInfo(String.format("Skipping re-encode of %s: source quality %d, target %d",
+                            input.getName(), sourceQuality, levelJpegQuality(options)));
+                    return compressJpegLossless(input, options, timer);
                 }
-            } else {
-                throw e; // Re-throw if not a color space issue
             }
         }
-        
-        if (image == null) {
-            throw new IllegalArgumentException("Cannot read image file");
-        }
 
-        // Always convert to standard RGB/ARGB format to avoid color space issues
-        // This fixes "Bogus input colorspace" errors with some PNG files
-        BufferedImage converted;
-        boolean hasAlpha = image.getColorModel().hasAlpha();
-        
-        if (image.getType() == BufferedImage.TYPE_INT_RGB || 
-            image.getType() == BufferedImage.TYPE_INT_ARGB) {
-            // Already in correct format, but ensure color space is correct
-            converted = new BufferedImage(
-                image.getWidth(), 
-                image.getHeight(), 
-                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB
-            );
-            java.awt.Graphics2D g = converted.createGraphics();
-            try {
-                g.setRenderingHint(java.awt.RenderingHints.KEY_COLOR_RENDERING, 
-                    java.awt.RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-                g.drawImage(image, 0, 0, null);
-            } finally {
-                g.dispose();
-            }
-            image = converted;
-        } else {
-            // Convert from any format to standard RGB/ARGB
-            converted = new BufferedImage(
-                image.getWidth(), 
-                image.getHeight(), 
-                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB
-            );
-            java.awt.Graphics2D g = converted.createGraphics();
-            try {
-                g.setRenderingHint(java.awt.RenderingHints.KEY_COLOR_RENDERING, 
-                    java.awt.RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-                g.drawImage(image, 0, 0, null);
-            } finally {
-                g.dispose();
-            }
-            image = converted;
+        // Reserve the decoded size from the shared budget before any pixels exist
+        long decodedBytes = estimateDecodedBytes(input, options);
+        timer.mark("size-estimate");
+        if (!DecodeMemoryBudget.fits(decodedBytes)) {
+            return compressOversized(input, options, timer, jpegToJpeg, decodedBytes);
         }
+        try (DecodeMemoryBudget.Reservation reservation = DecodeMemoryBudget.reserve(decodedBytes)) {
+            timer.mark("memory-wait");
+            return compressDecoded(input, options, timer, jpegToJpeg, maxQuality);
+        }
+    }
 
-        // Resize if needed
+    private File compressDecoded(File input, CompressionOptions options, StageTimer timer,
+                                 boolean jpegToJpeg, int maxQuality) throws Exception {
+        // Decode exactly once; colour-space fallbacks reuse the same stream
+        BufferedImage image = decodeImage(input, options);
+        timer.mark("decode");
+
+        // JPEG/PNG writers need a standard RGB/ARGB layout, otherwise they fail with
+        // "Bogus input colorspace". Images that already have it are used as is.
+        image = toStandardLayout(image);
+        timer.mark("convert");
+
+        // Resize if needed (a subsampled decode is at most twice the target here)
         if (options.isResizeImages() &&
                 (image.getWidth() > options.getMaxWidth() ||
                         image.getHeight() > options.getMaxHeight())) {
@@ -143,18 +92,29 @@ public class ImageCompressor implements FileCompressor {
             image = Thumbnails.of(image)
                     .size(options.getMaxWidth(), options.getMaxHeight())
                     .keepAspectRatio(true)
+                    .rendering(Rendering.QUALITY)
+                    .antialiasing(Antialiasing.ON)
                     .asBufferedImage();
         }
 
+        timer.mark("resize");
+
         // Get output format
         String outputFormat = getOutputFormat(input, options);
+        if ("webp".equalsIgnoreCase(outputFormat) && !canEncodeWebP()) {
+            // Without a WebP encoder every path writes JPEG, so name the file for what it holds
+            LoggerUtil.logWarning("No WebP encoder available for " + input.getName() + ", writing JPEG");
+            outputFormat = "jpg";
+        }
         
-        // If original was PNG but we're converting to JPEG, ensure image doesn't have alpha
+        // If we're writing JPEG, ensure image doesn't have alpha
         // (JPEG doesn't support transparency)
-        if (("png".equalsIgnoreCase(FileManager.getFileExtension(input.getName()))) && 
-            ("jpg".equalsIgnoreCase(outputFormat) || "jpeg".equalsIgnoreCase(outputFormat))) {
+        if ("jpg".equalsIgnoreCase(outputFormat) || "jpeg".equalsIgnoreCase(outputFormat)) {
             // Remove alpha channel if present
-            if (image.getColorModel().hasAlpha()) {
+            BufferedImage flattened = PixelKernels.flattenOnWhite(image);
+            if (flattened != null) {
+                image = flattened;
+            } else if (image.getColorModel().hasAlpha()) {
                 BufferedImage noAlpha = new BufferedImage(
                     image.getWidth(), 
                     image.getHeight(), 
@@ -176,179 +136,580 @@ public class ImageCompressor implements FileCompressor {
                 options.getOutputDirectory(), outputFormat);
 
         // Handle different image formats
-        if ("jpg".equalsIgnoreCase(outputFormat) || "jpeg".equalsIgnoreCase(outputFormat)) {
-            compressJPEG(image, output, options);
+        if (needsTargetSearch(input, options) && supportsTargetSize(outputFormat)) {
+            compressToTargetSize(image, output, options, maxQuality, outputFormat);
+        } else if (options.getMinSsim() > 0 && !options.isRaceEncoders() && supportsTargetSize(outputFormat)) {
+            compressToPerceptualThreshold(image, output, options, maxQuality, outputFormat);
+        } else if ("jpg".equalsIgnoreCase(outputFormat) || "jpeg".equalsIgnoreCase(outputFormat)) {
+            compressJPEG(image, output, options, maxQuality);
         } else if ("png".equalsIgnoreCase(outputFormat)) {
             compressPNG(image, output, options);
         } else if ("webp".equalsIgnoreCase(outputFormat)) {
             compressWebP(image, output, options);
         } else {
             // Default to JPEG for better compression
-            compressJPEG(image, output, options);
+            compressJPEG(image, output, options, maxQuality);
+        }
+        timer.mark("encode");
+
+        if (jpegToJpeg && !options.isResizeImages() && output.length() >= input.length()) {
+            // The re-encode lost; keep the source pixels instead of a bigger file
+            LoggerUtil.logInfo("Re-encoded " + input.getName() + " is not smaller, keeping the original encoding");
+            writeJpegLossless(input, output);
+            timer.mark("lossless");
+        }
+        timer.log();
+
+        return output;
+    }
+
+    private boolean needsTargetSearch(File input, CompressionOptions options) {
+        // A source already under the target only needs the normal pass
+        return options.getTargetSizeBytes() > 0 && input.length() > options.getTargetSizeBytes();
+    }
+
+    private boolean canEncodeWebP() {
+        return ToolRegistry.isAvailable(ToolRegistry.CWEBP) || ImageIO.getImageWritersByMIMEType("image/webp").hasNext();
+    }
+
+    private boolean supportsTargetSize(String outputFormat) {
+        return "jpg".equalsIgnoreCase(outputFormat) || "jpeg".equalsIgnoreCase(outputFormat)
+                || "webp".equalsIgnoreCase(outputFormat);
+    }
+
+    /**
+     * Binary-search the encoder quality on the decoded image until the output
+     * fits options.getTargetSizeBytes(), scaling down if the lowest quality is
+     * still too big. All attempts are encoded in memory; only the result is written.
+     */
+    private void compressToTargetSize(BufferedImage image, File output, CompressionOptions options,
+                                      int maxQuality, String outputFormat) throws Exception {
+        try (SearchEncoder encoder = openSearchEncoder(outputFormat, options)) {
+            TargetSizeEncoder.Result result = new TargetSizeEncoder(encoder, options.getTargetSizeBytes(),
+                    TARGET_MIN_QUALITY, calculateJpegQuality(options, maxQuality)).encode(image);
+
+            try (OutputStream out = Files.newOutputStream(output.toPath())) {
+                result.writeTo(out);
+            }
+            LoggerUtil.logInfo(String.format("Target size %d bytes: %s at quality %d, %dx%d, %d bytes",
+                    options.getTargetSizeBytes(), result.fits() ? "reached" : "not reached",
+                    result.getQuality(), result.getImage().getWidth(), result.getImage().getHeight(),
+                    result.getLength()));
+        }
+    }
+
+    /**
+     * Lowest quality whose decoded output still has an MS-SSIM of at least
+     * options.getMinSsim() against the image. Attempts are encoded in memory and
+     * compared on a downscaled luma grid; if even the level's own quality misses
+     * the threshold the normal encoder chain runs at that quality.
+     */
+    private void compressToPerceptualThreshold(BufferedImage image, File output, CompressionOptions options,
+                                               int maxQuality, String outputFormat) throws Exception {
+        SsimMetric metric = new SsimMetric(image);
+        int low = TARGET_MIN_QUALITY;
+        int high = calculateJpegQuality(options, maxQuality);
+        byte[] best = null;
+        int bestQuality = -1;
+        double bestScore = 0;
+
+        try (SearchEncoder encoder = openSearchEncoder(outputFormat, options);
+             CodecPool.Buffer buffer = CodecPool.buffer()) {
+            for (int iteration = 0; iteration < SSIM_MAX_ITERATIONS && low <= high; iteration++) {
+                int quality = (low + high) / 2;
+                buffer.reset();
+                encoder.encode(image, quality, buffer);
+                byte[] encoded = buffer.toByteArray();
+                double score = metric.compare(encoded);
+                if (score >= options.getMinSsim()) {
+                    best = encoded;
+                    bestQuality = quality;
+                    bestScore = score;
+                    high = quality - 1;
+                } else {
+                    low = quality + 1;
+                }
+            }
+        }
+
+        if (best == null) {
+            LoggerUtil.logInfo(String.format("No quality below %d reaches MS-SSIM %.3f for %s",
+                    calculateJpegQuality(options, maxQuality), options.getMinSsim(), output.getName()));
+            if ("webp".equalsIgnoreCase(outputFormat)) {
+                compressWebP(image, output, options);
+            } else {
+                compressJPEG(image, output, options, maxQuality);
+            }
+            return;
         }
+        Files.write(output.toPath(), best);
+        LoggerUtil.logInfo(String.format("Perceptual search for %s: quality %d, MS-SSIM %.4f, %d bytes",
+                output.getName(), bestQuality, bestScore, best.length));
+    }
+
+    /**
+     * Encoder for in-memory quality searches, in the format the output file is
+     * named for. WebP goes through cwebp when installed, otherwise the Java
+     * WebP writer; compressDecoded has already switched to JPEG if neither is
+     * installed.
+     */
+    private SearchEncoder openSearchEncoder(String outputFormat, CompressionOptions options) throws IOException {
+        if ("webp".equalsIgnoreCase(outputFormat)) {
+            if (ToolRegistry.isAvailable(ToolRegistry.CWEBP)) {
+                CWebPQualityEncoder cwebp = new CWebPQualityEncoder();
+                return new SearchEncoder(cwebp, cwebp::close);
+            }
+            CodecPool.Lease<ImageWriter> webp = CodecPool.writer("image/webp");
+            if (webp == null) {
+                throw new IOException("No WebP writer available");
+            }
+            return new SearchEncoder((img, quality, out) -> writeWebP(webp.get(), img, quality, out), webp::close);
+        }
+        CodecPool.Lease<ImageWriter> jpeg = CodecPool.writer("jpeg");
+        if (jpeg == null) {
+            throw new IOException("No JPEG writer available");
+        }
+        return new SearchEncoder((img, quality, out) -> writeJpeg(jpeg.get(), img, options, quality, out), jpeg::close);
+    }
+
+    private void writeJpeg(ImageWriter writer, BufferedImage image, CompressionOptions options, int quality,
+                           OutputStream out) throws IOException {
+        JpegEncoderSettings settings = JpegEncoderSettings.forLevel(options, quality, shouldUseProgressive(options));
+        ImageWriteParam param = settings.createWriteParam(writer);
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, settings.createImage(writer, image, param), param);
+        }
+    }
+
+    private void writeWebP(ImageWriter writer, BufferedImage image, int quality, OutputStream out) throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100.0f);
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+    }
 
+    private boolean isJpegToJpeg(File input, CompressionOptions options) {
+        String inputExt = FileManager.getFileExtension(input.getName()).toLowerCase();
+        String outputFormat = getOutputFormat(input, options).toLowerCase();
+        return ("jpg".equals(inputExt) || "jpeg".equals(inputExt))
+                && ("jpg".equals(outputFormat) || "jpeg".equals(outputFormat));
+    }
+
+    /**
+     * Rewrites the entropy coding only; the decoded pixels stay bit-identical.
+     * Files the optimizer cannot shrink are copied unchanged rather than
+     * re-encoded, since lossless was asked for.
+     */
+    private File compressJpegLossless(File input, CompressionOptions options, StageTimer timer) throws Exception {
+        File output = FileManager.createOutputFile(input, "compressed_",
+                options.getOutputDirectory(), getOutputFormat(input, options));
+        writeJpegLossless(input, output);
+        timer.mark("lossless");
+        timer.log();
         return output;
     }
 
-    private void compressJPEG(BufferedImage image, File output, CompressionOptions options) throws Exception {
+    private void writeJpegLossless(File input, File output) throws IOException {
+        if (new JpegLosslessOptimizer().optimizeJpeg(input, output)) {
+            LoggerUtil.logInfo("Used lossless JPEG optimization for " + input.getName());
+        } else {
+            Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            FallbackReport.mark("copied the original");
+        }
+    }
+
+    /**
+     * Heap the decode pipeline needs for this file, from the reader header
+     * alone: the decoded raster in the reader's native layout, the INT_RGB/ARGB
+     * copy made by toStandardLayout, and the flattening copy for alpha images.
+     * Deliberately conservative; the copies do not all live at once.
+     */
+    private long estimateDecodedBytes(File input, CompressionOptions options) throws Exception {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            if (iis == null) {
+                throw new IllegalArgumentException("Cannot read image file");
+            }
+            CodecPool.Lease<ImageReader> lease = CodecPool.reader(iis);
+            if (lease == null) {
+                throw new IllegalArgumentException("Cannot read image file");
+            }
+            try (lease) {
+                ImageReader reader = lease.get();
+                reader.setInput(iis, true, true);
+                int subsampling = calculateSubsampling(reader, options);
+                long pixels = ((long) ceilDiv(reader.getWidth(0), subsampling))
+                        * ceilDiv(reader.getHeight(0), subsampling);
+
+                int nativeBytes = 4;
+                boolean alpha = true;
+                ImageTypeSpecifier raw = reader.getRawImageType(0);
+                if (raw != null) {
+                    nativeBytes = Math.max(1, (raw.getColorModel().getPixelSize() + 7) / 8);
+                    alpha = raw.getColorModel().hasAlpha();
+                }
+                return pixels * (nativeBytes + 4 + (alpha ? 4 : 0));
+            }
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Images whose decode alone would exceed the whole memory budget. JPEG
+     * sources can still be optimized losslessly without decoding pixels; TIFF
+     * and PNG go through the strip-by-strip pipeline; anything else is refused
+     * with a clear error instead of exhausting the heap.
+     */
+    private File compressOversized(File input, CompressionOptions options, StageTimer timer,
+                                   boolean jpegToJpeg, long decodedBytes) throws Exception {
+        LoggerUtil.logWarning(String.format("%s needs about %d MB decoded, over the %d MB decode budget",
+                input.getName(), decodedBytes / (1024 * 1024),
+                DecodeMemoryBudget.getCapacityBytes() / (1024 * 1024)));
+        if (jpegToJpeg) {
+            return compressJpegLossless(input, options, timer);
+        }
+        if (TiledImagePipeline.supports(input)) {
+            return compressTiled(input, options, timer);
+        }
+        throw new IOException("Image is too large to decode within the memory budget: " + input.getName());
+    }
+
+    /**
+     * Writes the requested format from strips: JPEG is streamed to cjpeg as
+     * one PPM, since the ImageIO JPEG writer needs the whole raster, and PNG
+     * and TIFF come from the Java writers, which pull rows or strips as they
+     * go. Anything else (or JPEG without cjpeg) cannot be written this way and
+     * the file is rejected rather than written in some other format.
+     */
+    private File compressTiled(File input, CompressionOptions options, StageTimer timer) throws Exception {
+        String outputFormat = getOutputFormat(input, options).toLowerCase();
+        boolean jpeg = "jpg".equals(outputFormat) || "jpeg".equals(outputFormat);
+        boolean tiff = "tif".equals(outputFormat) || "tiff".equals(outputFormat);
+        if (!jpeg && !tiff && !"png".equals(outputFormat)) {
+            throw new IOException("Image is too large to decode within the memory budget and "
+                    + outputFormat + " cannot be written in strips: " + input.getName());
+        }
+        int maxWidth = options.isResizeImages() ? options.getMaxWidth() : Integer.MAX_VALUE;
+        int maxHeight = options.isResizeImages() ? options.getMaxHeight() : Integer.MAX_VALUE;
+        int quality = calculateJpegQuality(options, 100);
+
+        try (TiledImagePipeline pipeline = new TiledImagePipeline(input, maxWidth, maxHeight, !jpeg)) {
+            if (jpeg && !(pipeline.canWriteJpeg() && ToolRegistry.isAvailable(ToolRegistry.CJPEG))) {
+                throw new IOException("Image is too large to decode within the memory budget and cjpeg is "
+                        + (pipeline.canWriteJpeg() ? "not installed" : "limited to 65535 pixels per side")
+                        + ": " + input.getName());
+            }
+            if (!DecodeMemoryBudget.fits(pipeline.getPeakBytes())) {
+                throw new IOException("Image is too large to decode within the memory budget: " + input.getName());
+            }
+            try (DecodeMemoryBudget.Reservation reservation = DecodeMemoryBudget.reserve(pipeline.getPeakBytes())) {
+                timer.mark("memory-wait");
+                LoggerUtil.logInfo(String.format("Compressing %s in strips to %dx%d",
+                        input.getName(), pipeline.getWidth(), pipeline.getHeight()));
+
+                File output = FileManager.createOutputFile(input, "compressed_",
+                        options.getOutputDirectory(), outputFormat);
+                if (jpeg) {
+                    ProcessRunner.Result result = ProcessRunner.of(
+                            "cjpeg",
+                            "-quality", String.valueOf(quality),
+                            shouldUseProgressive(options) ? "-progressive" : "-baseline",
+                            "-optimize")
+                            .stdin(pipeline::writePpm)
+                            .redirectOutput(output)
+                            .timeout(600, TimeUnit.SECONDS)
+                            .run();
+                    if (!result.isSuccess() || output.length() == 0) {
+                        output.delete();
+                        throw new IOException("cjpeg failed on strips of " + input.getName() + ": "
+                                + result.getOutput());
+                    }
+                    timer.mark("tiled-cjpeg");
+                } else if (tiff) {
+                    pipeline.writeTiff(output, "Deflate", quality / 100f);
+                    timer.mark("tiled-tiff");
+                } else {
+                    pipeline.writePng(output);
+                    timer.mark("tiled-png");
+                }
+                timer.log();
+                return output;
+            }
+        }
+    }
+
+    private BufferedImage decodeImage(File input, CompressionOptions options) throws Exception {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            if (iis == null) {
+                throw new IllegalArgumentException("Cannot read image file");
+            }
+            CodecPool.Lease<ImageReader> lease = CodecPool.reader(iis);
+            if (lease == null) {
+                throw new IllegalArgumentException("Cannot read image file");
+            }
+
+            try (lease) {
+                ImageReader reader = lease.get();
+                // Not seek-forward-only, so a fallback can decode frame 0 again from the same stream
+                reader.setInput(iis, false, true);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = calculateSubsampling(reader, options);
+                if (subsampling > 1) {
+                    // Decode straight at a reduced size; the final resize happens afterwards
+                    LoggerUtil.logInfo(String.format("Decoding %dx%d with 1/%d subsampling for %dx%d target",
+                            reader.getWidth(0), reader.getHeight(0), subsampling,
+                            options.getMaxWidth(), options.getMaxHeight()));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+
+                // Decode in the reader's native layout: asking PNG readers for INT_RGB directly
+                // is about twice as slow as one bulk conversion afterwards
+                try {
+                    return reader.read(0, param);
+                } catch (IIOException e) {
+                    if (!isColorSpaceError(e)) {
+                        throw e;
+                    }
+                    LoggerUtil.logWarning("Colour space problem in " + input.getName() + ", decoding raw raster");
+                    if ("png".equals(FileManager.getFileExtension(input.getName()))) {
+                        // Odd PNG colour profiles are safest as JPEG
+                        options.setConvertPngToJpeg(true);
+                    }
+                    return decodeWithoutColorConversion(reader, param, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Largest power-of-two source subsampling that still leaves the decoded image
+     * at least as large as the resize target. Only the header is read here.
+     */
+    private int calculateSubsampling(ImageReader reader, CompressionOptions options) throws IOException {
+        if (!options.isResizeImages()) {
+            return 1;
+        }
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        double scale = Math.min((double) options.getMaxWidth() / width, (double) options.getMaxHeight() / height);
+        if (scale >= 0.5) {
+            return 1;
+        }
+        return Integer.highestOneBit((int) Math.floor(1.0 / scale));
+    }
+
+    private BufferedImage decodeWithoutColorConversion(ImageReader reader, ImageReadParam param,
+                                                       IIOException cause) throws Exception {
+        BufferedImage image = JpegRawDecoder.decode(reader, param);
+        if (image != null) {
+            return image;
+        }
+        // Nothing says how the raw samples are coded, so try the reader's other
+        // destination layouts; a PNG with a broken ICC profile decodes fine as plain sRGB.
+        // Same reader and param, so the subsampling the memory reservation was sized for still applies
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types != null && types.hasNext()) {
+            param.setDestinationType(types.next());
+            try {
+                return reader.read(0, param);
+            } catch (IIOException | RuntimeException e) {
+                // CMMException and friends come out of the colour conversion unchecked
+                cause.addSuppressed(e);
+            }
+        }
+        throw new Exception("Image has an unsupported colour space: " + cause.getMessage(), cause);
+    }
+
+    private boolean isColorSpaceError(Exception e) {
+        String message = e.getMessage() != null ? e.getMessage().toLowerCase() : "";
+        return message.contains("colorspace") || message.contains("color space") || message.contains("bogus");
+    }
+
+    private BufferedImage toStandardLayout(BufferedImage image) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            return image;
+        }
+        BufferedImage direct = PixelKernels.toIntRgb(image);
+        if (direct != null) {
+            return direct;
+        }
+
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        BufferedImage converted = new BufferedImage(
+            image.getWidth(),
+            image.getHeight(),
+            hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB
+        );
+        java.awt.Graphics2D g = converted.createGraphics();
+        try {
+            g.setRenderingHint(java.awt.RenderingHints.KEY_COLOR_RENDERING,
+                java.awt.RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
+    private void compressJPEG(BufferedImage image, File output, CompressionOptions options, int maxQuality) throws Exception {
+        if (options.isRaceEncoders()) {
+            EncoderRace race = new EncoderRace(output.getName(), AppConfig.getEncoderRaceBudgetMs());
+            if (ToolRegistry.isAvailable(ToolRegistry.GUETZLI)) {
+                race.add("guetzli", out -> tryGuetzli(image, out, options, maxQuality));
+            }
+            if (ToolRegistry.isAvailable(ToolRegistry.CJPEG)) {
+                race.add("mozjpeg", out -> tryMozJpeg(image, out, options, maxQuality));
+            }
+            race.add("java", out -> {
+                compressJPEGAdvanced(image, out, options, maxQuality);
+                return true;
+            });
+            runRace(race, image, output, options, out -> {
+                compressJPEGAdvanced(image, out, options, maxQuality);
+                return true;
+            });
+            return;
+        }
+
         // Try advanced external tools first
-        if (tryAdvancedJpegCompression(image, output, options)) {
+        if (tryAdvancedJpegCompression(image, output, options, maxQuality)) {
             return;
         }
         
         // Fallback to Java-based advanced compression
-        compressJPEGAdvanced(image, output, options);
+        compressJPEGAdvanced(image, output, options, maxQuality);
     }
     
-    private boolean tryAdvancedJpegCompression(BufferedImage image, File output, CompressionOptions options) {
+    private boolean tryAdvancedJpegCompression(BufferedImage image, File output, CompressionOptions options,
+                                               int maxQuality) {
         // Try Guetzli (Google's advanced JPEG encoder) - best quality/size ratio
-        if (tryGuetzli(image, output, options)) {
+        if (tryGuetzli(image, output, options, maxQuality)) {
             return true;
         }
         
         // Try MozJPEG (better than standard JPEG)
-        if (tryMozJpeg(image, output, options)) {
+        if (tryMozJpeg(image, output, options, maxQuality)) {
             return true;
         }
         
         return false;
     }
     
-    private boolean tryGuetzli(BufferedImage image, File output, CompressionOptions options) {
+    private boolean tryGuetzli(BufferedImage image, File output, CompressionOptions options, int maxQuality) {
         try {
-            // Check if guetzli is available
-            Process checkProcess = new ProcessBuilder("guetzli", "--version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS) || checkProcess.exitValue() != 0) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.GUETZLI)) {
                 return false;
             }
             
-            // Save image to temp file
-            File tempInput = File.createTempFile("guetzli_input_", ".jpg");
-            ImageIO.write(image, "jpg", tempInput);
+            // Guetzli needs a file path; a PNG keeps the hand-off lossless
+            File tempInput = EncoderBridge.writeTempPng(image, "guetzli_input_");
             
             // Calculate quality based on compression level
-            int quality = calculateJpegQuality(options);
+            int quality = calculateJpegQuality(options, maxQuality);
             
             // Run Guetzli (it uses quality 84-100, we map our quality to this range)
             int guetzliQuality = Math.max(84, Math.min(100, 84 + (quality * 16 / 100)));
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "guetzli",
                 "--quality", String.valueOf(guetzliQuality),
                 tempInput.getAbsolutePath(),
                 output.getAbsolutePath()
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(300, TimeUnit.SECONDS); // 5 min timeout
-            
-            tempInput.delete();
+            ProcessRunner.Result result;
+            try {
+                result = runner.timeout(300, TimeUnit.SECONDS).run(); // 5 min timeout
+            } finally {
+                tempInput.delete();
+            }
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used Guetzli for JPEG compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // Guetzli not available or failed, continue to next method
         }
         return false;
     }
     
-    private boolean tryMozJpeg(BufferedImage image, File output, CompressionOptions options) {
+    private boolean tryMozJpeg(BufferedImage image, File output, CompressionOptions options, int maxQuality) {
         try {
-            // Check if cjpeg (MozJPEG) is available
-            Process checkProcess = new ProcessBuilder("cjpeg", "-version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.CJPEG)) {
                 return false;
             }
             
-            // Save image to temp file
-            File tempInput = File.createTempFile("mozjpeg_input_", ".jpg");
-            ImageIO.write(image, "jpg", tempInput);
-            
-            int quality = calculateJpegQuality(options);
+            int quality = calculateJpegQuality(options, maxQuality);
             boolean progressive = shouldUseProgressive(options);
             
-            ProcessBuilder pb = new ProcessBuilder();
-            pb.command(
+            ProcessRunner runner = ProcessRunner.of(
                 "cjpeg",
                 "-quality", String.valueOf(quality),
                 progressive ? "-progressive" : "-baseline",
-                "-optimize",
-                "-outfile", output.getAbsolutePath(),
-                tempInput.getAbsolutePath()
+                "-optimize"
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(60, TimeUnit.SECONDS);
+            // Raw pixels in over stdin, JPEG out over stdout - no intermediate JPEG generation
+            ProcessRunner.Result result = runner
+                .stdin(EncoderBridge.ppm(image))
+                .redirectOutput(output)
+                .timeout(60, TimeUnit.SECONDS)
+                .run();
             
-            tempInput.delete();
-            
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used MozJPEG for JPEG compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // MozJPEG not available or failed
         }
         return false;
     }
     
-    private void compressJPEGAdvanced(BufferedImage image, File output, CompressionOptions options) throws Exception {
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
-        if (!writers.hasNext()) {
+    private void compressJPEGAdvanced(BufferedImage image, File output, CompressionOptions options,
+                                      int maxQuality) throws Exception {
+        CodecPool.Lease<ImageWriter> lease = CodecPool.writer("jpeg");
+        if (lease == null) {
             ImageIO.write(image, "jpeg", output);
             return;
         }
 
-        ImageWriter writer = writers.next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-        
-        // Advanced compression settings
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        
-        // Calculate quality based on compression level
-        float quality = calculateQualityFactor(options);
-        param.setCompressionQuality(quality);
-        
-        // Enable progressive encoding for better compression
-        if (shouldUseProgressive(options)) {
-            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
-        }
-        
-        // Optimize Huffman tables
-        if (param.canWriteCompressed()) {
-            try {
-                // Set optimized Huffman tables
-                param.setCompressionType("JPEG");
-            } catch (Exception e) {
-                // Some writers don't support this
-            }
-        }
-        
-        // Chroma subsampling for better compression (4:2:0 is standard)
-        // This is usually automatic, but we can optimize it
-        if (param.canWriteCompressed()) {
-            try {
-                // Use 4:2:0 subsampling for maximum compression
-                if (options.getCompressionLevel().isAggressive()) {
-                    // Force chroma subsampling
-                    param.setCompressionType("JPEG");
-                }
-            } catch (Exception e) {
-                // Ignore
-            }
-        }
+        ImageWriter writer = lease.get();
+        // Subsampling per level, optimized Huffman tables, progressive scans and restart markers
+        JpegEncoderSettings settings = JpegEncoderSettings.forLevel(options,
+                calculateJpegQuality(options, maxQuality), shouldUseProgressive(options));
+        ImageWriteParam param = settings.createWriteParam(writer);
 
-        try (FileImageOutputStream fios = new FileImageOutputStream(output)) {
+        try (lease; FileImageOutputStream fios = new FileImageOutputStream(output)) {
             writer.setOutput(fios);
-            writer.write(null, new IIOImage(image, null, null), param);
-        } finally {
-            writer.dispose();
+            writer.write(null, settings.createImage(writer, image, param), param);
         }
     }
     
-    private int calculateJpegQuality(CompressionOptions options) {
+    /**
+     * Quality for the chosen level, capped at maxQuality (the estimated
+     * quality of a JPEG source, or 100).
+     */
+    private int calculateJpegQuality(CompressionOptions options, int maxQuality) {
+        return Math.min(maxQuality, levelJpegQuality(options));
+    }
+
+    private int levelJpegQuality(CompressionOptions options) {
         CompressionOptions.CompressionLevel level = options.getCompressionLevel();
         switch (level) {
             case MAXIMUM:
@@ -365,7 +726,7 @@ public class ImageCompressor implements FileCompressor {
     }
     
     private float calculateQualityFactor(CompressionOptions options) {
-        return calculateJpegQuality(options) / 100.0f;
+        return levelJpegQuality(options) / 100.0f;
     }
     
     private boolean shouldUseProgressive(CompressionOptions options) {
@@ -374,91 +735,130 @@ public class ImageCompressor implements FileCompressor {
     }
 
     private void compressPNG(BufferedImage image, File output, CompressionOptions options) throws Exception {
-        // Try advanced external tools first
-        if (tryAdvancedPngCompression(image, output, options)) {
+        if (options.isRaceEncoders()) {
+            EncoderRace race = new EncoderRace(output.getName(), AppConfig.getEncoderRaceBudgetMs());
+            if (allowsLossyPng(options) && ToolRegistry.isAvailable(ToolRegistry.PNGQUANT)) {
+                race.add("pngquant", out -> tryPngQuant(image, out, options));
+            } else if (allowsLossyPng(options)) {
+                race.add("quantize", out -> {
+                    BufferedImage indexed = PaletteQuantizer.forLevel(options.getCompressionLevel()).quantize(image);
+                    if (indexed == null) {
+                        return false;
+                    }
+                    compressPNGAdvanced(indexed, out, options);
+                    return true;
+                });
+            }
+            if (ToolRegistry.isAvailable(ToolRegistry.ZOPFLIPNG)) {
+                race.add("zopflipng", out -> tryZopfliPng(image, out, options));
+            }
+            if (ToolRegistry.isAvailable(ToolRegistry.OPTIPNG)) {
+                race.add("optipng", out -> tryOptiPng(image, out, options));
+            }
+            race.add("java", out -> {
+                compressPNGAdvanced(image, out, options);
+                return true;
+            });
+            runRace(race, image, output, options, out -> {
+                compressPNGAdvanced(image, out, options);
+                return true;
+            });
             return;
         }
-        
-        // Fallback to Java-based advanced compression
-        compressPNGAdvanced(image, output, options);
-    }
-    
-    private boolean tryAdvancedPngCompression(BufferedImage image, File output, CompressionOptions options) {
+
+        BufferedImage source = image;
         // Try pngquant for lossy compression (best results)
-        if (options.getCompressionLevel().isAggressive() || 
-            options.getCompressionLevel() == CompressionOptions.CompressionLevel.BALANCED) {
+        if (allowsLossyPng(options)) {
             if (tryPngQuant(image, output, options)) {
-                return true;
+                return;
+            }
+            // Without pngquant, quantize in-process; the lossless steps below then store the indexed image
+            BufferedImage indexed = PaletteQuantizer.forLevel(options.getCompressionLevel()).quantize(image);
+            if (indexed != null) {
+                source = indexed;
             }
         }
         
         // Try zopflipng for lossless compression (best compression ratio)
-        if (tryZopfliPng(image, output, options)) {
-            return true;
+        if (tryZopfliPng(source, output, options)) {
+            return;
         }
         
         // Try optipng for optimization
-        if (tryOptiPng(image, output, options)) {
-            return true;
+        if (tryOptiPng(source, output, options)) {
+            return;
         }
         
-        return false;
+        // Fallback to Java-based advanced compression
+        compressPNGAdvanced(source, output, options);
+    }
+    
+    private boolean allowsLossyPng(CompressionOptions options) {
+        return options.getCompressionLevel().isAggressive()
+                || options.getCompressionLevel() == CompressionOptions.CompressionLevel.BALANCED;
+    }
+
+    /**
+     * Run every candidate encoder at once and keep the smallest result. With
+     * only the Java encoder available this is just a plain encode. When a
+     * perceptual threshold is set, candidates below it are rejected, and if
+     * none pass the fallback encoder writes the output ungated.
+     */
+    private void runRace(EncoderRace race, BufferedImage image, File output, CompressionOptions options,
+                         EncoderRace.Encoder fallback) throws Exception {
+        if (options.getMinSsim() > 0) {
+            SsimMetric metric = new SsimMetric(image);
+            race.qualityGate(file -> {
+                try {
+                    return metric.compare(file) >= options.getMinSsim();
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+        }
+        if (race.run(output) == null) {
+            LoggerUtil.logWarning("No encoder passed for " + output.getName() + ", using the Java encoder");
+            if (!fallback.encode(output)) {
+                throw new IOException("No encoder produced output for " + output.getName());
+            }
+            FallbackReport.mark("no encoder won the race");
+        }
     }
     
     private boolean tryPngQuant(BufferedImage image, File output, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("pngquant", "--version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.PNGQUANT)) {
                 return false;
             }
             
-            File tempInput = File.createTempFile("pngquant_input_", ".png");
-            ImageIO.write(image, "png", tempInput);
-            
-            CompressionOptions.CompressionLevel level = options.getCompressionLevel();
-            int qualityMin, qualityMax, maxColors;
-            
-            switch (level) {
-                case MAXIMUM:
-                    qualityMin = 50;
-                    qualityMax = 80;
-                    maxColors = 128;
-                    break;
-                case BALANCED:
-                    qualityMin = 70;
-                    qualityMax = 90;
-                    maxColors = 192;
-                    break;
-                case BEST_QUALITY:
-                    qualityMin = 90;
-                    qualityMax = 100;
-                    maxColors = 256;
-                    break;
-                default:
-                    qualityMin = 70;
-                    qualityMax = 90;
-                    maxColors = 192;
-            }
+            // Same quality bands as the in-process quantizer
+            PaletteQuantizer bands = PaletteQuantizer.forLevel(options.getCompressionLevel());
+            int qualityMin = bands.getMinQuality();
+            int qualityMax = bands.getMaxQuality();
+            int maxColors = bands.getMaxColors();
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "pngquant",
                 "--force",
                 "--speed", "1", // Slowest = best compression
                 "--quality", String.format("%d-%d", qualityMin, qualityMax),
                 "--colors", String.valueOf(maxColors),
                 "--output", output.getAbsolutePath(),
-                tempInput.getAbsolutePath()
+                "-" // Read the PNG from stdin
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(60, TimeUnit.SECONDS);
-            
-            tempInput.delete();
+            ProcessRunner.Result result = runner
+                .stdin(EncoderBridge.png(image))
+                .timeout(60, TimeUnit.SECONDS)
+                .run();
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used pngquant for PNG compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // pngquant not available
         }
@@ -467,15 +867,14 @@ public class ImageCompressor implements FileCompressor {
     
     private boolean tryZopfliPng(BufferedImage image, File output, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("zopflipng", "--version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.ZOPFLIPNG)) {
                 return false;
             }
             
-            File tempInput = File.createTempFile("zopfli_input_", ".png");
-            ImageIO.write(image, "png", tempInput);
+            // zopflipng only works on files
+            File tempInput = EncoderBridge.writeTempPng(image, "zopfli_input_");
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "zopflipng",
                 "--lossy_transparent", // Allow lossy compression of alpha
                 "--filters", "0meb", // Try multiple filter strategies
@@ -484,15 +883,20 @@ public class ImageCompressor implements FileCompressor {
                 output.getAbsolutePath()
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(120, TimeUnit.SECONDS);
-            
-            tempInput.delete();
+            ProcessRunner.Result result;
+            try {
+                result = runner.timeout(120, TimeUnit.SECONDS).run();
+            } finally {
+                tempInput.delete();
+            }
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used zopflipng for PNG compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // zopflipng not available
         }
@@ -501,13 +905,12 @@ public class ImageCompressor implements FileCompressor {
     
     private boolean tryOptiPng(BufferedImage image, File output, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("optipng", "-v").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.OPTIPNG)) {
                 return false;
             }
             
-            File tempInput = File.createTempFile("optipng_input_", ".png");
-            ImageIO.write(image, "png", tempInput);
+            // optipng only works on files
+            File tempInput = EncoderBridge.writeTempPng(image, "optipng_input_");
             
             CompressionOptions.CompressionLevel level = options.getCompressionLevel();
             int optimizationLevel;
@@ -522,22 +925,27 @@ public class ImageCompressor implements FileCompressor {
                     optimizationLevel = 3;
             }
             
-            ProcessBuilder pb = new ProcessBuilder(
+            ProcessRunner runner = ProcessRunner.of(
                 "optipng",
                 "-o" + optimizationLevel,
                 "-out", output.getAbsolutePath(),
                 tempInput.getAbsolutePath()
             );
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(60, TimeUnit.SECONDS);
-            
-            tempInput.delete();
+            ProcessRunner.Result result;
+            try {
+                result = runner.timeout(60, TimeUnit.SECONDS).run();
+            } finally {
+                tempInput.delete();
+            }
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used optipng for PNG compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // optipng not available
         }
@@ -545,13 +953,13 @@ public class ImageCompressor implements FileCompressor {
     }
     
     private void compressPNGAdvanced(BufferedImage image, File output, CompressionOptions options) throws Exception {
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
-        if (!writers.hasNext()) {
+        CodecPool.Lease<ImageWriter> lease = CodecPool.writer("png");
+        if (lease == null) {
             ImageIO.write(image, "png", output);
             return;
         }
 
-        ImageWriter writer = writers.next();
+        ImageWriter writer = lease.get();
         ImageWriteParam param = writer.getDefaultWriteParam();
         
         // Advanced PNG compression
@@ -569,11 +977,9 @@ public class ImageCompressor implements FileCompressor {
             }
         }
 
-        try (FileImageOutputStream fios = new FileImageOutputStream(output)) {
+        try (lease; FileImageOutputStream fios = new FileImageOutputStream(output)) {
             writer.setOutput(fios);
             writer.write(null, new IIOImage(image, null, null), param);
-        } finally {
-            writer.dispose();
         }
     }
     
@@ -603,13 +1009,13 @@ public class ImageCompressor implements FileCompressor {
     
     private boolean tryCWebP(BufferedImage image, File output, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("cwebp", "-version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS)) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.CWEBP)) {
                 return false;
             }
             
-            File tempInput = File.createTempFile("cwebp_input_", ".png");
-            ImageIO.write(image, "png", tempInput);
+            boolean viaStdin = ToolRegistry.hasCapability(ToolRegistry.CWEBP_STDIN);
+            File tempInput = viaStdin ? null : EncoderBridge.writeTempPng(image, "cwebp_input_");
+            String inputPath = viaStdin ? "-" : tempInput.getAbsolutePath();
             
             CompressionOptions.CompressionLevel level = options.getCompressionLevel();
             int quality;
@@ -630,38 +1036,48 @@ public class ImageCompressor implements FileCompressor {
                     quality = 80;
             }
             
-            ProcessBuilder pb = new ProcessBuilder();
+            ProcessRunner runner;
             if (lossless) {
-                pb.command(
+                runner = ProcessRunner.of(
                     "cwebp",
                     "-lossless",
                     "-z", "9", // Maximum compression effort
                     "-m", "6", // Maximum method (0-6)
-                    tempInput.getAbsolutePath(),
-                    "-o", output.getAbsolutePath()
+                    "-o", output.getAbsolutePath(),
+                    "--", inputPath
                 );
             } else {
-                pb.command(
+                runner = ProcessRunner.of(
                     "cwebp",
                     "-q", String.valueOf(quality),
                     "-m", "6", // Maximum method
                     "-pass", "10", // Multi-pass encoding
                     "-af", // Auto-filter
                     "-f", "50", // Filter strength
-                    tempInput.getAbsolutePath(),
-                    "-o", output.getAbsolutePath()
+                    "-o", output.getAbsolutePath(),
+                    "--", inputPath
                 );
             }
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(120, TimeUnit.SECONDS);
-            
-            tempInput.delete();
+            if (viaStdin) {
+                runner.stdin(EncoderBridge.png(image));
+            }
+            ProcessRunner.Result result;
+            try {
+                result = runner.timeout(120, TimeUnit.SECONDS).run();
+            } finally {
+                if (tempInput != null) {
+                    tempInput.delete();
+                }
+            }
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used cwebp for WebP compression");
                 return true;
             }
+        } catch (InterruptedException e) {
+            // Job cancelled - the tool was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // cwebp not available
         }
@@ -669,18 +1085,14 @@ public class ImageCompressor implements FileCompressor {
     }
     
     private void compressWebPAdvanced(BufferedImage image, File output, CompressionOptions options) throws Exception {
-        ImageWriter writer = null;
-        for (Iterator<ImageWriter> it = ImageIO.getImageWritersByMIMEType("image/webp"); it.hasNext(); ) {
-            writer = it.next();
-            break;
-        }
-
-        if (writer == null) {
+        CodecPool.Lease<ImageWriter> lease = CodecPool.writer("image/webp");
+        if (lease == null) {
             // Fallback to JPEG if WebP not supported
-            compressJPEG(image, output, options);
+            compressJPEG(image, output, options, 100);
             return;
         }
 
+        ImageWriter writer = lease.get();
         ImageWriteParam param = writer.getDefaultWriteParam();
         param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
 
@@ -692,11 +1104,9 @@ public class ImageCompressor implements FileCompressor {
             // Some WebP writers don't support quality setting
         }
 
-        try (FileImageOutputStream fios = new FileImageOutputStream(output)) {
+        try (lease; FileImageOutputStream fios = new FileImageOutputStream(output)) {
             writer.setOutput(fios);
             writer.write(null, new IIOImage(image, null, null), param);
-        } finally {
-            writer.dispose();
         }
     }
 
@@ -738,4 +1148,25 @@ public class ImageCompressor implements FileCompressor {
     public String getSupportedFormats() {
         return "jpg,jpeg,png,gif,bmp,tiff,tif,webp";
     }
-}
\ No newline at end of file
+
+    // A quality encoder together with whatever it holds (a pooled writer, cwebp temp files)
+    private static final class SearchEncoder implements TargetSizeEncoder.QualityEncoder, AutoCloseable {
+        private final TargetSizeEncoder.QualityEncoder encoder;
+        private final Runnable release;
+
+        private SearchEncoder(TargetSizeEncoder.QualityEncoder encoder, Runnable release) {
+            this.encoder = encoder;
+            this.release = release;
+        }
+
+        @Override
+        public void encode(BufferedImage image, int quality, OutputStream out) throws IOException {
+            encoder.encode(image, quality, out);
+        }
+
+        @Override
+        public void close() {
+            release.run();
+        }
+    }
+}
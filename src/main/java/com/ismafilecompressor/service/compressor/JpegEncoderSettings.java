@@ -0,0 +1,158 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.model.CompressionOptions;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import java.awt.image.BufferedImage;
+
+/**
+ * Encoder controls for the ImageIO JPEG writer that are not reachable through
+ * ImageWriteParam alone. Chroma subsampling and restart intervals are written
+ * into the native javax_imageio_jpeg_image_1.0 metadata tree, which both the
+ * JDK writer and the TwelveMonkeys writer (a wrapper around it) honour.
+ */
+public final class JpegEncoderSettings {
+    private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    public enum ChromaSubsampling {
+        YUV420(2, 2),
+        YUV422(2, 1),
+        YUV444(1, 1);
+
+        // Luma sampling factors; chroma stays at 1x1
+        private final int horizontal;
+        private final int vertical;
+
+        ChromaSubsampling(int horizontal, int vertical) {
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+    }
+
+    private final int quality;
+    private final ChromaSubsampling subsampling;
+    private final boolean progressive;
+    private final int restartInterval;
+
+    public JpegEncoderSettings(int quality, ChromaSubsampling subsampling, boolean progressive, int restartInterval) {
+        this.quality = quality;
+        this.subsampling = subsampling;
+        this.progressive = progressive;
+        this.restartInterval = restartInterval;
+    }
+
+    /**
+     * Settings for a compression level: 4:2:0 unless the level asks for high
+     * quality, where chroma detail is worth the extra bytes.
+     */
+    public static JpegEncoderSettings forLevel(CompressionOptions options, int quality, boolean progressive) {
+        ChromaSubsampling subsampling;
+        switch (options.getCompressionLevel()) {
+            case BEST_QUALITY:
+                subsampling = ChromaSubsampling.YUV444;
+                break;
+            case CUSTOM:
+                subsampling = quality >= 90 ? ChromaSubsampling.YUV444 : ChromaSubsampling.YUV420;
+                break;
+            default:
+                subsampling = ChromaSubsampling.YUV420;
+        }
+        return new JpegEncoderSettings(quality, subsampling, progressive, AppConfig.getJpegRestartInterval());
+    }
+
+    public int getQuality() { return quality; }
+    public ChromaSubsampling getSubsampling() { return subsampling; }
+    public boolean isProgressive() { return progressive; }
+    public int getRestartInterval() { return restartInterval; }
+
+    public ImageWriteParam createWriteParam(ImageWriter writer) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100.0f);
+        if (progressive) {
+            // libjpeg's standard progression; its tables are always optimized
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        } else if (param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+        }
+        return param;
+    }
+
+    /**
+     * Image metadata carrying the sampling factors and restart interval, or
+     * null if the writer does not expose the native JPEG tree.
+     */
+    public IIOMetadata createMetadata(ImageWriter writer, BufferedImage image, ImageWriteParam param) {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (metadata == null || !isNativeFormatSupported(metadata)) {
+            return null;
+        }
+
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(NATIVE_FORMAT);
+        IIOMetadataNode markerSequence = firstChild(root, "markerSequence");
+        if (markerSequence == null) {
+            return null;
+        }
+
+        IIOMetadataNode sof = firstChild(markerSequence, "sof");
+        if (sof != null && sof.getElementsByTagName("componentSpec").getLength() == 3) {
+            // Grayscale has a single component and nothing to subsample
+            IIOMetadataNode luma = (IIOMetadataNode) sof.getElementsByTagName("componentSpec").item(0);
+            luma.setAttribute("HsamplingFactor", String.valueOf(subsampling.horizontal));
+            luma.setAttribute("VsamplingFactor", String.valueOf(subsampling.vertical));
+        }
+
+        if (restartInterval > 0 && firstChild(markerSequence, "dri") == null) {
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            // DRI must precede the scans; placing it before SOF keeps it ahead of all of them
+            markerSequence.insertBefore(dri, sof != null ? sof : markerSequence.getFirstChild());
+        }
+
+        try {
+            metadata.setFromTree(NATIVE_FORMAT, root);
+        } catch (IIOInvalidTreeException e) {
+            return null;
+        }
+        return metadata;
+    }
+
+    /**
+     * Convenience for callers that only need the image plus metadata pair.
+     */
+    public IIOImage createImage(ImageWriter writer, BufferedImage image, ImageWriteParam param) {
+        return new IIOImage(image, null, createMetadata(writer, image, param));
+    }
+
+    private static boolean isNativeFormatSupported(IIOMetadata metadata) {
+        if (NATIVE_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return true;
+        }
+        String[] extra = metadata.getExtraMetadataFormatNames();
+        if (extra != null) {
+            for (String name : extra) {
+                if (NATIVE_FORMAT.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static IIOMetadataNode firstChild(IIOMetadataNode parent, String name) {
+        for (org.w3c.dom.Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (name.equals(child.getNodeName())) {
+                return (IIOMetadataNode) child;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,162 @@
+package com.ismafilecompressor.service.compressor;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.IOException;
+
+/**
+ * Decodes a JPEG the ImageIO reader refuses to colour-convert (odd ICC
+ * profiles, CMYK) from its raw raster. The raster holds the samples as coded,
+ * so the colour transform is taken from the stream itself: the Adobe APP14
+ * transform flag when present, otherwise the JFIF marker and component ids,
+ * the same rules libjpeg applies.
+ */
+final class JpegRawDecoder {
+    private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private enum Layout { GRAY, RGB, YCBCR, CMYK, INVERTED_CMYK, YCCK }
+
+    private JpegRawDecoder() {
+    }
+
+    /**
+     * Frame 0 as TYPE_INT_RGB, or null when the reader cannot hand out rasters
+     * or the stream does not say how its components are coded.
+     */
+    static BufferedImage decode(ImageReader reader, ImageReadParam param) throws IOException {
+        if (!reader.canReadRaster()) {
+            return null;
+        }
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !NATIVE_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(NATIVE_FORMAT);
+        Raster raster = reader.readRaster(0, param);
+        Layout layout = layoutOf(root, raster.getNumBands());
+        if (layout == null) {
+            return null;
+        }
+
+        int bands = raster.getNumBands();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        // 12-bit JPEGs carry samples up to 4095; scale every band to 8 bits
+        int[] maxValue = new int[bands];
+        for (int b = 0; b < bands; b++) {
+            maxValue[b] = (1 << raster.getSampleModel().getSampleSize(b)) - 1;
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] sample = new int[bands];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.getPixel(raster.getMinX() + x, raster.getMinY() + y, sample);
+                for (int b = 0; b < bands; b++) {
+                    if (maxValue[b] != 255) {
+                        sample[b] = (sample[b] * 255 + maxValue[b] / 2) / maxValue[b];
+                    }
+                }
+                pixels[y * width + x] = toRgb(layout, sample);
+            }
+        }
+        return image;
+    }
+
+    private static Layout layoutOf(IIOMetadataNode root, int bands) {
+        IIOMetadataNode adobe = find(root, "app14Adobe");
+        int transform = adobe != null ? parseInt(adobe.getAttribute("transform"), -1) : -1;
+        switch (bands) {
+            case 1:
+                return Layout.GRAY;
+            case 3:
+                if (adobe != null) {
+                    return transform == 0 ? Layout.RGB : transform == 1 ? Layout.YCBCR : null;
+                }
+                if (find(root, "app0JFIF") != null) {
+                    return Layout.YCBCR;
+                }
+                return hasRgbComponentIds(root) ? Layout.RGB : Layout.YCBCR;
+            case 4:
+                if (adobe == null) {
+                    return Layout.CMYK;
+                }
+                // Adobe writes CMYK and YCCK with every channel inverted
+                return transform == 0 ? Layout.INVERTED_CMYK : transform == 2 ? Layout.YCCK : null;
+            default:
+                return null;
+        }
+    }
+
+    private static int toRgb(Layout layout, int[] s) {
+        int r, g, b;
+        switch (layout) {
+            case GRAY:
+                r = g = b = s[0];
+                break;
+            case RGB:
+                r = s[0];
+                g = s[1];
+                b = s[2];
+                break;
+            case YCBCR:
+                r = clamp(s[0] + 1.402 * (s[2] - 128));
+                g = clamp(s[0] - 0.344136 * (s[1] - 128) - 0.714136 * (s[2] - 128));
+                b = clamp(s[0] + 1.772 * (s[1] - 128));
+                break;
+            case CMYK:
+                r = (255 - s[0]) * (255 - s[3]) / 255;
+                g = (255 - s[1]) * (255 - s[3]) / 255;
+                b = (255 - s[2]) * (255 - s[3]) / 255;
+                break;
+            case INVERTED_CMYK:
+                r = s[0] * s[3] / 255;
+                g = s[1] * s[3] / 255;
+                b = s[2] * s[3] / 255;
+                break;
+            default:
+                // YCC decodes to the inverted CMY channels; K stays as stored
+                r = clamp(s[0] + 1.402 * (s[2] - 128)) * s[3] / 255;
+                g = clamp(s[0] - 0.344136 * (s[1] - 128) - 0.714136 * (s[2] - 128)) * s[3] / 255;
+                b = clamp(s[0] + 1.772 * (s[1] - 128)) * s[3] / 255;
+                break;
+        }
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static boolean hasRgbComponentIds(IIOMetadataNode root) {
+        IIOMetadataNode sof = find(root, "sof");
+        if (sof == null || sof.getElementsByTagName("componentSpec").getLength() != 3) {
+            return false;
+        }
+        String ids = "";
+        for (int i = 0; i < 3; i++) {
+            IIOMetadataNode spec = (IIOMetadataNode) sof.getElementsByTagName("componentSpec").item(i);
+            ids += (char) parseInt(spec.getAttribute("componentId"), 0);
+        }
+        return "RGB".equals(ids);
+    }
+
+    private static IIOMetadataNode find(IIOMetadataNode root, String name) {
+        org.w3c.dom.NodeList nodes = root.getElementsByTagName(name);
+        return nodes.getLength() > 0 ? (IIOMetadataNode) nodes.item(0) : null;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static int clamp(double value) {
+        return Math.max(0, Math.min(255, (int) Math.round(value)));
+    }
+}
@@ -0,0 +1,142 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.util.CpuSlots;
+import com.ismafilecompressor.util.LoggerUtil;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders every page of a PDF and encodes it, spread over a small pool of
+ * worker threads. The first worker runs on the caller's CPU slot; each extra
+ * one takes a slot of its own if one is free when it starts and otherwise
+ * does not start, so PDFs on the CPU lane never render on more threads than
+ * there are slots. PDDocument and PDFRenderer are not safe to share, so each
+ * worker loads its own copy of the file, with its share of the PDFBox heap
+ * cap and the rest in scratch files. Workers pull the next page number from a
+ * shared counter, which keeps them busy when page costs differ. The encoded
+ * pages are handed to the caller's thread in page order, and workers never
+ * run more than a window of pages ahead of it, so memory stays bounded
+ * however long the document is.
+ */
+public class PageRasterizer {
+    private static final long MB = 1024 * 1024;
+
+    private final File input;
+    private final float dpi;
+    private final int workers;
+    private final MemoryUsageSetting memory;
+    private final int window;
+
+    public PageRasterizer(File input, float dpi, int pages) {
+        this.input = input;
+        this.dpi = dpi;
+        this.workers = Math.max(1, Math.min(pages,
+                Math.min(AppConfig.getThreadCount(), Runtime.getRuntime().availableProcessors())));
+        // Worker copies come on top of the caller's document; together they stay within one heap cap
+        this.memory = MemoryUsageSetting.setupMixed(Math.max(1, AppConfig.getPdfHeapMb() / workers) * MB);
+        this.window = Math.max(workers, AppConfig.getPdfWindowPages());
+    }
+
+    /**
+     * Render and encode every page, passing each to sink on the calling
+     * thread in page order.
+     */
+    public void render(int pages, PageEncoder encoder, PageSink sink) throws IOException, InterruptedException {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<byte[]>[] encoded = new CompletableFuture[pages];
+        for (int i = 0; i < pages; i++) {
+            encoded[i] = new CompletableFuture<>();
+        }
+        AtomicInteger next = new AtomicInteger();
+        Semaphore ahead = new Semaphore(window);
+        AtomicInteger threadNumber = new AtomicInteger();
+        AtomicInteger started = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+                r -> new Thread(r, "pdf-render-" + threadNumber.incrementAndGet()));
+        long start = System.nanoTime();
+        try {
+            for (int w = 0; w < workers; w++) {
+                boolean extra = w > 0;
+                executor.execute(() -> {
+                    CpuSlots.Slot slot = extra ? CpuSlots.tryAcquire() : null;
+                    if (extra && slot == null) {
+                        return;
+                    }
+                    started.incrementAndGet();
+                    try (slot; PDDocument document = PDDocument.load(input, memory)) {
+                        PDFRenderer renderer = new PDFRenderer(document);
+                        while (true) {
+                            // Wait for the caller to drain a page before starting another
+                            ahead.acquire();
+                            int page = next.getAndIncrement();
+                            if (page >= pages) {
+                                ahead.release();
+                                break;
+                            }
+                            BufferedImage image = renderer.renderImageWithDPI(page, dpi, ImageType.RGB);
+                            encoded[page].complete(encoder.encode(image, page));
+                        }
+                    } catch (Throwable e) {
+                        // One missing page fails the whole document; wake the caller
+                        next.set(pages);
+                        for (CompletableFuture<byte[]> page : encoded) {
+                            page.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < pages; i++) {
+                byte[] bytes;
+                try {
+                    bytes = encoded[i].get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    throw new IOException("Page rendering failed: " + cause.getMessage(), cause);
+                }
+                encoded[i] = null;
+                sink.accept(i, bytes);
+                ahead.release();
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        LoggerUtil.logInfo(String.format("Rendered %d pages at %.0f dpi on %d workers in %d ms",
+                pages, dpi, started.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Turns one rendered page into the bytes to embed. Called from worker
+     * threads, so implementations must not touch shared PDFBox objects.
+     */
+    public interface PageEncoder {
+        byte[] encode(BufferedImage page, int pageIndex) throws IOException;
+    }
+
+    /**
+     * Receives encoded pages in order, on the thread that called render.
+     */
+    public interface PageSink {
+        void accept(int pageIndex, byte[] encoded) throws IOException;
+    }
+}
@@ -0,0 +1,447 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * In-process stand-in for pngquant: reduces an image to an indexed palette of
+ * at most maxColors entries. Colours are binned to 5 bits per channel (3 for
+ * alpha), split by median cut in premultiplied Oklab, refined once against
+ * the exact pixels, then mapped with optional Floyd-Steinberg dithering.
+ * Histogram, refinement and mapping run over one horizontal stripe per core
+ * in parallel; dithering error does not cross stripe boundaries.
+ */
+public class PaletteQuantizer {
+    private static final int BIN_BITS = 18;
+    // Stripes are at least this tall so dither seams stay rare
+    private static final int MIN_STRIPE_ROWS = 64;
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private final int maxColors;
+    private final int minQuality;
+    private final int maxQuality;
+    private final boolean dither;
+
+    public PaletteQuantizer(int maxColors, int minQuality, int maxQuality, boolean dither) {
+        this.maxColors = Math.max(2, Math.min(256, maxColors));
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.dither = dither;
+    }
+
+    /**
+     * The pngquant quality band and colour limit for a compression level.
+     */
+    public static PaletteQuantizer forLevel(CompressionOptions.CompressionLevel level) {
+        switch (level) {
+            case MAXIMUM:
+                return new PaletteQuantizer(128, 50, 80, true);
+            case BEST_QUALITY:
+                return new PaletteQuantizer(256, 90, 100, true);
+            case BALANCED:
+            default:
+                return new PaletteQuantizer(192, 70, 90, true);
+        }
+    }
+
+    public int getMaxColors() { return maxColors; }
+    public int getMinQuality() { return minQuality; }
+    public int getMaxQuality() { return maxQuality; }
+
+    /**
+     * Indexed copy of the image, or null when the palette cannot reach
+     * minQuality (pngquant's exit 99), in which case the caller should stay lossless.
+     */
+    public BufferedImage quantize(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = PixelKernels.packedPixels(image);
+        if (pixels == null) {
+            pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+        boolean alpha = image.getColorModel().hasAlpha();
+        int[] argb = pixels;
+        int stripes = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                height / MIN_STRIPE_ROWS));
+        int rows = (height + stripes - 1) / stripes;
+
+        // 1. Histogram of binned colours, one partial per worker
+        int[] counts = IntStream.range(0, stripes).parallel()
+                .mapToObj(s -> histogram(argb, width, Math.min(height, s * rows),
+                        Math.min(height, (s + 1) * rows), alpha))
+                .reduce(PaletteQuantizer::merge)
+                .orElseGet(() -> new int[1 << BIN_BITS]);
+
+        // 2. Median cut over the occupied bins
+        int used = 0;
+        for (int count : counts) {
+            if (count > 0) used++;
+        }
+        int[] bins = new int[used];
+        float[][] lab = new float[used][];
+        used = 0;
+        for (int bin = 0; bin < counts.length; bin++) {
+            if (counts[bin] > 0) {
+                bins[used] = bin;
+                lab[used] = oklab(binColor(bin));
+                used++;
+            }
+        }
+        float[][] palette = medianCut(bins, lab, counts, quality2mse(maxQuality));
+
+        // 3. One Lloyd step on the exact pixels: each entry becomes the mean of what maps to it
+        int[] nearest = new int[1 << BIN_BITS];
+        Arrays.fill(nearest, -1);
+        float[][] paletteLab = palette;
+        long[] sums = IntStream.range(0, stripes).parallel()
+                .mapToObj(s -> accumulate(argb, width, Math.min(height, s * rows), Math.min(height, (s + 1) * rows),
+                        alpha, paletteLab, nearest))
+                .reduce(PaletteQuantizer::add)
+                .orElseGet(() -> new long[palette.length * 5]);
+        int[] means = new int[palette.length];
+        int size = 0;
+        for (int i = 0; i < palette.length; i++) {
+            long n = sums[i * 5 + 4];
+            if (n > 0) {
+                means[size++] = (int) ((sums[i * 5] + n / 2) / n) << 24 | (int) ((sums[i * 5 + 1] + n / 2) / n) << 16
+                        | (int) ((sums[i * 5 + 2] + n / 2) / n) << 8 | (int) ((sums[i * 5 + 3] + n / 2) / n);
+            }
+        }
+        int[] colors = Arrays.copyOf(means, size);
+        float[][] finalLab = new float[size][];
+        for (int i = 0; i < size; i++) {
+            finalLab[i] = oklab(colors[i]);
+        }
+
+        double mse = 0;
+        long total = 0;
+        Arrays.fill(nearest, -1);
+        for (int i = 0; i < bins.length; i++) {
+            int index = nearestIndex(finalLab, lab[i]);
+            nearest[bins[i]] = index;
+            mse += counts[bins[i]] * distance(finalLab[index], lab[i]);
+            total += counts[bins[i]];
+        }
+        mse /= Math.max(1, total);
+        int quality = mse2quality(mse);
+        if (quality < minQuality) {
+            LoggerUtil.logInfo(String.format("Palette of %d colours reaches quality %d, below %d; keeping truecolour",
+                    size, quality, minQuality));
+            return null;
+        }
+
+        // 4. Map every pixel, dithering within each stripe
+        IndexColorModel model = colorModel(colors, alpha);
+        BufferedImage indexed = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, model);
+        byte[] out = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+        IntStream.range(0, stripes).parallel().forEach(s -> map(argb, out, width, Math.min(height, s * rows),
+                Math.min(height, (s + 1) * rows), alpha, colors, finalLab, nearest));
+
+        LoggerUtil.logInfo(String.format("Quantized %dx%d to %d colours, quality %d%s",
+                width, height, size, quality, dither ? ", dithered" : ""));
+        return indexed;
+    }
+
+    // ---- Histogram ----
+
+    private static int[] histogram(int[] argb, int width, int fromRow, int toRow, boolean alpha) {
+        int[] counts = new int[1 << BIN_BITS];
+        for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+            counts[bin(argb[i], alpha)]++;
+        }
+        return counts;
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+
+    private static int bin(int argb, boolean alpha) {
+        int a = alpha ? (argb >>> 29) : 7;
+        return a << 15 | ((argb >> 19) & 0x1F) << 10 | ((argb >> 11) & 0x1F) << 5 | ((argb >> 3) & 0x1F);
+    }
+
+    // Centre of a bin as ARGB
+    private static int binColor(int bin) {
+        int a = ((bin >> 15) & 0x7) * 255 / 7;
+        int r = ((bin >> 10) & 0x1F) << 3 | 4;
+        int g = ((bin >> 5) & 0x1F) << 3 | 4;
+        int b = (bin & 0x1F) << 3 | 4;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    // ---- Median cut ----
+
+    /**
+     * Split the box with the largest squared error until there are maxColors
+     * boxes, or the error is already within the target.
+     */
+    private float[][] medianCut(int[] bins, float[][] lab, int[] counts, double targetMse) {
+        Integer[] order = new Integer[bins.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+
+        int[] starts = new int[maxColors];
+        int[] ends = new int[maxColors];
+        double[] errors = new double[maxColors];
+        starts[0] = 0;
+        ends[0] = bins.length;
+        errors[0] = boxError(order, 0, bins.length, bins, lab, counts);
+        int boxes = 1;
+        long total = 0;
+        for (int bin : bins) total += counts[bin];
+
+        while (boxes < maxColors) {
+            double sum = 0;
+            int worst = -1;
+            for (int b = 0; b < boxes; b++) {
+                sum += errors[b];
+                if (ends[b] - starts[b] > 1 && (worst < 0 || errors[b] > errors[worst])) {
+                    worst = b;
+                }
+            }
+            if (worst < 0 || sum / Math.max(1, total) <= targetMse) {
+                break;
+            }
+
+            int start = starts[worst];
+            int end = ends[worst];
+            int axis = widestAxis(order, start, end, bins, lab, counts);
+            Arrays.sort(order, start, end, (x, y) -> Float.compare(lab[x][axis], lab[y][axis]));
+            long half = 0;
+            long boxTotal = 0;
+            for (int i = start; i < end; i++) boxTotal += counts[bins[order[i]]];
+            int split = start + 1;
+            for (int i = start; i < end - 1; i++) {
+                half += counts[bins[order[i]]];
+                split = i + 1;
+                if (half * 2 >= boxTotal) break;
+            }
+
+            starts[boxes] = split;
+            ends[boxes] = end;
+            ends[worst] = split;
+            errors[worst] = boxError(order, start, split, bins, lab, counts);
+            errors[boxes] = boxError(order, split, end, bins, lab, counts);
+            boxes++;
+        }
+
+        float[][] palette = new float[boxes][];
+        for (int b = 0; b < boxes; b++) {
+            palette[b] = mean(order, starts[b], ends[b], bins, lab, counts);
+        }
+        return palette;
+    }
+
+    private static float[] mean(Integer[] order, int start, int end, int[] bins, float[][] lab, int[] counts) {
+        double[] sum = new double[4];
+        long n = 0;
+        for (int i = start; i < end; i++) {
+            int c = counts[bins[order[i]]];
+            float[] v = lab[order[i]];
+            for (int k = 0; k < 4; k++) sum[k] += v[k] * c;
+            n += c;
+        }
+        return new float[] { (float) (sum[0] / n), (float) (sum[1] / n), (float) (sum[2] / n), (float) (sum[3] / n) };
+    }
+
+    private static double boxError(Integer[] order, int start, int end, int[] bins, float[][] lab, int[] counts) {
+        float[] m = mean(order, start, end, bins, lab, counts);
+        double error = 0;
+        for (int i = start; i < end; i++) {
+            error += counts[bins[order[i]]] * distance(m, lab[order[i]]);
+        }
+        return error;
+    }
+
+    private static int widestAxis(Integer[] order, int start, int end, int[] bins, float[][] lab, int[] counts) {
+        float[] m = mean(order, start, end, bins, lab, counts);
+        double[] variance = new double[4];
+        for (int i = start; i < end; i++) {
+            int c = counts[bins[order[i]]];
+            float[] v = lab[order[i]];
+            for (int k = 0; k < 4; k++) {
+                double d = v[k] - m[k];
+                variance[k] += c * d * d;
+            }
+        }
+        int axis = 0;
+        for (int k = 1; k < 4; k++) {
+            if (variance[k] > variance[axis]) axis = k;
+        }
+        return axis;
+    }
+
+    // ---- Refinement and mapping ----
+
+    // Per palette entry: sums of A, R, G, B and the pixel count
+    private static long[] accumulate(int[] argb, int width, int fromRow, int toRow, boolean alpha,
+                                     float[][] palette, int[] nearest) {
+        long[] sums = new long[palette.length * 5];
+        for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+            int p = alpha ? argb[i] : argb[i] | 0xFF000000;
+            int index = lookup(p, alpha, palette, nearest) * 5;
+            sums[index] += p >>> 24;
+            sums[index + 1] += (p >> 16) & 0xFF;
+            sums[index + 2] += (p >> 8) & 0xFF;
+            sums[index + 3] += p & 0xFF;
+            sums[index + 4]++;
+        }
+        return sums;
+    }
+
+    private static long[] add(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+
+    // Nearest entry for the pixel's bin; racing stripes write the same value, so no locking
+    private static int lookup(int argb, boolean alpha, float[][] palette, int[] nearest) {
+        int bin = bin(argb, alpha);
+        int index = nearest[bin];
+        if (index < 0) {
+            index = nearestIndex(palette, oklab(binColor(bin)));
+            nearest[bin] = index;
+        }
+        return index;
+    }
+
+    private void map(int[] argb, byte[] out, int width, int fromRow, int toRow, boolean alpha,
+                     int[] colors, float[][] palette, int[] nearest) {
+        // Error rows for A, R, G, B with one pixel of padding on each side
+        float[] current = new float[(width + 2) * 4];
+        float[] next = new float[(width + 2) * 4];
+        for (int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int p = alpha ? argb[row + x] : argb[row + x] | 0xFF000000;
+                if (!dither) {
+                    out[row + x] = (byte) lookup(p, alpha, palette, nearest);
+                    continue;
+                }
+                int e = (x + 1) * 4;
+                int a = clamp((p >>> 24) + current[e]);
+                int r = clamp(((p >> 16) & 0xFF) + current[e + 1]);
+                int g = clamp(((p >> 8) & 0xFF) + current[e + 2]);
+                int b = clamp((p & 0xFF) + current[e + 3]);
+                int index = lookup(a << 24 | r << 16 | g << 8 | b, alpha, palette, nearest);
+                out[row + x] = (byte) index;
+
+                int chosen = colors[index];
+                diffuse(current, next, e, a - (chosen >>> 24), 0);
+                diffuse(current, next, e, r - ((chosen >> 16) & 0xFF), 1);
+                diffuse(current, next, e, g - ((chosen >> 8) & 0xFF), 2);
+                diffuse(current, next, e, b - (chosen & 0xFF), 3);
+            }
+            float[] swap = current;
+            current = next;
+            next = swap;
+            Arrays.fill(next, 0);
+        }
+    }
+
+    // Floyd-Steinberg weights: 7/16 right, 3/16 below-left, 5/16 below, 1/16 below-right
+    private static void diffuse(float[] current, float[] next, int e, int error, int channel) {
+        if (error == 0) return;
+        current[e + 4 + channel] += error * (7 / 16f);
+        next[e - 4 + channel] += error * (3 / 16f);
+        next[e + channel] += error * (5 / 16f);
+        next[e + 4 + channel] += error * (1 / 16f);
+    }
+
+    private static int clamp(float v) {
+        return v <= 0 ? 0 : v >= 255 ? 255 : Math.round(v);
+    }
+
+    private static IndexColorModel colorModel(int[] colors, boolean alpha) {
+        int n = colors.length;
+        byte[] a = new byte[n];
+        byte[] r = new byte[n];
+        byte[] g = new byte[n];
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = (byte) (colors[i] >>> 24);
+            r[i] = (byte) (colors[i] >> 16);
+            g[i] = (byte) (colors[i] >> 8);
+            b[i] = (byte) colors[i];
+        }
+        return alpha ? new IndexColorModel(8, n, r, g, b, a) : new IndexColorModel(8, n, r, g, b);
+    }
+
+    // ---- Colour space ----
+
+    private static int nearestIndex(float[][] palette, float[] v) {
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            double d = distance(palette[i], v);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static double distance(float[] p, float[] q) {
+        double dl = p[0] - q[0];
+        double da = p[1] - q[1];
+        double db = p[2] - q[2];
+        double dalpha = p[3] - q[3];
+        return dl * dl + da * da + db * db + dalpha * dalpha;
+    }
+
+    /**
+     * Oklab scaled by alpha (so invisible pixels all look alike), plus alpha.
+     */
+    private static float[] oklab(int argb) {
+        float r = SRGB_TO_LINEAR[(argb >> 16) & 0xFF];
+        float g = SRGB_TO_LINEAR[(argb >> 8) & 0xFF];
+        float b = SRGB_TO_LINEAR[argb & 0xFF];
+        float alpha = (argb >>> 24) / 255f;
+
+        double l = Math.cbrt(0.4122214708 * r + 0.5363325363 * g + 0.0514459929 * b);
+        double m = Math.cbrt(0.2119034982 * r + 0.6806995451 * g + 0.1073969566 * b);
+        double s = Math.cbrt(0.0883024619 * r + 0.2817188376 * g + 0.6299787005 * b);
+        return new float[] {
+                (float) ((0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s) * alpha),
+                (float) ((1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s) * alpha),
+                (float) ((0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s) * alpha),
+                alpha
+        };
+    }
+
+    // pngquant's quality-to-MSE curve, applied to squared Oklab distance
+    private static double quality2mse(int quality) {
+        if (quality <= 0) return Double.MAX_VALUE;
+        if (quality >= 100) return 0;
+        double lowQualityFudge = Math.max(0, 0.016 / (0.001 + quality) - 0.001);
+        return lowQualityFudge + 2.5 / Math.pow(210.0 + quality, 1.2) * (100.1 - quality) / 100.0;
+    }
+
+    private static int mse2quality(double mse) {
+        for (int quality = 100; quality > 0; quality--) {
+            if (mse <= quality2mse(quality) + 1e-9) {
+                return quality;
+            }
+        }
+        return 0;
+    }
+}
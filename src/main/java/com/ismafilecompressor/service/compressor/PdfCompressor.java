@@ -1,41 +1,70 @@
 package com.ismafilecompressor.service.compressor;
 
+import com.ismafilecompressor.config.AppConfig;
 import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.service.CompressionScheduler;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.util.CpuSlots;
+import com.ismafilecompressor.util.DecodeMemoryBudget;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDPageContentStream.AppendMode;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.graphics.PDXObject;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class PdfCompressor implements FileCompressor {
+    // Lowest JPEG quality a target-size search may use before it scales images down
+    private static final int TARGET_MIN_QUALITY = 20;
+    private static final long MB = 1024 * 1024;
+    private static final long GHOSTSCRIPT_TIMEOUT_SECONDS = 300;
+    // A split part shorter than this spends more time starting gs and merging than it saves
+    private static final int MIN_PAGES_PER_PART = 16;
 
     @Override
     public File compress(File input, CompressionOptions options) throws Exception {
         // Try Ghostscript first (best PDF compression)
         File gsOutput = tryGhostscriptCompression(input, options);
         if (gsOutput != null && gsOutput.exists() && gsOutput.length() < input.length()) {
-            return gsOutput;
+            long target = options.getTargetSizeBytes();
+            if (target <= 0 || gsOutput.length() <= target) {
+                return gsOutput;
+            }
+            // Ghostscript has no size target; PDFBox can search image quality for one
+            LoggerUtil.logInfo("Ghostscript output is over the target size, using PDFBox");
+            gsOutput.delete();
         }
         
-        // Fallback to PDFBox advanced compression
-        return compressWithPdfBox(input, options);
+        // Fallback to PDFBox advanced compression; on the PROCESS lane it waits for a CPU slot
+        try (CpuSlots.Slot slot = CpuSlots.acquire()) {
+            return compressWithPdfBox(input, options);
+        }
     }
     
     private File tryGhostscriptCompression(File input, CompressionOptions options) {
         try {
-            Process checkProcess = new ProcessBuilder("gs", "--version").start();
-            if (!checkProcess.waitFor(2, TimeUnit.SECONDS) || checkProcess.exitValue() != 0) {
+            if (!ToolRegistry.isAvailable(ToolRegistry.GHOSTSCRIPT)) {
                 return null;
             }
             
@@ -43,134 +72,264 @@ public class PdfCompressor implements FileCompressor {
                     options.getOutputDirectory(), "pdf");
             
             CompressionOptions.CompressionLevel level = options.getCompressionLevel();
-            String imageResolution, colorImageResolution, grayImageResolution;
-            
-            switch (level) {
-                case MAXIMUM:
-                    imageResolution = "150";
-                    colorImageResolution = "150";
-                    grayImageResolution = "150";
-                    break;
-                case BALANCED:
-                    imageResolution = "200";
-                    colorImageResolution = "200";
-                    grayImageResolution = "200";
-                    break;
-                case BEST_QUALITY:
-                    imageResolution = "300";
-                    colorImageResolution = "300";
-                    grayImageResolution = "300";
-                    break;
-                default:
-                    imageResolution = "200";
-                    colorImageResolution = "200";
-                    grayImageResolution = "200";
+            if (tryGhostscriptSplit(input, output, level)) {
+                LoggerUtil.logInfo("Used Ghostscript for PDF compression (split)");
+                return output;
             }
             
-            ProcessBuilder pb = new ProcessBuilder(
-                "gs",
-                "-sDEVICE=pdfwrite",
-                "-dCompatibilityLevel=1.4",
-                "-dPDFSETTINGS=/screen", // /screen, /ebook, /printer, /prepress
-                "-dNOPAUSE",
-                "-dQUIET",
-                "-dBATCH",
-                "-dDetectDuplicateImages=true",
-                "-dCompressFonts=true",
-                "-dSubsetFonts=true",
-                "-dEmbedAllFonts=true",
-                "-sColorConversionStrategy=RGB",
-                "-sColorConversionStrategyForImages=RGB",
-                "-dProcessColorModel=/DeviceRGB",
-                "-dConvertCMYKImagesToRGB=true",
-                "-dDownsampleColorImages=true",
-                "-dColorImageResolution=" + colorImageResolution,
-                "-dDownsampleGrayImages=true",
-                "-dGrayImageResolution=" + grayImageResolution,
-                "-dDownsampleMonoImages=true",
-                "-dMonoImageResolution=" + imageResolution,
-                "-dAutoRotatePages=/None",
-                "-dEncodeColorImages=true",
-                "-dEncodeGrayImages=true",
-                "-dEncodeMonoImages=true",
-                "-sOutputFile=" + output.getAbsolutePath(),
-                input.getAbsolutePath()
-            );
+            ProcessRunner runner = ProcessRunner.of(ghostscriptCommand(input, output, level, 0, 0));
             
-            Process process = pb.start();
-            boolean completed = process.waitFor(300, TimeUnit.SECONDS);
+            ProcessRunner.Result result = runner.timeout(GHOSTSCRIPT_TIMEOUT_SECONDS, TimeUnit.SECONDS).run();
             
-            if (completed && process.exitValue() == 0 && output.exists() && output.length() > 0) {
+            if (result.isSuccess() && output.exists() && output.length() > 0) {
                 LoggerUtil.logInfo("Used Ghostscript for PDF compression");
                 return output;
             }
+            if (result.isTimedOut()) {
+                // The PDFBox result that follows is what load allowed, not what gs would write
+                FallbackReport.mark("Ghostscript timed out");
+            }
+        } catch (InterruptedException e) {
+            // Job cancelled - gs was killed, let the caller see the interrupt
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             // Ghostscript not available
         }
         return null;
     }
+
+    /**
+     * Large PDFs are written by several gs processes, one per page range, and
+     * merged. Returns false when the file is too small or short to be worth
+     * splitting, or when a part failed; the caller then runs gs on the whole file.
+     */
+    private boolean tryGhostscriptSplit(File input, File output, CompressionOptions.CompressionLevel level)
+            throws InterruptedException {
+        long splitMb = AppConfig.getPdfSplitMb();
+        int maxParts = CompressionScheduler.getToolThreadBudget();
+        if (splitMb <= 0 || input.length() < splitMb * MB || maxParts < 2) {
+            return false;
+        }
+        try {
+            int pages = countPages(input);
+            int parts = Math.min(maxParts, pages / MIN_PAGES_PER_PART);
+            if (parts < 2) {
+                return false;
+            }
+            MemoryUsageSetting memory = memoryUsage(isLargeDocument(input));
+            return new GhostscriptSplitPipeline(pages, parts, memory).run(
+                    (firstPage, lastPage, part) -> ghostscriptCommand(input, part, level, firstPage, lastPage),
+                    output, GHOSTSCRIPT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Split Ghostscript run failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Page count read by gs from the trailer and page tree, without loading
+     * the document into this JVM. Returns 0 if gs cannot read the file
+     * (damaged, or encrypted with a user password).
+     */
+    private static int countPages(File input) throws IOException, InterruptedException {
+        String path = input.getAbsolutePath();
+        // The path goes in as a PostScript string literal
+        String literal = path.replace("\\", "\\\\").replace("(", "\\(").replace(")", "\\)");
+        ProcessRunner.Result result = ProcessRunner.of(
+                "gs", "-q", "-dNODISPLAY", "-dBATCH", "-dNOPAUSE",
+                "--permit-file-read=" + path,
+                "-c", "(" + literal + ") (r) file runpdfbegin pdfpagecount = quit")
+                .timeout(GHOSTSCRIPT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .run();
+        if (!result.isSuccess()) {
+            return 0;
+        }
+        String[] lines = result.getOutput().trim().split("\\R");
+        try {
+            return Integer.parseInt(lines[lines.length - 1].trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * pdfwrite settings for the level; firstPage and lastPage (1-based) limit
+     * the run to a page range, 0 means the whole document.
+     */
+    private List<String> ghostscriptCommand(File input, File output, CompressionOptions.CompressionLevel level,
+                                            int firstPage, int lastPage) {
+        String imageResolution, colorImageResolution, grayImageResolution;
+        
+        switch (level) {
+            case MAXIMUM:
+                imageResolution = "150";
+                colorImageResolution = "150";
+                grayImageResolution = "150";
+                break;
+            case BALANCED:
+                imageResolution = "200";
+                colorImageResolution = "200";
+                grayImageResolution = "200";
+                break;
+            case BEST_QUALITY:
+                imageResolution = "300";
+                colorImageResolution = "300";
+                grayImageResolution = "300";
+                break;
+            default:
+                imageResolution = "200";
+                colorImageResolution = "200";
+                grayImageResolution = "200";
+        }
+        
+        List<String> command = new ArrayList<>(Arrays.asList(
+            "gs",
+            "-sDEVICE=pdfwrite",
+            "-dCompatibilityLevel=1.4",
+            "-dPDFSETTINGS=/screen", // /screen, /ebook, /printer, /prepress
+            "-dNOPAUSE",
+            "-dQUIET",
+            "-dBATCH",
+            "-dDetectDuplicateImages=true",
+            "-dCompressFonts=true",
+            "-dSubsetFonts=true",
+            "-dEmbedAllFonts=true",
+            "-sColorConversionStrategy=RGB",
+            "-sColorConversionStrategyForImages=RGB",
+            "-dProcessColorModel=/DeviceRGB",
+            "-dConvertCMYKImagesToRGB=true",
+            "-dDownsampleColorImages=true",
+            "-dColorImageResolution=" + colorImageResolution,
+            "-dDownsampleGrayImages=true",
+            "-dGrayImageResolution=" + grayImageResolution,
+            "-dDownsampleMonoImages=true",
+            "-dMonoImageResolution=" + imageResolution,
+            "-dAutoRotatePages=/None",
+            "-dEncodeColorImages=true",
+            "-dEncodeGrayImages=true",
+            "-dEncodeMonoImages=true"
+        ));
+        if (firstPage > 0) {
+            command.add("-dFirstPage=" + firstPage);
+            command.add("-dLastPage=" + lastPage);
+        }
+        command.add("-sOutputFile=" + output.getAbsolutePath());
+        command.add(input.getAbsolutePath());
+        return command;
+    }
     
     private File compressWithPdfBox(File input, CompressionOptions options) throws Exception {
-        PDDocument document = PDDocument.load(input);
+        // Held until the document is closed, so concurrent PDFs cannot all count the same free memory
+        try (DecodeMemoryBudget.Reservation reservation = reserveMainMemory(input)) {
+            return compressWithPdfBox(input, options, reservation == null);
+        }
+    }
+
+    private File compressWithPdfBox(File input, CompressionOptions options, boolean large) throws Exception {
+        MemoryUsageSetting memory = memoryUsage(large);
+        if (large) {
+            LoggerUtil.logInfo(String.format("Large PDF (%d MB): PDFBox heap capped at %d MB, the rest spills to scratch files",
+                    input.length() / MB, AppConfig.getPdfHeapMb()));
+        }
+        PDDocument document = PDDocument.load(input, memory);
+        PDDocument compressedDoc = null;
 
         try {
-            PDFRenderer renderer = new PDFRenderer(document);
+            if (large) {
+                // Fonts and images are read once per page here; caching them only pins heap
+                document.setResourceCache(null);
+            }
             File output = FileManager.createOutputFile(input, "compressed_",
                     options.getOutputDirectory(), "pdf");
-            PDDocument compressedDoc = new PDDocument();
+            compressedDoc = new PDDocument(memoryUsage(large));
 
             // Advanced compression based on quality level
             CompressionOptions.CompressionLevel level = options.getCompressionLevel();
+            ImageBudget budget = ImageBudget.plan(input, document, options);
             
-            for (int i = 0; i < document.getNumberOfPages(); i++) {
-                PDPage page = document.getPage(i);
-
-                if (level.isAggressive()) {
-                    // MAXIMUM: Render to low DPI image with aggressive compression
-                    int dpi = calculateDpi(level);
-                    BufferedImage pageImage = renderer.renderImageWithDPI(i, dpi);
-                    
-                    // Compress image aggressively
-                    File tempImage = File.createTempFile("pdf_page_", ".jpg");
-                    float quality = calculateImageQuality(level);
-                    byte[] compressedBytes = getImageBytes(pageImage, "jpg", quality);
-                    java.io.FileOutputStream fos = new java.io.FileOutputStream(tempImage);
-                    fos.write(compressedBytes);
-                    fos.close();
-
-                    PDPage newPage = new PDPage(page.getMediaBox());
-                    compressedDoc.addPage(newPage);
-                    PDImageXObject pdImage = PDImageXObject.createFromFileByContent(tempImage, compressedDoc);
-                    try (PDPageContentStream contentStream = new PDPageContentStream(
-                            compressedDoc, newPage, AppendMode.APPEND, true, true)) {
-                        contentStream.drawImage(pdImage, 0, 0,
-                                page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
-                    }
-                    tempImage.delete();
-                    
-                } else if (level == CompressionOptions.CompressionLevel.BALANCED) {
-                    // BALANCED: Compress embedded images and optimize
-                    PDPage newPage = compressedDoc.importPage(page);
-                    compressPageImages(newPage, compressedDoc, options, calculateImageQuality(level));
-                    
-                } else {
-                    // BEST QUALITY: Light compression, preserve quality
-                    PDPage newPage = compressedDoc.importPage(page);
-                    compressPageImages(newPage, compressedDoc, options, calculateImageQuality(level));
+            if (level.isAggressive()) {
+                // MAXIMUM: Render every page to a low DPI image with aggressive compression
+                rasterizePages(input, document, compressedDoc, level, budget);
+            } else {
+                PdfImageCache images = new PdfImageCache();
+                PdfImagePolicy policy = PdfImagePolicy.forLevel(level);
+                for (int i = 0; i < document.getNumberOfPages(); i++) {
+                    // BALANCED / BEST QUALITY: Compress embedded images and optimize
+                    PDPage newPage = compressedDoc.importPage(document.getPage(i));
+                    compressPageImages(newPage, compressedDoc, options, budget, images, policy);
+                }
+                LoggerUtil.logInfo(String.format("PDF images: %d seen, %d unique, %d bytes saved by reuse",
+                        images.getImagesSeen(), images.getUniqueImages(), images.getBytesSaved()));
+                if (!policy.getKept().isEmpty()) {
+                    LoggerUtil.logInfo("PDF images left as they were: " + policy.getKept());
                 }
             }
 
             // Note: PDFBox handles compression automatically during save
             // Advanced compression is achieved through image optimization above
             compressedDoc.save(output);
-            compressedDoc.close();
 
             return output;
 
         } finally {
+            // Closing also deletes the scratch files of a large document
+            if (compressedDoc != null) {
+                compressedDoc.close();
+            }
             document.close();
         }
     }
+
+    /**
+     * Inputs past pdfLargeDocumentMB are loaded with a capped PDFBox heap.
+     */
+    private static boolean isLargeDocument(File input) {
+        return input.length() >= AppConfig.getPdfLargeDocumentMb() * MB;
+    }
+
+    /**
+     * A reservation from the decode memory budget for loading the input into
+     * main memory, or null when the input is large or the budget cannot
+     * spare its size right now; the document is then loaded with a capped heap.
+     */
+    private static DecodeMemoryBudget.Reservation reserveMainMemory(File input) {
+        return isLargeDocument(input) ? null : DecodeMemoryBudget.tryReserve(input.length());
+    }
+
+    /**
+     * Unlimited main memory for ordinary documents, which is what
+     * PDDocument.load(File) uses; for large ones a heap cap with stream data
+     * past it kept in scratch files under java.io.tmpdir.
+     */
+    private static MemoryUsageSetting memoryUsage(boolean large) {
+        return large
+                ? MemoryUsageSetting.setupMixed(AppConfig.getPdfHeapMb() * MB)
+                : MemoryUsageSetting.setupMainMemoryOnly();
+    }
+
+    /**
+     * Pages are rendered and JPEG-encoded in parallel and added to the output
+     * in page order as they arrive, a window of pages at a time.
+     */
+    private void rasterizePages(File input, PDDocument document,
+                                PDDocument compressedDoc, CompressionOptions.CompressionLevel level,
+                                ImageBudget budget) throws Exception {
+        int pages = document.getNumberOfPages();
+        new PageRasterizer(input, calculateDpi(level), pages).render(pages,
+                (pageImage, index) -> encodeImage(pageImage, level, budget.forPage()),
+                (index, encoded) -> {
+                    PDPage page = document.getPage(index);
+                    PDPage newPage = new PDPage(page.getMediaBox());
+                    compressedDoc.addPage(newPage);
+                    // The JPEG stream is embedded as is (DCTDecode), without decoding it again
+                    PDImageXObject pdImage = JPEGFactory.createFromByteArray(compressedDoc, encoded);
+                    try (PDPageContentStream contentStream = new PDPageContentStream(
+                            compressedDoc, newPage, AppendMode.APPEND, true, true)) {
+                        contentStream.drawImage(pdImage, 0, 0,
+                                page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+                    }
+                });
+    }
     
     private int calculateDpi(CompressionOptions.CompressionLevel level) {
         switch (level) {
@@ -185,6 +344,35 @@ public class PdfCompressor implements FileCompressor {
         }
     }
     
+    /**
+     * JPEG bytes for one image: the level's quality, or with a byte budget the
+     * highest quality up to that which fits, found by searching in memory.
+     */
+    private byte[] encodeImage(BufferedImage image, CompressionOptions.CompressionLevel level,
+                               long byteBudget) throws IOException {
+        if (byteBudget <= 0) {
+            return getImageBytes(image, "jpg", calculateImageQuality(level));
+        }
+        return calculateImageQuality(level, image, byteBudget).toByteArray();
+    }
+
+    /**
+     * Target-size variant of calculateImageQuality(level): the level's quality
+     * is the ceiling, and the image is scaled down if even the floor is too big.
+     */
+    private TargetSizeEncoder.Result calculateImageQuality(CompressionOptions.CompressionLevel level,
+                                                           BufferedImage image, long byteBudget) throws IOException {
+        CodecPool.Lease<javax.imageio.ImageWriter> writer = CodecPool.writer("jpg");
+        if (writer == null) {
+            throw new IOException("No image writer found for format: jpg");
+        }
+        try (writer) {
+            return new TargetSizeEncoder(
+                    (img, quality, out) -> writeImage(writer.get(), img, quality / 100.0f, out),
+                    byteBudget, TARGET_MIN_QUALITY, Math.round(calculateImageQuality(level) * 100)).encode(image);
+        }
+    }
+
     private float calculateImageQuality(CompressionOptions.CompressionLevel level) {
         switch (level) {
             case MAXIMUM:
@@ -199,7 +387,8 @@ public class PdfCompressor implements FileCompressor {
     }
     
 
-    private void compressPageImages(PDPage page, PDDocument doc, CompressionOptions options, float targetQuality) {
+    private void compressPageImages(PDPage page, PDDocument doc, CompressionOptions options,
+                                    ImageBudget budget, PdfImageCache images, PdfImagePolicy policy) {
         try {
             PDResources resources = page.getResources();
             if (resources == null) return;
@@ -211,41 +400,10 @@ public class PdfCompressor implements FileCompressor {
                 try {
                     PDXObject xObject = resources.getXObject(xObjectName);
                     if (xObject instanceof PDImageXObject) {
-                        PDImageXObject image = (PDImageXObject) xObject;
-                        BufferedImage bufferedImage = image.getImage();
-                        
-                        // Advanced image compression with adaptive scaling
-                        CompressionOptions.CompressionLevel level = options.getCompressionLevel();
-                        float scaleFactor = calculateScaleFactor(level);
-                        
-                        int targetWidth = (int) (bufferedImage.getWidth() * scaleFactor);
-                        int targetHeight = (int) (bufferedImage.getHeight() * scaleFactor);
-                        
-                        // Only resize if it will reduce size significantly
-                        if (targetWidth < bufferedImage.getWidth() || targetHeight < bufferedImage.getHeight()) {
-                            BufferedImage compressedImage = new BufferedImage(
-                                targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
-                            java.awt.Graphics2D g = compressedImage.createGraphics();
-                            
-                            // Use high-quality rendering hints
-                            g.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION, 
-                                java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                            g.setRenderingHint(java.awt.RenderingHints.KEY_RENDERING,
-                                java.awt.RenderingHints.VALUE_RENDER_QUALITY);
-                            g.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING,
-                                java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
-                            
-                            g.drawImage(bufferedImage, 0, 0, targetWidth, targetHeight, null);
-                            g.dispose();
-                            
-                            // Compress as JPEG with target quality
-                            PDImageXObject compressedPDImage = PDImageXObject.createFromByteArray(
-                                doc, getImageBytes(compressedImage, "jpg", targetQuality), xObjectName.getName());
-                            resources.put(xObjectName, compressedPDImage);
-                        } else {
-                            // Just recompress without resizing
-                            PDImageXObject compressedPDImage = PDImageXObject.createFromByteArray(
-                                doc, getImageBytes(bufferedImage, "jpg", targetQuality), xObjectName.getName());
+                        // An image shared between pages is recompressed once and the result reused
+                        PDImageXObject compressedPDImage = images.recompress((PDImageXObject) xObject,
+                                image -> recompressImage(image, xObjectName, page, doc, options, budget, policy));
+                        if (compressedPDImage != null) {
                             resources.put(xObjectName, compressedPDImage);
                         }
                     }
@@ -258,27 +416,92 @@ public class PdfCompressor implements FileCompressor {
             // If compression fails, continue without compressing images
         }
     }
-    
-    private float calculateScaleFactor(CompressionOptions.CompressionLevel level) {
-        switch (level) {
-            case MAXIMUM:
-                return 0.6f; // 60% of original size
-            case BALANCED:
-                return 0.8f; // 80% of original size
-            case BEST_QUALITY:
-                return 0.95f; // 95% of original size
+
+    private PDImageXObject recompressImage(PDImageXObject image, COSName xObjectName, PDPage page, PDDocument doc,
+                                           CompressionOptions options, ImageBudget budget,
+                                           PdfImagePolicy policy) throws IOException {
+        // Decided from the image dictionary, before anything is decoded
+        long byteBudget = budget.forImage(image);
+        PdfImagePolicy.Decision decision = policy.decide(image, page.getMediaBox(), byteBudget);
+        if (decision.encoding == PdfImagePolicy.Encoding.KEEP) {
+            return null;
+        }
+        BufferedImage bufferedImage = image.getImage();
+        PDImageXObject compressedPDImage;
+        switch (decision.encoding) {
+            case BITONAL:
+                compressedPDImage = CCITTFactory.createFromImage(doc, toBinary(bufferedImage));
+                break;
+            case LOSSLESS:
+                compressedPDImage = LosslessFactory.createFromImage(doc, scale(bufferedImage, decision.scale,
+                        bufferedImage.getColorModel().hasAlpha()
+                                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+                break;
             default:
-                return 0.8f;
+                // Compress as JPEG with target quality
+                compressedPDImage = PDImageXObject.createFromByteArray(doc,
+                        encodeImage(scale(bufferedImage, decision.scale, BufferedImage.TYPE_INT_RGB),
+                                options.getCompressionLevel(), byteBudget),
+                        xObjectName.getName());
+        }
+        if (compressedPDImage.getCOSObject().getLength() >= image.getCOSObject().getLength()) {
+            policy.keep("no gain");
+            return null;
+        }
+        return compressedPDImage;
+    }
+
+    private BufferedImage scale(BufferedImage image, float scaleFactor, int type) {
+        int targetWidth = Math.max(1, Math.round(image.getWidth() * scaleFactor));
+        int targetHeight = Math.max(1, Math.round(image.getHeight() * scaleFactor));
+        
+        // Only resize if it will reduce size significantly
+        if (targetWidth >= image.getWidth() && targetHeight >= image.getHeight()) {
+            return image;
+        }
+        BufferedImage compressedImage = new BufferedImage(targetWidth, targetHeight, type);
+        java.awt.Graphics2D g = compressedImage.createGraphics();
+        
+        // Use high-quality rendering hints
+        g.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION, 
+            java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(java.awt.RenderingHints.KEY_RENDERING,
+            java.awt.RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING,
+            java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
+        
+        g.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        g.dispose();
+        return compressedImage;
+    }
+
+    /**
+     * CCITTFactory takes only 1-bit TYPE_BYTE_BINARY images.
+     */
+    private BufferedImage toBinary(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY && image.getColorModel().getPixelSize() == 1) {
+            return image;
         }
+        BufferedImage binary = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
+        java.awt.Graphics2D g = binary.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return binary;
     }
     
     private byte[] getImageBytes(BufferedImage image, String format, float quality) throws IOException {
-        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-        Iterator<javax.imageio.ImageWriter> writers = javax.imageio.ImageIO.getImageWritersByFormatName(format);
-        if (!writers.hasNext()) {
+        CodecPool.Lease<javax.imageio.ImageWriter> writer = CodecPool.writer(format);
+        if (writer == null) {
             throw new IOException("No image writer found for format: " + format);
         }
-        javax.imageio.ImageWriter writer = writers.next();
+        try (writer; CodecPool.Buffer buffer = CodecPool.buffer()) {
+            writeImage(writer.get(), image, quality, buffer);
+            return buffer.toByteArray();
+        }
+    }
+
+    private void writeImage(javax.imageio.ImageWriter writer, BufferedImage image, float quality,
+                            java.io.OutputStream out) throws IOException {
         javax.imageio.ImageWriteParam param = writer.getDefaultWriteParam();
         
         if (param.canWriteCompressed()) {
@@ -286,14 +509,83 @@ public class PdfCompressor implements FileCompressor {
             param.setCompressionQuality(quality);
         }
         
-        try (javax.imageio.stream.ImageOutputStream ios = javax.imageio.ImageIO.createImageOutputStream(baos)) {
+        try (javax.imageio.stream.ImageOutputStream ios = new javax.imageio.stream.MemoryCacheImageOutputStream(out)) {
             writer.setOutput(ios);
             writer.write(null, new javax.imageio.IIOImage(image, null, null), param);
-        } finally {
-            writer.dispose();
         }
-        
-        return baos.toByteArray();
+    }
+
+    /**
+     * Splits options.getTargetSizeBytes() across the images of a document.
+     * Bytes that are not image data (text, fonts, structure) are estimated from
+     * the input and kept out of the budget; the rest is shared by pixel area.
+     * Without a target every budget is 0, meaning "use the level's quality".
+     */
+    private static final class ImageBudget {
+        private static final ImageBudget NONE = new ImageBudget(0, 0, 0);
+        // Never squeeze the images below this share of the target, even if the rest looks big
+        private static final double MIN_IMAGE_SHARE = 0.1;
+
+        private final long imageBytes;
+        private final long totalPixels;
+        private final int pages;
+
+        private ImageBudget(long imageBytes, long totalPixels, int pages) {
+            this.imageBytes = imageBytes;
+            this.totalPixels = totalPixels;
+            this.pages = pages;
+        }
+
+        static ImageBudget plan(File input, PDDocument document, CompressionOptions options) {
+            long target = options.getTargetSizeBytes();
+            if (target <= 0 || input.length() <= target) {
+                return NONE;
+            }
+            int pages = Math.max(1, document.getNumberOfPages());
+            if (options.getCompressionLevel().isAggressive()) {
+                // Pages become single images; the wrapper around each is small
+                return new ImageBudget(target, 0, pages);
+            }
+
+            long sourceImageBytes = 0;
+            long pixels = 0;
+            // Images shared between pages are recompressed once, so they are counted once
+            Set<COSStream> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < document.getNumberOfPages(); i++) {
+                PDResources resources = document.getPage(i).getResources();
+                if (resources == null) {
+                    continue;
+                }
+                for (COSName name : resources.getXObjectNames()) {
+                    try {
+                        PDXObject xObject = resources.getXObject(name);
+                        if (xObject instanceof PDImageXObject && counted.add(xObject.getCOSObject())) {
+                            PDImageXObject image = (PDImageXObject) xObject;
+                            // Header fields only; nothing is decoded here
+                            pixels += (long) image.getWidth() * image.getHeight();
+                            sourceImageBytes += image.getCOSObject().getLength();
+                        }
+                    } catch (IOException e) {
+                        // Unreadable XObjects are skipped later as well
+                    }
+                }
+            }
+            long otherBytes = Math.max(0, input.length() - sourceImageBytes);
+            long imageBytes = Math.max((long) (target * MIN_IMAGE_SHARE), target - otherBytes);
+            return new ImageBudget(imageBytes, pixels, pages);
+        }
+
+        long forPage() {
+            return imageBytes / pages;
+        }
+
+        long forImage(PDImageXObject image) {
+            if (imageBytes == 0 || totalPixels == 0) {
+                return 0;
+            }
+            double share = (double) image.getWidth() * image.getHeight() / totalPixels;
+            return Math.max(1, (long) (imageBytes * share));
+        }
     }
 
     @Override
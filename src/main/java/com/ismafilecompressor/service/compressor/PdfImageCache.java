@@ -0,0 +1,158 @@
+package com.ismafilecompressor.service.compressor;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recompressed images of one PDF, so that an image used on many pages (a
+ * logo, a letterhead) is decoded and encoded once and the same stream is
+ * embedded everywhere. Images are matched first by the identity of their COS
+ * stream, which is what pages sharing a resource point at, and then by a hash
+ * of the raw stream and the dictionary entries that affect decoding, which
+ * catches copies the producer wrote out more than once.
+ * Not thread-safe; one instance serves one document on one thread.
+ */
+public final class PdfImageCache {
+    private static final AtomicLong IMAGES_SEEN = new AtomicLong();
+    private static final AtomicLong UNIQUE_IMAGES = new AtomicLong();
+    private static final AtomicLong BYTES_SAVED = new AtomicLong();
+
+    private final Map<COSStream, Entry> byStream = new IdentityHashMap<>();
+    private final Map<String, Entry> byContent = new HashMap<>();
+    // Streams this cache created; pages that share a resources dictionary see them again
+    private final Set<COSStream> produced = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int seen;
+    private int unique;
+    private long saved;
+
+    /**
+     * Replacement for the image, running recompressor only the first time an
+     * image is met. Returns null when the image should be left as it is:
+     * it is one this cache produced, or recompressing it failed before.
+     */
+    PDImageXObject recompress(PDImageXObject image, Recompressor recompressor) throws IOException {
+        COSStream stream = image.getCOSObject();
+        if (produced.contains(stream)) {
+            return null;
+        }
+        seen++;
+        IMAGES_SEEN.incrementAndGet();
+
+        Entry entry = byStream.get(stream);
+        if (entry == null) {
+            String key = contentKey(stream);
+            entry = byContent.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                byContent.put(key, entry);
+                byStream.put(stream, entry);
+                unique++;
+                UNIQUE_IMAGES.incrementAndGet();
+                try {
+                    entry.result = recompressor.recompress(image);
+                } catch (IOException | RuntimeException e) {
+                    // Remember the failure so later pages do not decode it again
+                    entry.result = null;
+                }
+                if (entry.result != null) {
+                    produced.add(entry.result.getCOSObject());
+                }
+                return entry.result;
+            }
+            byStream.put(stream, entry);
+        }
+        if (entry.result != null) {
+            // Without the cache this page would have embedded its own copy
+            long length = entry.result.getCOSObject().getLength();
+            saved += length;
+            BYTES_SAVED.addAndGet(length);
+        }
+        return entry.result;
+    }
+
+    int getImagesSeen() {
+        return seen;
+    }
+
+    int getUniqueImages() {
+        return unique;
+    }
+
+    long getBytesSaved() {
+        return saved;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("imagesSeen", IMAGES_SEEN.get());
+        stats.put("uniqueImages", UNIQUE_IMAGES.get());
+        stats.put("bytesSaved", BYTES_SAVED.get());
+        return stats;
+    }
+
+    private static String contentKey(COSStream stream) throws IOException {
+        MessageDigest digest = sha256();
+        for (COSName name : new COSName[] {COSName.WIDTH, COSName.HEIGHT, COSName.BITS_PER_COMPONENT,
+                COSName.FILTER, COSName.DECODE_PARMS, COSName.COLORSPACE, COSName.IMAGE_MASK,
+                // An inverted /Decode array gives the same bytes different pixels
+                COSName.DECODE, COSName.INTENT}) {
+            digest.update(String.valueOf(stream.getDictionaryObject(name)).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        update(digest, stream);
+        // The masks are applied when the image is decoded, so they are part of its content
+        for (COSName name : new COSName[] {COSName.SMASK, COSName.MASK}) {
+            COSBase mask = stream.getDictionaryObject(name);
+            if (mask instanceof COSStream) {
+                update(digest, (COSStream) mask);
+            } else {
+                digest.update(String.valueOf(mask).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, COSStream stream) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = stream.createRawInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    interface Recompressor {
+        PDImageXObject recompress(PDImageXObject image) throws IOException;
+    }
+
+    private static final class Entry {
+        PDImageXObject result;
+    }
+}
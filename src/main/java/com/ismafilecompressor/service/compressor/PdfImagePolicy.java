@@ -0,0 +1,184 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.model.CompressionOptions;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses what to do with an embedded PDF image from its dictionary alone,
+ * before anything is decoded: leave it alone when recompression cannot win,
+ * otherwise pick the encoding and the scale. The scale brings the image down
+ * to the level's resolution, using the page size to estimate the resolution
+ * it is drawn at. When a target size is set, an image is only left alone if
+ * it already fits its share of the budget. An instance serves one document
+ * and counts the images it left alone, by reason.
+ */
+final class PdfImagePolicy {
+    // Below this many pixels the decode costs more than the bytes it could save
+    private static final long MIN_PIXELS = 64 * 64;
+
+    enum Encoding {
+        KEEP,
+        JPEG,
+        // Flate through LosslessFactory, for palette graphics that JPEG would blur
+        LOSSLESS,
+        // CCITT G4, for 1-bit black-and-white scans
+        BITONAL
+    }
+
+    static final class Decision {
+        final Encoding encoding;
+        final float scale;
+
+        private Decision(Encoding encoding, float scale) {
+            this.encoding = encoding;
+            this.scale = scale;
+        }
+    }
+
+    private final float targetDpi;
+    private final float defaultScale;
+    private final double maxJpegBitsPerPixel;
+    private final Map<String, Integer> kept = new TreeMap<>();
+
+    PdfImagePolicy(float targetDpi, float defaultScale, double maxJpegBitsPerPixel) {
+        this.targetDpi = targetDpi;
+        this.defaultScale = defaultScale;
+        this.maxJpegBitsPerPixel = maxJpegBitsPerPixel;
+    }
+
+    /**
+     * Resolutions follow the Ghostscript settings for the same level; a JPEG at
+     * or under the bit rate the level's quality would give is not re-encoded.
+     */
+    static PdfImagePolicy forLevel(CompressionOptions.CompressionLevel level) {
+        switch (level) {
+            case MAXIMUM:
+                return new PdfImagePolicy(150, 0.6f, 1.0);
+            case BEST_QUALITY:
+                return new PdfImagePolicy(300, 0.95f, 3.0);
+            case BALANCED:
+            default:
+                return new PdfImagePolicy(200, 0.8f, 2.0);
+        }
+    }
+
+    /**
+     * mediaBox is the box of a page the image is drawn on, or null if unknown.
+     * byteBudget is the image's share of a target size, or 0 without one.
+     */
+    Decision decide(PDImageXObject image, PDRectangle mediaBox, long byteBudget) throws IOException {
+        if (image.isStencil()) {
+            return keep("stencil mask");
+        }
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (pixels < MIN_PIXELS) {
+            return keep("icon");
+        }
+        COSStream stream = image.getCOSObject();
+        if (stream.getDictionaryObject(COSName.SMASK) != null || stream.getDictionaryObject(COSName.MASK) != null) {
+            // A JPEG replacement would drop the transparency
+            return keep("masked");
+        }
+
+        // getSuffix() reads the filter: jb2 is JBIG2, tiff is CCITT, png is Flate or none
+        String suffix = image.getSuffix();
+        if ("jb2".equals(suffix) || "tiff".equals(suffix)) {
+            return keep("bitonal codec");
+        }
+        PDColorSpace colorSpace = image.getColorSpace();
+        if (image.getBitsPerComponent() == 1 && isBlackAndWhite(colorSpace)) {
+            // Scaling a bitonal scan only blurs it; G4 alone wins over Flate
+            return new Decision(Encoding.BITONAL, 1f);
+        }
+
+        boolean overBudget = byteBudget > 0 && stream.getLength() > byteBudget;
+        float dpi = estimateDpi(image, mediaBox);
+        float scale = dpi > 0 ? Math.min(1f, targetDpi / dpi) : defaultScale;
+        if ("jpg".equals(suffix)) {
+            double bitsPerPixel = stream.getLength() * 8.0 / pixels;
+            if (scale >= 1f && bitsPerPixel <= maxJpegBitsPerPixel && !overBudget) {
+                return keep("compact JPEG");
+            }
+            return new Decision(Encoding.JPEG, scale);
+        }
+        if (colorSpace instanceof PDIndexed) {
+            if (overBudget) {
+                // Flate output shrinks with the pixel count
+                scale = Math.min(scale, (float) Math.sqrt((double) byteBudget / stream.getLength()));
+            } else if (scale >= 1f) {
+                return keep("palette image");
+            }
+            return new Decision(Encoding.LOSSLESS, scale);
+        }
+        return new Decision(Encoding.JPEG, scale);
+    }
+
+    /**
+     * DeviceGray, or a palette whose first two entries are black and white.
+     * A two-colour palette in other colours would lose them as CCITT.
+     */
+    private static boolean isBlackAndWhite(PDColorSpace colorSpace) throws IOException {
+        if (colorSpace instanceof PDDeviceGray) {
+            return true;
+        }
+        if (!(colorSpace instanceof PDIndexed)) {
+            return false;
+        }
+        float first = blackOrWhite(colorSpace.toRGB(new float[]{0}));
+        float second = blackOrWhite(colorSpace.toRGB(new float[]{1}));
+        return first >= 0 && second >= 0 && first != second;
+    }
+
+    /**
+     * 0 for black, 1 for white, -1 for any other colour.
+     */
+    private static float blackOrWhite(float[] rgb) {
+        if (rgb == null || rgb.length < 3) {
+            return -1;
+        }
+        for (float level : new float[]{0f, 1f}) {
+            if (Math.abs(rgb[0] - level) < 0.01f && Math.abs(rgb[1] - level) < 0.01f
+                    && Math.abs(rgb[2] - level) < 0.01f) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Resolution if the image filled the page. Images drawn smaller have a
+     * higher one, so this never overstates how far an image can be scaled.
+     */
+    private static float estimateDpi(PDImageXObject image, PDRectangle mediaBox) {
+        if (mediaBox == null || mediaBox.getWidth() <= 0 || mediaBox.getHeight() <= 0) {
+            return 0;
+        }
+        return Math.min(image.getWidth() * 72f / mediaBox.getWidth(),
+                image.getHeight() * 72f / mediaBox.getHeight());
+    }
+
+    /**
+     * Images left as they were, by reason.
+     */
+    Map<String, Integer> getKept() {
+        return kept;
+    }
+
+    /**
+     * Records an image left alone; also used when an encode turned out larger.
+     */
+    Decision keep(String reason) {
+        kept.merge(reason, 1, Integer::sum);
+        return new Decision(Encoding.KEEP, 1f);
+    }
+}
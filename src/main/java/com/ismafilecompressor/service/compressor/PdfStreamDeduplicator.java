@@ -0,0 +1,190 @@
+package com.ismafilecompressor.service.compressor;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Points every reference to a stream at one copy when the document holds the
+ * same stream more than once: images, font programs, ICC profiles and form
+ * XObjects that separately written parts of a PDF each carried along. Walks
+ * the resources of every page bottom-up, so streams are compared only after
+ * the streams they refer to have been merged; two streams match when their
+ * raw bytes and their dictionaries match. Copies nothing refers to any more
+ * are not written when the document is saved.
+ */
+final class PdfStreamDeduplicator {
+    // Every object visited, mapped to the object that replaces it (itself when unique)
+    private final Map<COSBase, COSBase> canonical = new IdentityHashMap<>();
+    private final Map<String, COSStream> byContent = new HashMap<>();
+    // Short stable names for canonical streams, used when describing the dictionaries that refer to them
+    private final Map<COSStream, Integer> ids = new IdentityHashMap<>();
+
+    private int replaced;
+    private long bytesSaved;
+
+    /**
+     * Merge duplicate streams reachable from the pages' resources.
+     *
+     * @return number of stream copies dropped
+     */
+    int deduplicate(PDDocument document) throws IOException {
+        for (PDPage page : document.getPages()) {
+            PDResources resources = page.getResources();
+            if (resources != null) {
+                visit(resources.getCOSObject());
+            }
+        }
+        return replaced;
+    }
+
+    long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    private COSBase visit(COSBase node) throws IOException {
+        if (node instanceof COSObject) {
+            node = ((COSObject) node).getObject();
+        }
+        if (node == null) {
+            return null;
+        }
+        COSBase known = canonical.get(node);
+        if (known != null) {
+            return known;
+        }
+        // A cycle back to this node resolves to the node itself
+        canonical.put(node, node);
+
+        if (node instanceof COSDictionary) {
+            COSDictionary dictionary = (COSDictionary) node;
+            for (COSName key : new ArrayList<>(dictionary.keySet())) {
+                if (COSName.PARENT.equals(key)) {
+                    continue;
+                }
+                COSBase value = dictionary.getDictionaryObject(key);
+                COSBase replacement = visit(value);
+                if (replacement != null && replacement != value) {
+                    dictionary.setItem(key, replacement);
+                }
+            }
+        } else if (node instanceof COSArray) {
+            COSArray array = (COSArray) node;
+            for (int i = 0; i < array.size(); i++) {
+                COSBase value = array.getObject(i);
+                COSBase replacement = visit(value);
+                if (replacement != null && replacement != value) {
+                    array.set(i, replacement);
+                }
+            }
+        }
+
+        if (node instanceof COSStream) {
+            COSStream stream = (COSStream) node;
+            COSStream first = byContent.putIfAbsent(contentKey(stream), stream);
+            if (first != null) {
+                canonical.put(node, first);
+                replaced++;
+                bytesSaved += stream.getLength();
+                return first;
+            }
+            ids.put(stream, ids.size());
+        }
+        return node;
+    }
+
+    private String contentKey(COSStream stream) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(describe(stream, Collections.newSetFromMap(new IdentityHashMap<>()))
+                .getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = stream.createRawInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Dictionary entries in key order, with streams other than the one being
+     * keyed replaced by their canonical id. Object numbers never appear, as
+     * they differ between copies of the same content.
+     */
+    private String describe(COSBase value, Set<COSBase> path) {
+        if (value instanceof COSObject) {
+            value = ((COSObject) value).getObject();
+        }
+        if (value == null) {
+            return "null";
+        }
+        if (!path.isEmpty() && value instanceof COSStream) {
+            Integer id = ids.get(canonical.getOrDefault(value, value));
+            // A stream still being visited (a cycle) can only match itself
+            return id != null ? "#" + id : "@" + System.identityHashCode(value);
+        }
+        if (!path.add(value)) {
+            return "@" + System.identityHashCode(value);
+        }
+        try {
+            if (value instanceof COSDictionary) {
+                COSDictionary dictionary = (COSDictionary) value;
+                Map<String, COSBase> entries = new TreeMap<>();
+                for (COSName key : dictionary.keySet()) {
+                    // Length is rewritten on save and may be an indirect object that differs between copies
+                    if (!COSName.LENGTH.equals(key) && !COSName.PARENT.equals(key)) {
+                        entries.put(key.getName(), dictionary.getDictionaryObject(key));
+                    }
+                }
+                StringBuilder out = new StringBuilder("<<");
+                for (Map.Entry<String, COSBase> entry : entries.entrySet()) {
+                    out.append('/').append(entry.getKey()).append(' ')
+                            .append(describe(entry.getValue(), path)).append(' ');
+                }
+                return out.append(">>").toString();
+            }
+            if (value instanceof COSArray) {
+                COSArray array = (COSArray) value;
+                List<String> items = new ArrayList<>(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    items.add(describe(array.getObject(i), path));
+                }
+                return items.toString();
+            }
+            return value.toString();
+        } finally {
+            path.remove(value);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/**
+ * Pixel loops that work directly on the backing arrays of packed images,
+ * replacing Graphics2D.drawImage for the conversions the compressors do on
+ * every file. Each kernel has a scalar loop; when the build used the vector
+ * profile and the JVM runs with --add-modules jdk.incubator.vector, the bulk
+ * of the array goes through VectorPixelKernels and the scalar loop only
+ * handles the tail.
+ * The BufferedImage helpers return null for layouts they do not cover, so
+ * callers keep their drawImage path as the fallback.
+ */
+public final class PixelKernels {
+    private static final SimdKernels SIMD = loadSimd();
+    private static final boolean VECTOR = SIMD != null;
+
+    private PixelKernels() {
+    }
+
+    private static SimdKernels loadSimd() {
+        if (!AppConfig.isVectorKernelsEnabled()
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            // Absent unless the jar was built with -Pvector
+            Class<?> type = Class.forName(PixelKernels.class.getPackageName() + ".VectorPixelKernels");
+            SimdKernels simd = (SimdKernels) type.getDeclaredConstructor().newInstance();
+            boolean usable = simd.isUsable();
+            LoggerUtil.logInfo("Pixel kernels: " + (usable ? simd.describe() : "scalar"));
+            return usable ? simd : null;
+        } catch (ClassNotFoundException e) {
+            LoggerUtil.logInfo("Pixel kernels: scalar (built without the vector profile)");
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LoggerUtil.logWarning("Pixel kernels: scalar (vector kernels failed to load: " + e + ")");
+            return null;
+        }
+    }
+
+    public static boolean isVectorized() {
+        return VECTOR;
+    }
+
+    // ---- Array kernels ----
+
+    /**
+     * Composite non-premultiplied ARGB over opaque white. src and dst may be the same array.
+     */
+    public static void flattenOnWhite(int[] src, int[] dst, int length) {
+        int i = VECTOR ? SIMD.flattenOnWhite(src, dst, length) : 0;
+        for (; i < length; i++) {
+            int p = src[i];
+            int a = p >>> 24;
+            if (a == 0xFF) {
+                dst[i] = p;
+                continue;
+            }
+            int white = 255 * (255 - a);
+            int r = div255(((p >> 16) & 0xFF) * a + white);
+            int g = div255(((p >> 8) & 0xFF) * a + white);
+            int b = div255((p & 0xFF) * a + white);
+            dst[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Swap the red and blue bytes (INT_BGR to INT_RGB and back), forcing alpha opaque.
+     */
+    public static void swapRedBlue(int[] src, int[] dst, int length) {
+        int i = VECTOR ? SIMD.swapRedBlue(src, dst, length) : 0;
+        for (; i < length; i++) {
+            int p = src[i];
+            dst[i] = 0xFF000000 | ((p & 0xFF) << 16) | (p & 0xFF00) | ((p >> 16) & 0xFF);
+        }
+    }
+
+    /**
+     * 8-bit gray samples to opaque packed RGB, replicating the value into each channel.
+     */
+    public static void grayToRgb(byte[] src, int[] dst, int length) {
+        int i = VECTOR ? SIMD.grayToRgb(src, dst, length) : 0;
+        for (; i < length; i++) {
+            int v = src[i] & 0xFF;
+            dst[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+        }
+    }
+
+    /**
+     * Sums of a, b, a*a, b*b and a*b over the size x size block of two planes
+     * starting at offset, into sums[0..4]. The SSIM statistics of one tile.
+     */
+    static void blockMoments(float[] a, float[] b, int offset, int stride, int size, float[] sums) {
+        if (VECTOR) {
+            SIMD.blockMoments(a, b, offset, stride, size, sums);
+            return;
+        }
+        float sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+        for (int y = 0; y < size; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < size; x++) {
+                float va = a[row + x];
+                float vb = b[row + x];
+                sa += va;
+                sb += vb;
+                saa += va * va;
+                sbb += vb * vb;
+                sab += va * vb;
+            }
+        }
+        sums[0] = sa;
+        sums[1] = sb;
+        sums[2] = saa;
+        sums[3] = sbb;
+        sums[4] = sab;
+    }
+
+    /**
+     * Interleaved A,B,G,R bytes (TYPE_4BYTE_ABGR) to packed ARGB.
+     */
+    public static void abgrToArgb(byte[] src, int[] dst, int length) {
+        for (int i = 0, j = 0; i < length; i++, j += 4) {
+            dst[i] = ((src[j] & 0xFF) << 24) | ((src[j + 3] & 0xFF) << 16)
+                    | ((src[j + 2] & 0xFF) << 8) | (src[j + 1] & 0xFF);
+        }
+    }
+
+    /**
+     * 2x2 box filter per channel into a (width / 2) x (height / 2) array; an
+     * odd last row or column is dropped.
+     */
+    public static void halve(int[] src, int width, int height, int[] dst) {
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        for (int y = 0; y < halfHeight; y++) {
+            int row0 = 2 * y * width;
+            int row1 = row0 + width;
+            int out = y * halfWidth;
+            int x = VECTOR ? SIMD.halveRow(src, row0, row1, dst, out, halfWidth) : 0;
+            for (; x < halfWidth; x++) {
+                int p0 = src[row0 + 2 * x];
+                int p1 = src[row0 + 2 * x + 1];
+                int p2 = src[row1 + 2 * x];
+                int p3 = src[row1 + 2 * x + 1];
+                int result = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((p0 >>> shift) & 0xFF) + ((p1 >>> shift) & 0xFF)
+                            + ((p2 >>> shift) & 0xFF) + ((p3 >>> shift) & 0xFF);
+                    result |= ((sum + 2) >> 2) << shift;
+                }
+                dst[out + x] = result;
+            }
+        }
+    }
+
+    /**
+     * Distinct RGB values among about maxSamples evenly strided pixels,
+     * counting no further than cap. A hash set insert per sample does not
+     * vectorise, so this kernel is scalar only.
+     */
+    public static int countColors(int[] pixels, int length, int maxSamples, int cap) {
+        int step = Math.max(1, length / Math.max(1, maxSamples));
+        int[] table = new int[Integer.highestOneBit(Math.max(16, cap * 2)) << 1];
+        int mask = table.length - 1;
+        int count = 0;
+        for (int i = 0; i < length && count < cap; i += step) {
+            // +1 so that black is distinguishable from an empty slot
+            int key = (pixels[i] & 0xFFFFFF) + 1;
+            int slot = (key * 0x9E3779B9) >>> 7 & mask;
+            while (table[slot] != 0 && table[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = key;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // ---- BufferedImage helpers ----
+
+    /**
+     * Backing array of an unshared TYPE_INT_RGB/TYPE_INT_ARGB image, or null.
+     */
+    public static int[] packedPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        return intData(image);
+    }
+
+    /**
+     * Copy into TYPE_INT_RGB, or TYPE_INT_ARGB when the source has alpha.
+     * Covers 4BYTE_ABGR, BYTE_GRAY and INT_BGR. 3BYTE_BGR is left to
+     * drawImage, whose native blit loop already beats a Java loop for it.
+     */
+    public static BufferedImage toIntRgb(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int length = width * height;
+        switch (image.getType()) {
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] src = byteData(image, 4, true);
+                if (src == null) return null;
+                BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                abgrToArgb(src, intData(out), length);
+                return out;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] src = byteData(image, 1, false);
+                if (src == null) return null;
+                BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                grayToRgb(src, intData(out), length);
+                return out;
+            }
+            case BufferedImage.TYPE_INT_BGR: {
+                int[] src = intData(image);
+                if (src == null) return null;
+                BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                swapRedBlue(src, intData(out), length);
+                return out;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * TYPE_INT_ARGB composited onto white as a new TYPE_INT_RGB image, or null
+     * for any other layout.
+     */
+    public static BufferedImage flattenOnWhite(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        int[] src = intData(image);
+        if (src == null) {
+            return null;
+        }
+        BufferedImage out = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        flattenOnWhite(src, intData(out), src.length);
+        return out;
+    }
+
+    /**
+     * Half-size box-filtered copy of a TYPE_INT_RGB image, or null for other layouts.
+     */
+    public static BufferedImage halve(BufferedImage image) {
+        int[] src = image.getType() == BufferedImage.TYPE_INT_RGB ? intData(image) : null;
+        if (src == null || image.getWidth() < 2 || image.getHeight() < 2) {
+            return null;
+        }
+        int halfWidth = image.getWidth() / 2;
+        int halfHeight = image.getHeight() / 2;
+        BufferedImage out = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_RGB);
+        halve(src, image.getWidth(), image.getHeight(), intData(out));
+        return out;
+    }
+
+    /**
+     * Distinct colours in a sample of the image, up to cap.
+     */
+    public static int countColors(BufferedImage image, int maxSamples, int cap) {
+        int[] pixels = packedPixels(image);
+        if (pixels == null) {
+            // Sample whole rows through getRGB rather than converting the image
+            int width = image.getWidth();
+            int rows = Math.max(1, Math.min(image.getHeight(), maxSamples / Math.max(1, width)));
+            int rowStep = Math.max(1, image.getHeight() / rows);
+            pixels = new int[rows * width];
+            for (int r = 0; r < rows; r++) {
+                image.getRGB(0, Math.min(image.getHeight() - 1, r * rowStep), width, 1, pixels, r * width, width);
+            }
+        }
+        return countColors(pixels, pixels.length, maxSamples, cap);
+    }
+
+    private static int[] intData(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null || !(raster.getDataBuffer() instanceof DataBufferInt)) {
+            return null;
+        }
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        return data.length == image.getWidth() * image.getHeight() ? data : null;
+    }
+
+    private static byte[] byteData(BufferedImage image, int bands, boolean requireSrgb) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null || !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return null;
+        }
+        // Embedded ICC profiles need real colour conversion; leave those to drawImage
+        ColorSpace space = image.getColorModel().getColorSpace();
+        if (requireSrgb ? !space.isCS_sRGB() : space.getType() != ColorSpace.TYPE_GRAY) {
+            return null;
+        }
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        return data.length == image.getWidth() * image.getHeight() * bands ? data : null;
+    }
+
+    // Exact round(x / 255) for 0 <= x <= 255 * 255
+    private static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,401 @@
+package com.ismafilecompressor.service.compressor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a non-interlaced PNG one row at a time, inflating the IDAT stream
+ * once from top to bottom. ImageIO's PNG reader has no row access: every
+ * region read inflates all rows above the region again. Samples are
+ * returned as non-premultiplied ARGB without colour management, as the JDK
+ * reader does (gAMA and iCCP are ignored, gray is replicated into RGB).
+ * 16-bit samples are rounded to 8 bits.
+ */
+final class PngRowReader implements Closeable {
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    private final DataInputStream in;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colorType;
+    // Bytes per complete pixel, at least 1; the distance the filters look back
+    private final int filterStride;
+    private final int[] palette = new int[256];
+    // Raw samples of the tRNS colour key for gray and RGB images, or null
+    private int[] transparentKey;
+    private boolean paletteAlpha;
+    private Inflater inflater;
+    private DataInputStream pixels;
+    private byte[] previous;
+    private byte[] current;
+    private int row;
+
+    private PngRowReader(DataInputStream in, int width, int height, int bitDepth, int colorType) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+        int bitsPerPixel = channels(colorType) * bitDepth;
+        this.filterStride = Math.max(1, bitsPerPixel / 8);
+        int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+        this.previous = new byte[rowBytes];
+        this.current = new byte[rowBytes];
+        Arrays.fill(palette, 0xFF000000);
+    }
+
+    /**
+     * Reader positioned on the first row, or null when the file is not a
+     * PNG or is interlaced (Adam7 passes cannot be handed out row by row).
+     */
+    static PngRowReader open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            PngRowReader reader = readHeader(in);
+            if (reader == null) {
+                in.close();
+            }
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static PngRowReader readHeader(DataInputStream in) throws IOException {
+        if (in.readLong() != SIGNATURE || in.readInt() != 13 || in.readInt() != IHDR) {
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        int bitDepth = in.readUnsignedByte();
+        int colorType = in.readUnsignedByte();
+        int compression = in.readUnsignedByte();
+        int filter = in.readUnsignedByte();
+        int interlace = in.readUnsignedByte();
+        in.readInt(); // CRC
+        if (width <= 0 || height <= 0 || compression != 0 || filter != 0 || interlace != 0
+                || !validDepth(colorType, bitDepth)) {
+            return null;
+        }
+        PngRowReader reader = new PngRowReader(in, width, height, bitDepth, colorType);
+        reader.readChunksToData();
+        return reader;
+    }
+
+    private static boolean validDepth(int colorType, int bitDepth) {
+        switch (colorType) {
+            case GRAY:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            case RGB:
+            case GRAY_ALPHA:
+            case RGB_ALPHA:
+                return bitDepth == 8 || bitDepth == 16;
+            default:
+                return false;
+        }
+    }
+
+    private static int channels(int colorType) {
+        switch (colorType) {
+            case RGB: return 3;
+            case GRAY_ALPHA: return 2;
+            case RGB_ALPHA: return 4;
+            default: return 1;
+        }
+    }
+
+    /**
+     * Reads PLTE and tRNS and stops at the first IDAT; ancillary chunks are skipped.
+     */
+    private void readChunksToData() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt PNG chunk length");
+            }
+            if (type == IDAT) {
+                inflater = new Inflater();
+                pixels = new DataInputStream(new InflaterInputStream(new DataStream(length), inflater, 64 * 1024));
+                return;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            in.readInt(); // CRC
+            if (type == PLTE) {
+                for (int i = 0; i + 2 < length && i / 3 < 256; i += 3) {
+                    palette[i / 3] = 0xFF000000 | (body[i] & 0xFF) << 16 | (body[i + 1] & 0xFF) << 8 | (body[i + 2] & 0xFF);
+                }
+            } else if (type == TRNS) {
+                readTransparency(body);
+            }
+        }
+    }
+
+    private void readTransparency(byte[] body) {
+        if (colorType == PALETTE) {
+            for (int i = 0; i < body.length && i < 256; i++) {
+                palette[i] = (body[i] & 0xFF) << 24 | (palette[i] & 0xFFFFFF);
+            }
+            paletteAlpha = true;
+        } else if (colorType == GRAY && body.length >= 2) {
+            transparentKey = new int[] {(body[0] & 0xFF) << 8 | (body[1] & 0xFF)};
+        } else if (colorType == RGB && body.length >= 6) {
+            transparentKey = new int[3];
+            for (int c = 0; c < 3; c++) {
+                transparentKey[c] = (body[2 * c] & 0xFF) << 8 | (body[2 * c + 1] & 0xFF);
+            }
+        }
+    }
+
+    int getWidth() { return width; }
+    int getHeight() { return height; }
+
+    boolean hasAlpha() {
+        return colorType == GRAY_ALPHA || colorType == RGB_ALPHA || paletteAlpha || transparentKey != null;
+    }
+
+    /**
+     * Decode the next row into argb[0..width).
+     */
+    void readRow(int[] argb) throws IOException {
+        if (row >= height) {
+            throw new EOFException("All PNG rows have been read");
+        }
+        int filter = pixels.readUnsignedByte();
+        pixels.readFully(current);
+        unfilter(filter, current, previous, filterStride);
+        convert(current, argb);
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        row++;
+    }
+
+    private static void unfilter(int filter, byte[] row, byte[] above, int stride) throws IOException {
+        int length = row.length;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = stride; i < length; i++) {
+                    row[i] += row[i - stride];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    row[i] += above[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= stride ? row[i - stride] & 0xFF : 0;
+                    row[i] += (byte) ((left + (above[i] & 0xFF)) >> 1);
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i++) {
+                    int a = i >= stride ? row[i - stride] & 0xFF : 0;
+                    int b = above[i] & 0xFF;
+                    int c = i >= stride ? above[i - stride] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += (byte) (pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type " + filter);
+        }
+    }
+
+    private void convert(byte[] raw, int[] argb) throws IOException {
+        switch (colorType) {
+            case GRAY:
+                if (bitDepth == 16) {
+                    for (int x = 0, i = 0; x < width; x++, i += 2) {
+                        int v = sample16(raw, i);
+                        int g = to8(v);
+                        argb[x] = alphaForKey(v) | g << 16 | g << 8 | g;
+                    }
+                } else {
+                    int max = (1 << bitDepth) - 1;
+                    for (int x = 0; x < width; x++) {
+                        int v = packed(raw, x);
+                        int g = v * 255 / max;
+                        argb[x] = alphaForKey(v) | g << 16 | g << 8 | g;
+                    }
+                }
+                break;
+            case PALETTE:
+                for (int x = 0; x < width; x++) {
+                    argb[x] = palette[packed(raw, x)];
+                }
+                break;
+            case RGB:
+                if (bitDepth == 16) {
+                    for (int x = 0, i = 0; x < width; x++, i += 6) {
+                        int r = sample16(raw, i);
+                        int g = sample16(raw, i + 2);
+                        int b = sample16(raw, i + 4);
+                        argb[x] = alphaForKey(r, g, b) | to8(r) << 16 | to8(g) << 8 | to8(b);
+                    }
+                } else {
+                    for (int x = 0, i = 0; x < width; x++, i += 3) {
+                        int r = raw[i] & 0xFF;
+                        int g = raw[i + 1] & 0xFF;
+                        int b = raw[i + 2] & 0xFF;
+                        argb[x] = alphaForKey(r, g, b) | r << 16 | g << 8 | b;
+                    }
+                }
+                break;
+            case GRAY_ALPHA:
+                for (int x = 0, i = 0; x < width; x++) {
+                    int g;
+                    int a;
+                    if (bitDepth == 16) {
+                        g = to8(sample16(raw, i));
+                        a = to8(sample16(raw, i + 2));
+                        i += 4;
+                    } else {
+                        g = raw[i] & 0xFF;
+                        a = raw[i + 1] & 0xFF;
+                        i += 2;
+                    }
+                    argb[x] = a << 24 | g << 16 | g << 8 | g;
+                }
+                break;
+            case RGB_ALPHA:
+                if (bitDepth == 16) {
+                    for (int x = 0, i = 0; x < width; x++, i += 8) {
+                        argb[x] = to8(sample16(raw, i + 6)) << 24 | to8(sample16(raw, i)) << 16
+                                | to8(sample16(raw, i + 2)) << 8 | to8(sample16(raw, i + 4));
+                    }
+                } else {
+                    for (int x = 0, i = 0; x < width; x++, i += 4) {
+                        argb[x] = (raw[i + 3] & 0xFF) << 24 | (raw[i] & 0xFF) << 16
+                                | (raw[i + 1] & 0xFF) << 8 | (raw[i + 2] & 0xFF);
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unsupported PNG colour type " + colorType);
+        }
+    }
+
+    // Sample x of a 1, 2, 4 or 8 bit row; the first pixel sits in the high bits
+    private int packed(byte[] raw, int x) {
+        if (bitDepth == 8) {
+            return raw[x] & 0xFF;
+        }
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return (raw[bit >> 3] >> shift) & ((1 << bitDepth) - 1);
+    }
+
+    private static int sample16(byte[] raw, int i) {
+        return (raw[i] & 0xFF) << 8 | (raw[i + 1] & 0xFF);
+    }
+
+    // round(v * 255 / 65535)
+    private static int to8(int v) {
+        return (v * 255 + 32767) / 65535;
+    }
+
+    private int alphaForKey(int gray) {
+        return transparentKey != null && transparentKey[0] == gray ? 0 : 0xFF000000;
+    }
+
+    private int alphaForKey(int r, int g, int b) {
+        return transparentKey != null && transparentKey[0] == r && transparentKey[1] == g && transparentKey[2] == b
+                ? 0 : 0xFF000000;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        in.close();
+    }
+
+    /**
+     * The payload of consecutive IDAT chunks as one stream, CRCs skipped.
+     */
+    private final class DataStream extends InputStream {
+        private int remaining;
+        private boolean ended;
+
+        private DataStream(int length) {
+            this.remaining = length;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0) {
+                if (ended) {
+                    return false;
+                }
+                in.readInt(); // CRC of the chunk just finished
+                int length = in.readInt();
+                if (in.readInt() != IDAT) {
+                    // Image data is contiguous; whatever follows is not ours
+                    ended = true;
+                    return false;
+                }
+                if (length < 0) {
+                    throw new IOException("Corrupt PNG chunk length");
+                }
+                remaining = length;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
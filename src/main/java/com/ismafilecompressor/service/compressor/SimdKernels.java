@@ -0,0 +1,31 @@
+package com.ismafilecompressor.service.compressor;
+
+/**
+ * The loops PixelKernels can hand to a SIMD implementation. The one
+ * implementation, VectorPixelKernels, needs jdk.incubator.vector and is only
+ * compiled with the vector profile, so PixelKernels looks it up by name.
+ * Array kernels process whole vectors from index 0 and return the first index
+ * they did not handle; the caller finishes the tail with its scalar loop.
+ */
+interface SimdKernels {
+    /**
+     * False when the hardware offers too few lanes for the vector loops to pay off.
+     */
+    boolean isUsable();
+
+    String describe();
+
+    int flattenOnWhite(int[] src, int[] dst, int length);
+
+    int swapRedBlue(int[] src, int[] dst, int length);
+
+    int grayToRgb(byte[] src, int[] dst, int length);
+
+    int halveRow(int[] src, int row0, int row1, int[] dst, int out, int halfWidth);
+
+    /**
+     * Sums of a, b, a*a, b*b and a*b over the size x size block of both planes
+     * starting at offset, written to sums[0..4].
+     */
+    void blockMoments(float[] a, float[] b, int offset, int stride, int size, float[] sums);
+}
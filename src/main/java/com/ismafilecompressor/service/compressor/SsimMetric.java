@@ -0,0 +1,183 @@
+package com.ismafilecompressor.service.compressor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Structural similarity (SSIM / MS-SSIM) between a source image and an
+ * encoded candidate, computed on luma only. The source is reduced once to a
+ * luma plane of at most MAX_DIMENSION pixels per side, each cell the average
+ * of the step x step block it covers; candidates are decoded and reduced the
+ * same way. Point sampling would be cheaper but aliases fine detail and
+ * ringing, which is exactly what the metric is meant to catch. Images with
+ * alpha are composited onto white first, so colour left in or zeroed out of
+ * fully transparent pixels, which quantizers do freely, does not count. SSIM
+ * is averaged over 8x8 tiles.
+ */
+public class SsimMetric {
+    private static final int MAX_DIMENSION = 512;
+    private static final int TILE = 8;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+    // Scale weights from Wang et al. for the three finest scales, renormalised
+    private static final double[] MS_WEIGHTS = { 0.0448 / 0.7262, 0.2856 / 0.7262, 0.3962 / 0.7262 };
+
+    private final int step;
+    private final int width;
+    private final int height;
+    private final float[] reference;
+
+    public SsimMetric(BufferedImage source) {
+        int longest = Math.max(source.getWidth(), source.getHeight());
+        this.step = Math.max(1, (longest + MAX_DIMENSION - 1) / MAX_DIMENSION);
+        this.width = (source.getWidth() + step - 1) / step;
+        this.height = (source.getHeight() + step - 1) / step;
+        this.reference = luma(source, step, width, height);
+    }
+
+    /**
+     * MS-SSIM of encoded image bytes against the source, or 0 if they cannot
+     * be decoded to the source's size.
+     */
+    public double compare(byte[] encoded) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            return compare(iis);
+        }
+    }
+
+    public double compare(File encoded) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(encoded)) {
+            return compare(iis);
+        }
+    }
+
+    private double compare(ImageInputStream iis) throws IOException {
+        if (iis == null) {
+            return 0;
+        }
+        CodecPool.Lease<ImageReader> lease = CodecPool.reader(iis);
+        if (lease == null) {
+            return 0;
+        }
+        try (lease) {
+            ImageReader reader = lease.get();
+            reader.setInput(iis, true, true);
+            BufferedImage decoded = reader.read(0, reader.getDefaultReadParam());
+            if ((decoded.getWidth() + step - 1) / step != width || (decoded.getHeight() + step - 1) / step != height) {
+                return 0;
+            }
+            return multiScale(reference, luma(decoded, step, width, height), width, height);
+        }
+    }
+
+    /**
+     * Weighted geometric mean of SSIM at full, half and quarter resolution.
+     * Scales smaller than one tile are left out.
+     */
+    static double multiScale(float[] a, float[] b, int width, int height) {
+        double product = 1;
+        double weights = 0;
+        for (int scale = 0; scale < MS_WEIGHTS.length && width >= TILE && height >= TILE; scale++) {
+            double value = Math.max(0, ssim(a, b, width, height));
+            product *= Math.pow(value, MS_WEIGHTS[scale]);
+            weights += MS_WEIGHTS[scale];
+
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            a = halve(a, width, halfWidth, halfHeight);
+            b = halve(b, width, halfWidth, halfHeight);
+            width = halfWidth;
+            height = halfHeight;
+        }
+        return weights == 0 ? 1 : Math.pow(product, 1 / weights);
+    }
+
+    /**
+     * Mean SSIM over non-overlapping tiles; partial tiles at the edges are dropped.
+     */
+    static double ssim(float[] a, float[] b, int width, int height) {
+        int tilesX = width / TILE;
+        int tilesY = height / TILE;
+        if (tilesX == 0 || tilesY == 0) {
+            return 1;
+        }
+        double n = TILE * TILE;
+        double sum = 0;
+        float[] sums = new float[5];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                PixelKernels.blockMoments(a, b, ty * TILE * width + tx * TILE, width, TILE, sums);
+                double sa = sums[0], sb = sums[1], saa = sums[2], sbb = sums[3], sab = sums[4];
+                double meanA = sa / n;
+                double meanB = sb / n;
+                double varA = saa / n - meanA * meanA;
+                double varB = sbb / n - meanB * meanB;
+                double cov = sab / n - meanA * meanB;
+                sum += ((2 * meanA * meanB + C1) * (2 * cov + C2))
+                        / ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+            }
+        }
+        return sum / (tilesX * tilesY);
+    }
+
+    private static float[] halve(float[] plane, int width, int halfWidth, int halfHeight) {
+        float[] half = new float[halfWidth * halfHeight];
+        for (int y = 0; y < halfHeight; y++) {
+            int row = 2 * y * width;
+            for (int x = 0; x < halfWidth; x++) {
+                int i = row + 2 * x;
+                half[y * halfWidth + x] = (plane[i] + plane[i + 1] + plane[i + width] + plane[i + width + 1]) * 0.25f;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * BT.601 luma, composited onto white when the image has alpha, averaged
+     * over each step x step block; blocks cut off by the right or bottom edge
+     * average the pixels they have.
+     */
+    private static float[] luma(BufferedImage image, int step, int width, int height) {
+        float[] plane = new float[width * height];
+        // The top byte of TYPE_INT_RGB data is not alpha, so only read it when the model has one
+        boolean alpha = image.getColorModel().hasAlpha();
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        int[] packed = PixelKernels.packedPixels(image);
+        int[] row = packed == null ? new int[sourceWidth] : null;
+        for (int y = 0; y < height; y++) {
+            int firstRow = y * step;
+            int lastRow = Math.min(firstRow + step, sourceHeight);
+            int offset = y * width;
+            for (int sy = firstRow; sy < lastRow; sy++) {
+                if (packed == null) {
+                    image.getRGB(0, sy, sourceWidth, 1, row, 0, sourceWidth);
+                }
+                int base = packed != null ? sy * sourceWidth : 0;
+                int[] pixels = packed != null ? packed : row;
+                for (int sx = 0; sx < sourceWidth; sx++) {
+                    int rgb = pixels[base + sx];
+                    float value = 0.299f * ((rgb >> 16) & 0xFF)
+                            + 0.587f * ((rgb >> 8) & 0xFF)
+                            + 0.114f * (rgb & 0xFF);
+                    if (alpha) {
+                        float a = (rgb >>> 24) / 255f;
+                        value = value * a + 255f * (1 - a);
+                    }
+                    plane[offset + sx / step] += value;
+                }
+            }
+            int rows = lastRow - firstRow;
+            for (int x = 0; x < width; x++) {
+                int columns = Math.min(step, sourceWidth - x * step);
+                plane[offset + x] /= rows * columns;
+            }
+        }
+        return plane;
+    }
+}
@@ -0,0 +1,167 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.util.LoggerUtil;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Finds the highest quality whose encoding fits a byte budget by binary search
+ * over in-memory encodes of one decoded image. Two growable buffers are reused
+ * for every attempt, one holding the best fit so far. If the lowest allowed
+ * quality is still too big the image is scaled down and the search repeated.
+ */
+public class TargetSizeEncoder {
+    // A fit within this fraction below the target is good enough to stop early
+    private static final double TOLERANCE = 0.05;
+    private static final int MAX_ITERATIONS = 8;
+    private static final int MAX_RESIZES = 4;
+    private static final int MIN_DIMENSION = 16;
+
+    private final QualityEncoder encoder;
+    private final long targetBytes;
+    private final int minQuality;
+    private final int maxQuality;
+    private Buffer current = new Buffer();
+    private Buffer best = new Buffer();
+
+    public TargetSizeEncoder(QualityEncoder encoder, long targetBytes, int minQuality, int maxQuality) {
+        this.encoder = encoder;
+        this.targetBytes = targetBytes;
+        this.minQuality = Math.min(minQuality, maxQuality);
+        this.maxQuality = maxQuality;
+    }
+
+    /**
+     * Encode the image as close to the target as possible. When even the
+     * smallest attempt is over budget, that attempt is returned with
+     * {@link Result#fits()} false.
+     */
+    public Result encode(BufferedImage image) throws IOException {
+        BufferedImage candidate = image;
+        for (int resize = 0; ; resize++) {
+            Result result = search(candidate);
+            if (result.fits() || resize == MAX_RESIZES) {
+                return result;
+            }
+            // Bytes scale roughly with pixel count; aim a little under the target
+            double scale = Math.sqrt((double) targetBytes / result.getLength()) * 0.95;
+            int width = (int) (candidate.getWidth() * scale);
+            int height = (int) (candidate.getHeight() * scale);
+            if (width < MIN_DIMENSION || height < MIN_DIMENSION) {
+                return result;
+            }
+            LoggerUtil.logInfo(String.format("Target %d bytes not reached at quality %d (%d bytes), scaling to %dx%d",
+                    targetBytes, result.getQuality(), result.getLength(), width, height));
+            candidate = scale(candidate, width, height);
+        }
+    }
+
+    private Result search(BufferedImage image) throws IOException {
+        int low = minQuality;
+        int high = maxQuality;
+        int bestQuality = -1;
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS && low <= high; iteration++) {
+            int quality = (low + high + 1) / 2;
+            current.reset();
+            encoder.encode(image, quality, current);
+            long length = current.size();
+
+            if (length <= targetBytes) {
+                swap();
+                bestQuality = quality;
+                if (length >= targetBytes * (1 - TOLERANCE)) {
+                    break;
+                }
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+
+        if (bestQuality >= 0) {
+            return new Result(best, bestQuality, image, true);
+        }
+        // Nothing fit; the floor is the smallest this size can get
+        current.reset();
+        encoder.encode(image, minQuality, current);
+        swap();
+        return new Result(best, minQuality, image, best.size() <= targetBytes);
+    }
+
+    private void swap() {
+        Buffer previous = best;
+        best = current;
+        current = previous;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        // Bicubic drawImage aliases below half size; box-halve first where the layout allows
+        while (image.getWidth() / 2 >= width && image.getHeight() / 2 >= height) {
+            BufferedImage half = PixelKernels.halve(image);
+            if (half == null) {
+                break;
+            }
+            image = half;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        java.awt.Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Encodes an image at a quality between 0 and 100.
+     */
+    public interface QualityEncoder {
+        void encode(BufferedImage image, int quality, OutputStream out) throws IOException;
+    }
+
+    public static final class Result {
+        private final Buffer buffer;
+        private final int quality;
+        private final BufferedImage image;
+        private final boolean fits;
+
+        private Result(Buffer buffer, int quality, BufferedImage image, boolean fits) {
+            this.buffer = buffer;
+            this.quality = quality;
+            this.image = image;
+            this.fits = fits;
+        }
+
+        public int getQuality() { return quality; }
+        public BufferedImage getImage() { return image; }
+        public boolean fits() { return fits; }
+        public int getLength() { return buffer.size(); }
+
+        /**
+         * Copy the encoded bytes out without an intermediate array.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            buffer.writeTo(out);
+        }
+
+        public byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+
+    // ByteArrayOutputStream keeps its array across reset(), which is all the reuse needed
+    private static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(64 * 1024);
+        }
+    }
+}
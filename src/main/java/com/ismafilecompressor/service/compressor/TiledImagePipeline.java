@@ -0,0 +1,562 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.util.LoggerUtil;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Compresses images too large to hold in memory by working on horizontal
+ * strips. Source rows are decoded in order, area-averaged down to the exact
+ * target size (the size the in-memory resize would produce) and handed to an
+ * encoder that consumes strips in order, so peak memory is a few strips
+ * whatever the input size. Non-interlaced PNGs are inflated once through
+ * PngRowReader; TIFFs (and interlaced PNGs) are read as source regions of
+ * several rows, for which TIFF readers fetch only the tiles a region touches.
+ */
+public class TiledImagePipeline implements Closeable {
+    // Decoded bytes per strip at output resolution, and per region read at source resolution
+    private static final long STRIP_BYTES = 32L * 1024 * 1024;
+    // Strip heights are kept to whole JPEG MCU rows
+    private static final int ROW_ALIGN = 16;
+    // Baseline JPEG cannot describe larger images
+    private static final int MAX_JPEG_DIMENSION = 65535;
+
+    private final File input;
+    private final ImageInputStream iis;
+    private final ImageReader reader;
+    // Whether rows come from PngRowReader rather than region reads
+    private final boolean streamed;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int regionRows;
+    private final int width;
+    private final int height;
+    private final int stripHeight;
+    // Whether strips are ARGB: alpha was asked for and the source has it
+    private final boolean alpha;
+
+    private RowSource source;
+    private AreaAverager averager;
+    private int[] sourceRow;
+    // Next output row the current row source will produce
+    private int nextRow;
+
+    public TiledImagePipeline(File input, int maxWidth, int maxHeight, boolean keepAlpha) throws IOException {
+        this.input = input;
+        this.iis = ImageIO.createImageInputStream(input);
+        if (iis == null) {
+            throw new IOException("Cannot read image file");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            throw new IOException("Cannot read image file");
+        }
+        this.reader = readers.next();
+        // Not seek-forward-only: a writer that revisits a strip makes the rows be read again
+        reader.setInput(iis, false, true);
+        this.sourceWidth = reader.getWidth(0);
+        this.sourceHeight = reader.getHeight(0);
+
+        boolean sourceAlpha;
+        try (PngRowReader png = PngRowReader.open(input)) {
+            this.streamed = png != null;
+            sourceAlpha = streamed ? png.hasAlpha() : hasAlpha(reader);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.alpha = keepAlpha && sourceAlpha;
+
+        double scale = Math.min((double) maxWidth / sourceWidth, (double) maxHeight / sourceHeight);
+        if (scale < 1.0) {
+            this.width = (int) Math.max(1, Math.min(maxWidth, Math.round(sourceWidth * scale)));
+            this.height = (int) Math.max(1, Math.min(maxHeight, Math.round(sourceHeight * scale)));
+        } else {
+            this.width = sourceWidth;
+            this.height = sourceHeight;
+        }
+        this.regionRows = (int) Math.max(1, Math.min(sourceHeight, STRIP_BYTES / (4L * sourceWidth)));
+
+        long rows = STRIP_BYTES / (4L * width);
+        this.stripHeight = (int) Math.max(ROW_ALIGN, Math.min(height, rows / ROW_ALIGN * ROW_ALIGN));
+    }
+
+    /**
+     * Readers that can decode a source region without the rest of the image.
+     */
+    public static boolean supports(File input) {
+        String name = input.getName().toLowerCase();
+        return name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(".png");
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /**
+     * Bytes held at once: the strip being filled, the strip cached for the
+     * writer and the writer's copy of it, plus the source side (a region in
+     * the reader's layout and as ARGB, or a couple of PNG rows) and the
+     * averaging sums.
+     */
+    public long getPeakBytes() {
+        long source = streamed ? 2L * 8 * sourceWidth : 2L * 4 * sourceWidth * regionRows;
+        return 3L * 4 * width * stripHeight + source + 3L * 4 * Long.BYTES * width;
+    }
+
+    private static boolean hasAlpha(ImageReader reader) throws IOException {
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        if (raw == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            raw = types.hasNext() ? types.next() : null;
+        }
+        return raw != null && raw.getColorModel().hasAlpha();
+    }
+
+    public boolean canWriteJpeg() {
+        return width <= MAX_JPEG_DIMENSION && height <= MAX_JPEG_DIMENSION;
+    }
+
+    /**
+     * Stream all strips to cjpeg as one PPM over stdin.
+     */
+    public void writePpm(OutputStream stdin) throws IOException {
+        OutputStream out = new BufferedOutputStream(stdin, 64 * 1024);
+        EncoderBridge.writePpmHeader(width, height, out);
+        for (int y = 0; y < height; y += stripHeight) {
+            EncoderBridge.writePpmRows(readStrip(y, Math.min(stripHeight, height - y)), out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a striped TIFF with the Java TIFF writer, which pulls one strip at
+     * a time from the source image. compressionType is "JPEG" or "Deflate".
+     */
+    public void writeTiff(File output, String compressionType, float quality) throws IOException {
+        ImageWriter writer = writerFor("tiff");
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionType(compressionType);
+        if ("JPEG".equals(compressionType)) {
+            param.setCompressionQuality(quality);
+        }
+        if (param.canWriteTiles()) {
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(width, stripHeight, 0, 0);
+        }
+        write(writer, param, output);
+    }
+
+    /**
+     * Write a PNG with the JDK PNG writer, which fetches the source one row at
+     * a time, so rows are served from the current strip.
+     */
+    public void writePng(File output) throws IOException {
+        ImageWriter writer = writerFor("png");
+        write(writer, writer.getDefaultWriteParam(), output);
+    }
+
+    private static ImageWriter writerFor(String format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No " + format.toUpperCase() + " writer available");
+        }
+        return writers.next();
+    }
+
+    private void write(ImageWriter writer, ImageWriteParam param, File output) throws IOException {
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(new StripImage(), null, null), param);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Output rows [y, y + rows) as an ARGB image when alpha is kept, otherwise
+     * RGB with transparency flattened onto white. Strips are produced in
+     * order; asking for an earlier one starts again from the first row.
+     */
+    private BufferedImage readStrip(int y, int rows) throws IOException {
+        if (source == null || y < nextRow) {
+            if (source != null) {
+                LoggerUtil.logInfo("Tiled pipeline: writer went back to row " + y + ", decoding again from the top");
+            }
+            rewind();
+        }
+        int[] skipped = null;
+        while (nextRow < y) {
+            if (skipped == null) {
+                skipped = new int[width];
+            }
+            nextOutputRow(skipped, 0);
+        }
+        BufferedImage strip = new BufferedImage(width, rows,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = PixelKernels.packedPixels(strip);
+        for (int row = 0; row < rows; row++) {
+            nextOutputRow(pixels, row * width);
+        }
+        return strip;
+    }
+
+    private void rewind() throws IOException {
+        if (source != null) {
+            source.close();
+            source = null;
+        }
+        if (streamed) {
+            PngRowReader png = PngRowReader.open(input);
+            if (png == null) {
+                throw new IOException("PNG can no longer be read row by row: " + input.getName());
+            }
+            source = new RowSource() {
+                @Override
+                public void readRow(int[] argb) throws IOException {
+                    png.readRow(argb);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    png.close();
+                }
+            };
+        } else {
+            source = new RegionRows();
+        }
+        averager = width == sourceWidth && height == sourceHeight
+                ? null : new AreaAverager(sourceWidth, sourceHeight, width, height);
+        if (sourceRow == null) {
+            sourceRow = new int[sourceWidth];
+        }
+        nextRow = 0;
+    }
+
+    private void nextOutputRow(int[] out, int offset) throws IOException {
+        if (averager == null) {
+            readSourceRow();
+            System.arraycopy(sourceRow, 0, out, offset, width);
+        } else {
+            do {
+                readSourceRow();
+            } while (!averager.add(sourceRow, out, offset));
+        }
+        nextRow++;
+    }
+
+    private void readSourceRow() throws IOException {
+        source.readRow(sourceRow);
+        if (!alpha) {
+            // Transparent areas become white, as in the full-image path
+            PixelKernels.flattenOnWhite(sourceRow, sourceRow, sourceWidth);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (source != null) {
+                source.close();
+            }
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    /**
+     * Source rows from top to bottom as non-premultiplied ARGB.
+     */
+    private interface RowSource extends Closeable {
+        void readRow(int[] argb) throws IOException;
+    }
+
+    /**
+     * Rows from ImageIO region reads of regionRows source rows at a time.
+     */
+    private final class RegionRows implements RowSource {
+        private int[] region;
+        private int regionY;
+        private int regionHeight;
+        private int next;
+
+        @Override
+        public void readRow(int[] argb) throws IOException {
+            if (next == regionY + regionHeight) {
+                readRegion(next, Math.min(regionRows, sourceHeight - next));
+            }
+            System.arraycopy(region, (next - regionY) * sourceWidth, argb, 0, sourceWidth);
+            next++;
+        }
+
+        private void readRegion(int y, int count) throws IOException {
+            region = null;
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, sourceWidth, count));
+            BufferedImage decoded = reader.read(0, param);
+
+            BufferedImage direct = PixelKernels.toIntRgb(decoded);
+            if (direct != null) {
+                decoded = direct;
+            }
+            int[] pixels = PixelKernels.packedPixels(decoded);
+            if (pixels != null && decoded.getType() == BufferedImage.TYPE_INT_RGB) {
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] |= 0xFF000000;
+                }
+            } else if (pixels == null) {
+                BufferedImage converted = new BufferedImage(sourceWidth, count, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = converted.createGraphics();
+                try {
+                    // Copy, not blend: SrcOver onto the empty image would round low-alpha colours
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(decoded, 0, 0, null);
+                } finally {
+                    g.dispose();
+                }
+                pixels = PixelKernels.packedPixels(converted);
+            }
+            region = pixels;
+            regionY = y;
+            regionHeight = count;
+        }
+
+        @Override
+        public void close() {
+            region = null;
+        }
+    }
+
+    /**
+     * Turns source rows, fed in order, into output rows of the target size.
+     * Each output pixel is the mean of the source area it covers, weighted by
+     * coverage, with colour weighted by alpha so transparent pixels do not
+     * darken their neighbours. Weights are integers: along x a source pixel
+     * spans dw units and an output pixel sw, so every output pixel sums to
+     * sw * sh units and the arithmetic is exact.
+     */
+    private static final class AreaAverager {
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final int width;
+        private final int height;
+        // Output column each source column starts in, and the units it gives that column
+        private final int[] column;
+        private final int[] columnWeight;
+        // Alpha and alpha-weighted R, G, B sums per output column
+        private final long[] horizontal;
+        private long[] current;
+        private long[] next;
+        private int sourceY;
+
+        AreaAverager(int sourceWidth, int sourceHeight, int width, int height) {
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.width = width;
+            this.height = height;
+            this.column = new int[sourceWidth];
+            this.columnWeight = new int[sourceWidth];
+            for (int x = 0; x < sourceWidth; x++) {
+                long start = (long) x * width;
+                long boundary = (start / sourceWidth + 1) * sourceWidth;
+                column[x] = (int) (start / sourceWidth);
+                columnWeight[x] = (int) (Math.min(start + width, boundary) - start);
+            }
+            this.horizontal = new long[4 * width];
+            this.current = new long[4 * width];
+            this.next = new long[4 * width];
+        }
+
+        /**
+         * Adds the next source row. Returns true once it completes an output
+         * row, which is then written to out at offset.
+         */
+        boolean add(int[] row, int[] out, int offset) {
+            Arrays.fill(horizontal, 0);
+            for (int x = 0; x < sourceWidth; x++) {
+                int p = row[x];
+                long a = p >>> 24;
+                if (a == 0) {
+                    continue;
+                }
+                long r = ((p >> 16) & 0xFF) * a;
+                long g = ((p >> 8) & 0xFF) * a;
+                long b = (p & 0xFF) * a;
+                int k = 4 * column[x];
+                long w = columnWeight[x];
+                horizontal[k] += a * w;
+                horizontal[k + 1] += r * w;
+                horizontal[k + 2] += g * w;
+                horizontal[k + 3] += b * w;
+                long rest = width - w;
+                if (rest > 0) {
+                    horizontal[k + 4] += a * rest;
+                    horizontal[k + 5] += r * rest;
+                    horizontal[k + 6] += g * rest;
+                    horizontal[k + 7] += b * rest;
+                }
+            }
+
+            long start = (long) sourceY * height;
+            long boundary = (start / sourceHeight + 1) * sourceHeight;
+            long w = Math.min(start + height, boundary) - start;
+            accumulate(current, w);
+            if (w < height) {
+                accumulate(next, height - w);
+            }
+            sourceY++;
+            if (start + height < boundary) {
+                return false;
+            }
+            emit(out, offset);
+            long[] done = current;
+            current = next;
+            next = done;
+            Arrays.fill(next, 0);
+            return true;
+        }
+
+        private void accumulate(long[] sums, long weight) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += horizontal[i] * weight;
+            }
+        }
+
+        private void emit(int[] out, int offset) {
+            long total = (long) sourceWidth * sourceHeight;
+            for (int x = 0, k = 0; x < width; x++, k += 4) {
+                long a = current[k];
+                if (a == 0) {
+                    out[offset + x] = 0;
+                    continue;
+                }
+                long half = a / 2;
+                int alpha = (int) ((a + total / 2) / total);
+                int r = (int) ((current[k + 1] + half) / a);
+                int g = (int) ((current[k + 2] + half) / a);
+                int b = (int) ((current[k + 3] + half) / a);
+                out[offset + x] = alpha << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    /**
+     * The whole output as a RenderedImage whose tiles are the strips, decoded
+     * on demand. Only the most recent strip is cached.
+     */
+    private final class StripImage implements RenderedImage {
+        private final ImageTypeSpecifier type = ImageTypeSpecifier.createFromBufferedImageType(
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        private int cachedStrip = -1;
+        private Raster cached;
+
+        private Raster strip(int index) {
+            if (index != cachedStrip) {
+                int y = index * stripHeight;
+                try {
+                    BufferedImage image = readStrip(y, Math.min(stripHeight, height - y));
+                    cached = image.getRaster().createTranslatedChild(0, y);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cachedStrip = index;
+                LoggerUtil.logInfo(String.format("Tiled pipeline: strip %d/%d", index + 1, getNumYTiles()));
+            }
+            return cached;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return strip(tileY);
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            int first = rect.y / stripHeight;
+            int last = (rect.y + rect.height - 1) / stripHeight;
+            if (first == last) {
+                return strip(first).createChild(rect.x, rect.y, rect.width, rect.height, rect.x, rect.y, null);
+            }
+            // Spans strips: assemble just this rectangle
+            WritableRaster raster = getColorModel().createCompatibleWritableRaster(rect.width, rect.height)
+                    .createWritableTranslatedChild(rect.x, rect.y);
+            copyInto(raster);
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) getData();
+            }
+            copyInto(raster);
+            return raster;
+        }
+
+        private void copyInto(WritableRaster raster) {
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            if (bounds.isEmpty()) {
+                return;
+            }
+            for (int index = bounds.y / stripHeight; index * stripHeight < bounds.y + bounds.height; index++) {
+                Raster strip = strip(index);
+                Rectangle overlap = strip.getBounds().intersection(bounds);
+                raster.setRect(strip.createChild(overlap.x, overlap.y, overlap.width, overlap.height,
+                        overlap.x, overlap.y, null));
+            }
+        }
+
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
+        @Override public ColorModel getColorModel() { return type.getColorModel(); }
+        @Override public SampleModel getSampleModel() { return type.getSampleModel(width, stripHeight); }
+        @Override public int getWidth() { return width; }
+        @Override public int getHeight() { return height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return 1; }
+        @Override public int getNumYTiles() { return (height + stripHeight - 1) / stripHeight; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return width; }
+        @Override public int getTileHeight() { return stripHeight; }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+    }
+}
@@ -1,9 +1,14 @@
 package com.ismafilecompressor.service.compressor;
 
 import com.ismafilecompressor.model.CompressionOptions;
+import com.ismafilecompressor.service.CompressionScheduler;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.util.FallbackReport;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.LoggerUtil;
+import com.ismafilecompressor.util.ProcessRunner;
 import java.io.*;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -50,6 +55,12 @@ public class VideoCompressor implements FileCompressor {
             }
             
             return output;
+        } catch (InterruptedException e) {
+            // Cancelled: drop the partial output instead of falling back to a copy
+            if (output.exists()) {
+                output.delete();
+            }
+            throw e;
         } catch (Exception e) {
             LoggerUtil.logError("Video compression failed: " + e.getMessage(), e);
             // Fallback to copy
@@ -132,28 +143,23 @@ public class VideoCompressor implements FileCompressor {
             );
         }
 
-        Process process = pb.start();
+        // Keep each encoder within its share of the cores while other transcodes run
+        int threads = CompressionScheduler.getToolThreadBudget();
+        List<String> command = pb.command();
+        command.addAll(command.size() - 2, List.of("-threads", String.valueOf(threads)));
 
-        // Read error stream (FFmpeg outputs progress to stderr)
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-            // Could parse progress from FFmpeg output here if needed
-        }
-
-        // Wait for process (video compression can take a long time)
-        boolean completed = process.waitFor(1800, TimeUnit.SECONDS); // 30 minutes timeout
+        // Video compression can take a long time
+        ProcessRunner.Result result = ProcessRunner.of(command)
+                .threads(threads)
+                .timeout(1800, TimeUnit.SECONDS) // 30 minutes timeout
+                .run();
 
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("FFmpeg video compression timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("FFmpeg failed with exit code " + exitCode + ": " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("FFmpeg failed with exit code " + result.getExitCode() + ": " + result.getOutput());
         }
     }
 
@@ -175,21 +181,7 @@ public class VideoCompressor implements FileCompressor {
     }
     
     private boolean isCodecAvailable(String codec) {
-        try {
-            Process process = new ProcessBuilder("ffmpeg", "-codecs").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains(codec)) {
-                    process.destroy();
-                    return true;
-                }
-            }
-            process.destroy();
-        } catch (Exception e) {
-            // Ignore
-        }
-        return false;
+        return ToolRegistry.hasFfmpegCodec(codec);
     }
     
     private int getCrfValue(CompressionOptions options) {
@@ -288,16 +280,12 @@ public class VideoCompressor implements FileCompressor {
             fis.transferTo(fos);
         }
 
+        FallbackReport.mark("copied the original");
         return output;
     }
 
     private boolean isFfmpegAvailable() {
-        try {
-            Process process = new ProcessBuilder("ffmpeg", "-version").start();
-            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return ToolRegistry.isAvailable(ToolRegistry.FFMPEG);
     }
 
     @Override
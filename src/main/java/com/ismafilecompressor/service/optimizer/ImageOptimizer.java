@@ -1,5 +1,6 @@
 package com.ismafilecompressor.service.optimizer;
 
+import com.ismafilecompressor.service.compressor.PixelKernels;
 import com.ismafilecompressor.util.FileManager;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -7,21 +8,18 @@ import java.io.File;
 import java.util.*;
 
 public class ImageOptimizer {
+    // Pixels sampled for the colour count, and the count from which an image counts as a photo
+    private static final int PHOTO_SAMPLES = 65536;
+    private static final int PHOTO_COLORS = 2048;
+
     private final MozJpegOptimizer mozJpegOptimizer;
     private final WebPOptimizer webPOptimizer;
     private final PngQuantOptimizer pngQuantOptimizer;
-    private final Map<String, Boolean> toolAvailability;
 
     public ImageOptimizer() {
         this.mozJpegOptimizer = new MozJpegOptimizer();
         this.webPOptimizer = new WebPOptimizer();
         this.pngQuantOptimizer = new PngQuantOptimizer();
-        this.toolAvailability = new HashMap<>();
-
-        // Check tool availability
-        toolAvailability.put("mozjpeg", mozJpegOptimizer.isAvailable());
-        toolAvailability.put("webp", webPOptimizer.isAvailable());
-        toolAvailability.put("pngquant", pngQuantOptimizer.isAvailable());
     }
 
     public File optimizeImage(File input, OptimizationOptions options) throws Exception {
@@ -56,12 +54,12 @@ public class ImageOptimizer {
 
     private File optimizeJpeg(File input, OptimizationOptions options) throws Exception {
         // Strategy 1: Convert to WebP if enabled and available
-        if (options.convertToWebP && toolAvailability.get("webp")) {
+        if (options.convertToWebP && webPOptimizer.isAvailable()) {
             return webPOptimizer.convertToWebP(input, options.quality, false);
         }
 
         // Strategy 2: Use MozJPEG if available
-        if (toolAvailability.get("mozjpeg")) {
+        if (mozJpegOptimizer.isAvailable()) {
             return mozJpegOptimizer.optimizeJpeg(input, options.quality, options.progressive);
         }
 
@@ -71,12 +69,12 @@ public class ImageOptimizer {
 
     private File optimizePng(File input, OptimizationOptions options) throws Exception {
         // Strategy 1: Convert to WebP if enabled (WebP is often better for PNG content)
-        if (options.convertToWebP && toolAvailability.get("webp")) {
+        if (options.convertToWebP && webPOptimizer.isAvailable()) {
             return webPOptimizer.convertToWebP(input, options.quality, options.lossless);
         }
 
         // Strategy 2: Use pngquant for lossy PNG compression
-        if (options.lossyPng && toolAvailability.get("pngquant")) {
+        if (options.lossyPng && pngQuantOptimizer.isAvailable()) {
             return pngQuantOptimizer.optimizePng(input, options.maxColors,
                     options.qualityMin, options.qualityMax);
         }
@@ -100,7 +98,7 @@ public class ImageOptimizer {
         }
 
         // Otherwise, recompress WebP
-        if (toolAvailability.get("webp")) {
+        if (webPOptimizer.isAvailable()) {
             return webPOptimizer.convertToWebP(input, options.quality, options.lossless);
         }
 
@@ -163,23 +161,23 @@ public class ImageOptimizer {
     }
 
     private boolean isPhotographic(BufferedImage image) {
-        // Simple heuristic to detect if image is photographic
-        // Real implementation would be more sophisticated
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        // Photos are usually larger
-        return width * height > 500 * 500;
+        // Graphics, screenshots and scans use few distinct colours; photos use many
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (pixels < 64 * 64) {
+            return false;
+        }
+        int colors = PixelKernels.countColors(image, PHOTO_SAMPLES, PHOTO_COLORS);
+        return colors >= PHOTO_COLORS;
     }
 
     public Map<String, String> getToolInfo() {
         Map<String, String> info = new HashMap<>();
 
-        info.put("mozjpeg", toolAvailability.get("mozjpeg") ?
+        info.put("mozjpeg", mozJpegOptimizer.isAvailable() ?
                 "Available (" + mozJpegOptimizer.getVersion() + ")" : "Not available");
-        info.put("webp", toolAvailability.get("webp") ?
+        info.put("webp", webPOptimizer.isAvailable() ?
                 "Available (" + webPOptimizer.getVersion() + ")" : "Not available");
-        info.put("pngquant", toolAvailability.get("pngquant") ?
+        info.put("pngquant", pngQuantOptimizer.isAvailable() ?
                 "Available (" + pngQuantOptimizer.getVersion() + ")" : "Not available");
 
         return info;
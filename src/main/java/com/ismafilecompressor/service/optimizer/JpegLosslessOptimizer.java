@@ -0,0 +1,1037 @@
+package com.ismafilecompressor.service.optimizer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lossless JPEG optimizer working on the quantized DCT coefficients.
+ * Baseline (Huffman, 8-bit) files are entropy-decoded and rewritten as
+ * progressive JPEGs with per-scan optimized Huffman tables; no IDCT or
+ * re-quantization happens, so the decoded pixels are bit-identical.
+ * Other JPEG flavours (already progressive, arithmetic coded, 12-bit) only
+ * have their metadata stripped.
+ *
+ * Kept segments: JFIF, ICC profile and Adobe APP14 (needed to interpret the
+ * colours) plus the EXIF orientation when it is not the default.
+ */
+public class JpegLosslessOptimizer {
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DHT = 0xC4;
+    private static final int DRI = 0xDD;
+    private static final int COM = 0xFE;
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int SOF2 = 0xC2;
+
+    // The interleaved DC scan may hold at most this many blocks per MCU (T.81 B.2.3)
+    private static final int MAX_BLOCKS_IN_MCU = 10;
+    private static final int MAX_EOBRUN = 0x7FFF;
+
+    /**
+     * Optimize the given file into output. Returns false (and leaves output
+     * untouched) when the input is not a JPEG this optimizer can handle or
+     * the result would not be smaller.
+     */
+    public boolean optimizeJpeg(File input, File output) throws IOException {
+        if (!input.exists()) {
+            throw new FileNotFoundException("Input file not found: " + input.getPath());
+        }
+        byte[] original = Files.readAllBytes(input.toPath());
+        byte[] optimized = optimize(original);
+        if (optimized == null || optimized.length >= original.length) {
+            return false;
+        }
+        Files.write(output.toPath(), optimized);
+        return true;
+    }
+
+    /**
+     * Returns the optimized JPEG, or null if the data cannot be handled.
+     */
+    public byte[] optimize(byte[] jpeg) throws IOException {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != SOI) {
+            return null;
+        }
+        try {
+            return new Transcoder(jpeg).run();
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (RuntimeException | IOException e) {
+            // Corrupt or unusual stream: leave it to the regular encoder
+            return null;
+        }
+    }
+
+    /**
+     * One pass over one file: parses segments, decodes baseline scans into
+     * coefficient buffers and writes the new stream.
+     */
+    private static final class Transcoder {
+        private final byte[] data;
+        private final ByteSink out = new ByteSink();
+        private final List<byte[]> keptSegments = new ArrayList<>();
+        private final List<byte[]> quantTables = new ArrayList<>();
+        private final HuffmanDecoder[] dcTables = new HuffmanDecoder[4];
+        private final HuffmanDecoder[] acTables = new HuffmanDecoder[4];
+        private int restartInterval;
+        private byte[] frameHeader;
+        private Component[] components;
+        private int mcusPerLine;
+        private int mcusPerColumn;
+        private boolean stripOnly;
+
+        private Transcoder(byte[] data) {
+            this.data = data;
+        }
+
+        private byte[] run() throws IOException {
+            int pos = 2;
+            out.writeMarker(SOI);
+            while (pos < data.length) {
+                int marker = nextMarker(pos);
+                if (marker < 0) {
+                    throw new IOException("Missing marker");
+                }
+                pos = marker + 2;
+                int code = data[marker + 1] & 0xFF;
+                if (code == EOI) {
+                    break;
+                }
+                if (code >= 0xD0 && code <= 0xD7) {
+                    continue; // stray RST
+                }
+
+                int length = readUnsigned16(pos);
+                int bodyStart = pos + 2;
+                int bodyEnd = pos + length;
+                if (length < 2 || bodyEnd > data.length) {
+                    throw new IOException("Truncated segment");
+                }
+                byte[] body = Arrays.copyOfRange(data, bodyStart, bodyEnd);
+                pos = bodyEnd;
+
+                if (code == SOS) {
+                    int scanEnd = findScanEnd(pos);
+                    if (stripOnly) {
+                        flushHeaders();
+                        out.writeSegment(SOS, body);
+                        out.write(data, pos, scanEnd - pos);
+                    } else {
+                        decodeScan(body, pos, scanEnd);
+                    }
+                    pos = scanEnd;
+                } else if (code >= 0xE0 && code <= 0xEF) {
+                    byte[] kept = filterAppSegment(code, body);
+                    if (kept != null) {
+                        keptSegments.add(kept);
+                    }
+                } else if (code == COM) {
+                    // Comments are dropped
+                } else if (code == DQT) {
+                    quantTables.add(segment(DQT, body));
+                } else if (code == DHT) {
+                    if (stripOnly) {
+                        flushHeaders();
+                        out.writeSegment(DHT, body);
+                    } else {
+                        readHuffmanTables(body);
+                    }
+                } else if (code == DRI) {
+                    restartInterval = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                    if (stripOnly) {
+                        flushHeaders();
+                        out.writeSegment(DRI, body);
+                    }
+                } else if (isStartOfFrame(code)) {
+                    readFrame(code, body);
+                } else if (stripOnly || frameHeader == null) {
+                    // Copied through untouched (e.g. DAC for arithmetic coding)
+                    keptSegments.add(segment(code, body));
+                } else {
+                    // DNL, EXP and friends are not worth handling here
+                    throw new IOException("Unsupported marker 0x" + Integer.toHexString(code));
+                }
+            }
+
+            if (frameHeader == null) {
+                return null;
+            }
+            if (!stripOnly) {
+                writeProgressive();
+            }
+            out.writeMarker(EOI);
+            return out.toByteArray();
+        }
+
+        // ---------- parsing ----------
+
+        private int nextMarker(int pos) {
+            for (int i = pos; i + 1 < data.length; i++) {
+                if ((data[i] & 0xFF) == 0xFF) {
+                    int code = data[i + 1] & 0xFF;
+                    if (code != 0x00 && code != 0xFF) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * End of the entropy-coded data: the first marker that is neither a
+         * stuffed zero nor a restart marker.
+         */
+        private int findScanEnd(int pos) {
+            for (int i = pos; i + 1 < data.length; i++) {
+                if ((data[i] & 0xFF) == 0xFF) {
+                    int code = data[i + 1] & 0xFF;
+                    if (code != 0x00 && code != 0xFF && (code < 0xD0 || code > 0xD7)) {
+                        return i;
+                    }
+                }
+            }
+            return data.length;
+        }
+
+        private int readUnsigned16(int pos) {
+            if (pos + 1 >= data.length) {
+                throw new IllegalStateException("Truncated JPEG");
+            }
+            return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        }
+
+        private static boolean isStartOfFrame(int code) {
+            return code >= 0xC0 && code <= 0xCF && code != DHT && code != 0xC8 && code != 0xCC;
+        }
+
+        private void readFrame(int code, byte[] body) throws IOException {
+            if (frameHeader != null) {
+                throw new IOException("Multiple frames");
+            }
+            frameHeader = body;
+            int precision = body[0] & 0xFF;
+            int height = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+            int width = ((body[3] & 0xFF) << 8) | (body[4] & 0xFF);
+            int count = body[5] & 0xFF;
+
+            boolean huffmanSequential = code == SOF0 || code == SOF1;
+            if (!huffmanSequential || precision != 8 || height == 0 || count == 0 || count > 4
+                    || !quantTablesAre8Bit()) {
+                // Re-encoding needs baseline Huffman data; everything else is copied
+                stripOnly = true;
+                flushHeaders();
+                out.writeSegment(code, body);
+                return;
+            }
+
+            components = new Component[count];
+            int maxH = 1;
+            int maxV = 1;
+            for (int i = 0; i < count; i++) {
+                int offset = 6 + i * 3;
+                Component c = new Component();
+                c.id = body[offset] & 0xFF;
+                c.h = (body[offset + 1] & 0xFF) >> 4;
+                c.v = body[offset + 1] & 0x0F;
+                if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+                    throw new IOException("Bad sampling factors");
+                }
+                maxH = Math.max(maxH, c.h);
+                maxV = Math.max(maxV, c.v);
+                components[i] = c;
+            }
+
+            mcusPerLine = ceilDiv(width, 8 * maxH);
+            mcusPerColumn = ceilDiv(height, 8 * maxV);
+            for (Component c : components) {
+                c.blocksPerLine = ceilDiv(ceilDiv(width * c.h, maxH), 8);
+                c.blocksPerColumn = ceilDiv(ceilDiv(height * c.v, maxV), 8);
+                c.blocksPerLineForMcu = mcusPerLine * c.h;
+                int blocksPerColumnForMcu = mcusPerColumn * c.v;
+                c.coefficients = new short[c.blocksPerLineForMcu * blocksPerColumnForMcu * 64];
+            }
+        }
+
+        private boolean quantTablesAre8Bit() {
+            for (byte[] table : quantTables) {
+                // Segment layout: FF DB len(2) then [Pq|Tq, 64 or 128 values]...
+                int pos = 4;
+                while (pos < table.length) {
+                    int precision = (table[pos] & 0xFF) >> 4;
+                    if (precision != 0) {
+                        return false;
+                    }
+                    pos += 65;
+                }
+            }
+            return true;
+        }
+
+        private void readHuffmanTables(byte[] body) throws IOException {
+            int pos = 0;
+            while (pos < body.length) {
+                int tableClass = (body[pos] & 0xFF) >> 4;
+                int tableId = body[pos] & 0x0F;
+                if (tableId > 3 || tableClass > 1) {
+                    throw new IOException("Bad Huffman table id");
+                }
+                int[] counts = new int[17];
+                int total = 0;
+                for (int i = 1; i <= 16; i++) {
+                    counts[i] = body[pos + i] & 0xFF;
+                    total += counts[i];
+                }
+                byte[] symbols = Arrays.copyOfRange(body, pos + 17, pos + 17 + total);
+                HuffmanDecoder table = new HuffmanDecoder(counts, symbols);
+                if (tableClass == 0) {
+                    dcTables[tableId] = table;
+                } else {
+                    acTables[tableId] = table;
+                }
+                pos += 17 + total;
+            }
+        }
+
+        private byte[] filterAppSegment(int code, byte[] body) {
+            if (code == 0xE0 && startsWith(body, "JFIF\0")) {
+                // Only the fixed part; embedded thumbnails are dropped
+                byte[] jfif = Arrays.copyOf(body, Math.min(body.length, 14));
+                if (jfif.length == 14) {
+                    jfif[12] = 0;
+                    jfif[13] = 0;
+                }
+                return segment(code, jfif);
+            }
+            if (code == 0xE2 && startsWith(body, "ICC_PROFILE\0")) {
+                return segment(code, body);
+            }
+            if (code == 0xEE && startsWith(body, "Adobe")) {
+                return segment(code, body);
+            }
+            if (code == 0xE1 && startsWith(body, "Exif\0\0")) {
+                int orientation = readExifOrientation(body);
+                return orientation > 1 ? segment(code, minimalExif(orientation)) : null;
+            }
+            return null;
+        }
+
+        private void flushHeaders() {
+            for (byte[] segment : keptSegments) {
+                out.write(segment, 0, segment.length);
+            }
+            keptSegments.clear();
+            for (byte[] table : quantTables) {
+                out.write(table, 0, table.length);
+            }
+            quantTables.clear();
+        }
+
+        // ---------- decoding ----------
+
+        private void decodeScan(byte[] header, int start, int end) throws IOException {
+            if (components == null) {
+                throw new IOException("Scan before frame");
+            }
+            int count = header[0] & 0xFF;
+            Component[] scanComponents = new Component[count];
+            for (int i = 0; i < count; i++) {
+                int id = header[1 + i * 2] & 0xFF;
+                int tables = header[2 + i * 2] & 0xFF;
+                Component c = findComponent(id);
+                c.dcDecoder = dcTables[tables >> 4];
+                c.acDecoder = acTables[tables & 0x0F];
+                if (c.dcDecoder == null || c.acDecoder == null) {
+                    throw new IOException("Missing Huffman table");
+                }
+                c.predictor = 0;
+                scanComponents[i] = c;
+            }
+            int spectralStart = header[1 + count * 2] & 0xFF;
+            int spectralEnd = header[2 + count * 2] & 0xFF;
+            if (spectralStart != 0 || spectralEnd != 63) {
+                throw new IOException("Not a sequential scan");
+            }
+
+            BitReader in = new BitReader(data, start, end);
+            int mcu = 0;
+            if (count == 1) {
+                Component c = scanComponents[0];
+                for (int by = 0; by < c.blocksPerColumn; by++) {
+                    checkInterrupted();
+                    for (int bx = 0; bx < c.blocksPerLine; bx++) {
+                        mcu = restartIfNeeded(in, mcu, scanComponents);
+                        decodeBlock(in, c, c.blockOffset(bx, by));
+                    }
+                }
+            } else {
+                for (int my = 0; my < mcusPerColumn; my++) {
+                    checkInterrupted();
+                    for (int mx = 0; mx < mcusPerLine; mx++) {
+                        mcu = restartIfNeeded(in, mcu, scanComponents);
+                        for (Component c : scanComponents) {
+                            for (int v = 0; v < c.v; v++) {
+                                for (int h = 0; h < c.h; h++) {
+                                    decodeBlock(in, c, c.blockOffset(mx * c.h + h, my * c.v + v));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private int restartIfNeeded(BitReader in, int mcu, Component[] scanComponents) throws IOException {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                in.restart();
+                for (Component c : scanComponents) {
+                    c.predictor = 0;
+                }
+            }
+            return mcu + 1;
+        }
+
+        private static void decodeBlock(BitReader in, Component c, int offset) throws IOException {
+            short[] block = c.coefficients;
+            int size = c.dcDecoder.decode(in);
+            int diff = size == 0 ? 0 : extend(in.readBits(size), size);
+            c.predictor += diff;
+            block[offset] = (short) c.predictor;
+
+            int k = 1;
+            while (k < 64) {
+                int rs = c.acDecoder.decode(in);
+                int run = rs >> 4;
+                int bits = rs & 0x0F;
+                if (bits == 0) {
+                    if (run != 15) {
+                        break; // EOB
+                    }
+                    k += 16;
+                    continue;
+                }
+                k += run;
+                if (k > 63) {
+                    throw new IOException("Coefficient index out of range");
+                }
+                block[offset + k] = (short) extend(in.readBits(bits), bits);
+                k++;
+            }
+        }
+
+        private static int extend(int value, int bits) {
+            return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+        }
+
+        private Component findComponent(int id) throws IOException {
+            for (Component c : components) {
+                if (c.id == id) {
+                    return c;
+                }
+            }
+            throw new IOException("Unknown component " + id);
+        }
+
+        // ---------- progressive encoding ----------
+
+        /**
+         * Spectral selection only (no successive approximation): one DC scan,
+         * then luma split into low/high frequencies and one AC scan per
+         * chroma component, each with its own optimal Huffman table.
+         */
+        private void writeProgressive() throws IOException {
+            flushHeaders();
+            out.writeSegment(SOF2, frameHeader);
+
+            int blocksInMcu = 0;
+            for (Component c : components) {
+                blocksInMcu += c.h * c.v;
+            }
+            if (components.length > 1 && blocksInMcu <= MAX_BLOCKS_IN_MCU) {
+                writeScan(components, 0, 0);
+            } else {
+                for (Component c : components) {
+                    writeScan(new Component[]{c}, 0, 0);
+                }
+            }
+
+            for (int i = 0; i < components.length; i++) {
+                Component[] single = {components[i]};
+                if (i == 0 && components.length != 4) {
+                    writeScan(single, 1, 5);
+                    writeScan(single, 6, 63);
+                } else {
+                    writeScan(single, 1, 63);
+                }
+            }
+        }
+
+        private void writeScan(Component[] scanComponents, int spectralStart, int spectralEnd) throws IOException {
+            checkInterrupted();
+            boolean dc = spectralStart == 0;
+            ScanEncoder statistics = new ScanEncoder(null, scanComponents.length);
+            encodeScan(statistics, scanComponents, spectralStart, spectralEnd);
+
+            HuffmanEncoder[] tables = new HuffmanEncoder[scanComponents.length];
+            ByteSink dht = new ByteSink();
+            int tableCount = dc ? scanComponents.length : 1;
+            for (int t = 0; t < tableCount; t++) {
+                tables[t] = new HuffmanEncoder(statistics.frequencies[t]);
+                dht.write((dc ? 0x00 : 0x10) | t);
+                dht.write(tables[t].bits, 1, 16);
+                dht.write(tables[t].values, 0, tables[t].values.length);
+            }
+            out.writeSegment(DHT, dht.toByteArray());
+
+            ByteSink sos = new ByteSink();
+            sos.write(scanComponents.length);
+            for (int i = 0; i < scanComponents.length; i++) {
+                sos.write(scanComponents[i].id);
+                // DC tables in the high nibble, AC tables in the low nibble
+                sos.write(dc ? i << 4 : 0);
+            }
+            sos.write(spectralStart);
+            sos.write(spectralEnd);
+            sos.write(0); // Ah = Al = 0
+            out.writeSegment(SOS, sos.toByteArray());
+
+            ScanEncoder encoder = new ScanEncoder(tables, scanComponents.length);
+            encoder.sink = out;
+            encodeScan(encoder, scanComponents, spectralStart, spectralEnd);
+            encoder.flush();
+        }
+
+        private void encodeScan(ScanEncoder encoder, Component[] scanComponents,
+                                int spectralStart, int spectralEnd) {
+            if (spectralStart == 0) {
+                for (Component c : scanComponents) {
+                    c.predictor = 0;
+                }
+                if (scanComponents.length == 1) {
+                    Component c = scanComponents[0];
+                    for (int by = 0; by < c.blocksPerColumn; by++) {
+                        for (int bx = 0; bx < c.blocksPerLine; bx++) {
+                            encoder.encodeDc(c, c.blockOffset(bx, by), 0);
+                        }
+                    }
+                } else {
+                    for (int my = 0; my < mcusPerColumn; my++) {
+                        for (int mx = 0; mx < mcusPerLine; mx++) {
+                            for (int i = 0; i < scanComponents.length; i++) {
+                                Component c = scanComponents[i];
+                                for (int v = 0; v < c.v; v++) {
+                                    for (int h = 0; h < c.h; h++) {
+                                        encoder.encodeDc(c, c.blockOffset(mx * c.h + h, my * c.v + v), i);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                return;
+            }
+
+            Component c = scanComponents[0];
+            for (int by = 0; by < c.blocksPerColumn; by++) {
+                for (int bx = 0; bx < c.blocksPerLine; bx++) {
+                    encoder.encodeAc(c.coefficients, c.blockOffset(bx, by), spectralStart, spectralEnd);
+                }
+            }
+            encoder.flushEobRun();
+        }
+
+        private static void checkInterrupted() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("JPEG optimization cancelled");
+            }
+        }
+
+        private static int ceilDiv(int a, int b) {
+            return (a + b - 1) / b;
+        }
+    }
+
+    // ---------- EXIF orientation ----------
+
+    private static boolean startsWith(byte[] body, String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.ISO_8859_1);
+        if (body.length < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (body[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readExifOrientation(byte[] body) {
+        int tiff = 6;
+        if (body.length < tiff + 8) {
+            return 0;
+        }
+        boolean bigEndian = body[tiff] == 'M';
+        int ifd = tiff + readInt(body, tiff + 4, 4, bigEndian);
+        if (ifd < tiff || ifd + 2 > body.length) {
+            return 0;
+        }
+        int entries = readInt(body, ifd, 2, bigEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > body.length) {
+                return 0;
+            }
+            if (readInt(body, entry, 2, bigEndian) == 0x0112) {
+                return readInt(body, entry + 8, 2, bigEndian);
+            }
+        }
+        return 0;
+    }
+
+    private static int readInt(byte[] body, int pos, int size, boolean bigEndian) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = body[pos + (bigEndian ? i : size - 1 - i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    /**
+     * EXIF block carrying nothing but the orientation tag.
+     */
+    private static byte[] minimalExif(int orientation) {
+        return new byte[]{
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,             // TIFF header, IFD0 at offset 8
+                0, 1,                                     // one entry
+                0x01, 0x12, 0, 3, 0, 0, 0, 1,             // Orientation, SHORT, count 1
+                0, (byte) orientation, 0, 0,
+                0, 0, 0, 0                                // no next IFD
+        };
+    }
+
+    private static byte[] segment(int code, byte[] body) {
+        byte[] segment = new byte[body.length + 4];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) code;
+        segment[2] = (byte) ((body.length + 2) >> 8);
+        segment[3] = (byte) (body.length + 2);
+        System.arraycopy(body, 0, segment, 4, body.length);
+        return segment;
+    }
+
+    // ---------- data structures ----------
+
+    private static final class Component {
+        private int id;
+        private int h;
+        private int v;
+        private int blocksPerLine;
+        private int blocksPerColumn;
+        private int blocksPerLineForMcu;
+        // 64 coefficients per block, in zig-zag order as they appear in the stream
+        private short[] coefficients;
+        private HuffmanDecoder dcDecoder;
+        private HuffmanDecoder acDecoder;
+        private int predictor;
+
+        private int blockOffset(int bx, int by) {
+            return (by * blocksPerLineForMcu + bx) * 64;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+        private long buffer;
+        private int bits;
+        private boolean atMarker;
+
+        private BitReader(byte[] data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.end = end;
+        }
+
+        private void fill() {
+            while (bits <= 56) {
+                int b = 0;
+                if (!atMarker && pos < end) {
+                    b = data[pos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = pos + 1 < end ? data[pos + 1] & 0xFF : -1;
+                        if (next == 0x00) {
+                            pos += 2;
+                        } else {
+                            // Restart marker or end of scan: feed zeros until restart()
+                            atMarker = true;
+                            b = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+                buffer |= (long) b << (56 - bits);
+                bits += 8;
+            }
+        }
+
+        private int peekBits(int count) {
+            if (bits < count) {
+                fill();
+            }
+            return (int) (buffer >>> (64 - count));
+        }
+
+        private void skipBits(int count) {
+            buffer <<= count;
+            bits -= count;
+        }
+
+        private int readBits(int count) {
+            int value = peekBits(count);
+            skipBits(count);
+            return value;
+        }
+
+        private void restart() throws IOException {
+            buffer = 0;
+            bits = 0;
+            if (!atMarker) {
+                // Skip any fill bytes up to the marker
+                while (pos < end && !((data[pos] & 0xFF) == 0xFF && pos + 1 < end
+                        && (data[pos + 1] & 0xFF) != 0x00)) {
+                    pos++;
+                }
+            }
+            while (pos + 1 < end && (data[pos + 1] & 0xFF) == 0xFF) {
+                pos++;
+            }
+            if (pos + 1 >= end || (data[pos + 1] & 0xFF) < 0xD0 || (data[pos + 1] & 0xFF) > 0xD7) {
+                throw new IOException("Expected restart marker");
+            }
+            pos += 2;
+            atMarker = false;
+        }
+    }
+
+    private static final class HuffmanDecoder {
+        private static final int LOOKAHEAD = 9;
+
+        private final int[] lookup = new int[1 << LOOKAHEAD];
+        private final int[] maxCode = new int[18];
+        private final int[] valueOffset = new int[17];
+        private final byte[] symbols;
+
+        private HuffmanDecoder(int[] counts, byte[] symbols) {
+            this.symbols = symbols;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int first = code << shift;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            lookup[first + fill] = (length << 8) | (symbols[k] & 0xFF);
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        private int decode(BitReader in) throws IOException {
+            int entry = lookup[in.peekBits(LOOKAHEAD)];
+            if (entry != 0) {
+                in.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            int length = LOOKAHEAD + 1;
+            int code = in.peekBits(length);
+            while (code > maxCode[length]) {
+                length++;
+                if (length > 16) {
+                    throw new IOException("Bad Huffman code");
+                }
+                code = in.peekBits(length);
+            }
+            in.skipBits(length);
+            return symbols[valueOffset[length] + code] & 0xFF;
+        }
+    }
+
+    /**
+     * Optimal length-limited Huffman table from symbol frequencies
+     * (T.81 Annex K.2, as in libjpeg's jpeg_gen_optimal_table).
+     */
+    private static final class HuffmanEncoder {
+        private final byte[] bits = new byte[17];
+        private final byte[] values;
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        private HuffmanEncoder(long[] frequencies) {
+            long[] freq = Arrays.copyOf(frequencies, 257);
+            // Reserved symbol so no real code is all ones
+            freq[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] count = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    count[codeSize[i]]++;
+                }
+            }
+            // Limit code lengths to 16 bits
+            for (int i = 32; i > 16; i--) {
+                while (count[i] > 0) {
+                    int j = i - 2;
+                    while (count[j] == 0) {
+                        j--;
+                    }
+                    count[i] -= 2;
+                    count[i - 1]++;
+                    count[j + 1] += 2;
+                    count[j]--;
+                }
+            }
+            // Drop the reserved symbol from the longest codes
+            int longest = 16;
+            while (count[longest] == 0) {
+                longest--;
+            }
+            count[longest]--;
+
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = (byte) count[i];
+                total += count[i];
+            }
+            values = new byte[total];
+            int k = 0;
+            for (int length = 1; length <= 32 && k < total; length++) {
+                for (int symbol = 0; symbol < 256 && k < total; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values[k++] = (byte) symbol;
+                    }
+                }
+            }
+
+            int code = 0;
+            k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < count[length]; i++) {
+                    int symbol = values[k++] & 0xFF;
+                    codes[symbol] = code++;
+                    sizes[symbol] = length;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Emits one scan. Without tables it only counts symbol frequencies, which
+     * is the first of the two passes needed for optimal tables.
+     */
+    private static final class ScanEncoder {
+        private final HuffmanEncoder[] tables;
+        private final long[][] frequencies;
+        private ByteSink sink;
+        private long accumulator;
+        private int accumulatorBits;
+        private int eobRun;
+
+        private ScanEncoder(HuffmanEncoder[] tables, int tableCount) {
+            this.tables = tables;
+            this.frequencies = new long[tableCount][256];
+        }
+
+        private void encodeDc(Component c, int offset, int table) {
+            int value = c.coefficients[offset];
+            int diff = value - c.predictor;
+            c.predictor = value;
+            int size = magnitude(diff);
+            emitSymbol(table, size);
+            emitValue(diff, size);
+        }
+
+        private void encodeAc(short[] block, int offset, int spectralStart, int spectralEnd) {
+            int run = 0;
+            for (int k = spectralStart; k <= spectralEnd; k++) {
+                int value = block[offset + k];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                flushEobRun();
+                while (run > 15) {
+                    emitSymbol(0, 0xF0);
+                    run -= 16;
+                }
+                int size = magnitude(value);
+                emitSymbol(0, (run << 4) | size);
+                emitValue(value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                eobRun++;
+                if (eobRun == MAX_EOBRUN) {
+                    flushEobRun();
+                }
+            }
+        }
+
+        private void flushEobRun() {
+            if (eobRun == 0) {
+                return;
+            }
+            int size = 31 - Integer.numberOfLeadingZeros(eobRun);
+            emitSymbol(0, size << 4);
+            if (size > 0) {
+                emitBits(eobRun & ((1 << size) - 1), size);
+            }
+            eobRun = 0;
+        }
+
+        private static int magnitude(int value) {
+            return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+        }
+
+        private void emitSymbol(int table, int symbol) {
+            if (tables == null) {
+                frequencies[table][symbol]++;
+                return;
+            }
+            HuffmanEncoder encoder = tables[table];
+            if (encoder.sizes[symbol] == 0) {
+                throw new IllegalStateException("Symbol missing from optimized table");
+            }
+            emitBits(encoder.codes[symbol], encoder.sizes[symbol]);
+        }
+
+        private void emitValue(int value, int size) {
+            if (size > 0) {
+                emitBits(value < 0 ? value - 1 : value, size);
+            }
+        }
+
+        private void emitBits(int value, int count) {
+            if (tables == null) {
+                return;
+            }
+            accumulator = (accumulator << count) | (value & ((1L << count) - 1));
+            accumulatorBits += count;
+            while (accumulatorBits >= 8) {
+                int b = (int) (accumulator >>> (accumulatorBits - 8)) & 0xFF;
+                sink.write(b);
+                if (b == 0xFF) {
+                    sink.write(0); // byte stuffing
+                }
+                accumulatorBits -= 8;
+            }
+            accumulator &= (1L << accumulatorBits) - 1;
+        }
+
+        private void flush() {
+            if (accumulatorBits > 0) {
+                // Pad the last byte with one bits
+                int pad = 8 - accumulatorBits;
+                emitBits((1 << pad) - 1, pad);
+            }
+        }
+    }
+
+    private static final class ByteSink {
+        private byte[] buffer = new byte[64 * 1024];
+        private int length;
+
+        private void write(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void write(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        private void writeMarker(int code) {
+            write(0xFF);
+            write(code);
+        }
+
+        private void writeSegment(int code, byte[] body) {
+            writeMarker(code);
+            write((body.length + 2) >> 8);
+            write(body.length + 2);
+            write(body, 0, body.length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+}
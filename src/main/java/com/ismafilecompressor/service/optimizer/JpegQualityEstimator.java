@@ -0,0 +1,119 @@
+package com.ismafilecompressor.service.optimizer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Estimates the IJG quality setting (1-100) a JPEG was saved with by matching
+ * its luminance quantization table against the scaled standard table. Only
+ * the headers are read; scanning stops at the first SOS marker.
+ */
+public final class JpegQualityEstimator {
+    public static final int UNKNOWN = -1;
+
+    // IJG standard luminance table (T.81 Annex K.1) in zig-zag order, as stored in DQT
+    private static final int[] STANDARD_LUMINANCE = {
+            16, 11, 12, 14, 12, 10, 16, 14, 13, 14, 18, 17, 16, 19, 24, 40,
+            26, 24, 22, 22, 24, 49, 35, 37, 29, 40, 58, 51, 61, 60, 57, 51,
+            56, 55, 64, 72, 92, 78, 64, 68, 87, 69, 55, 56, 80, 109, 81, 87,
+            95, 98, 103, 104, 103, 62, 77, 113, 121, 112, 100, 120, 92, 101, 103, 99
+    };
+
+    private JpegQualityEstimator() {
+    }
+
+    /**
+     * Returns the closest IJG quality, or UNKNOWN if the file has no
+     * readable luminance table.
+     */
+    public static int estimateQuality(File jpeg) {
+        try {
+            int[] table = readLuminanceTable(jpeg);
+            return table != null ? matchQuality(table) : UNKNOWN;
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static int matchQuality(int[] table) {
+        int bestQuality = UNKNOWN;
+        long bestError = Long.MAX_VALUE;
+        for (int quality = 1; quality <= 100; quality++) {
+            int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+            long error = 0;
+            for (int i = 0; i < 64; i++) {
+                int expected = Math.max(1, Math.min(255, (STANDARD_LUMINANCE[i] * scale + 50) / 100));
+                error += Math.abs(expected - table[i]);
+            }
+            // Ties go to the higher quality so the estimate never undershoots
+            if (error <= bestError) {
+                bestError = error;
+                bestQuality = quality;
+            }
+        }
+        return bestQuality;
+    }
+
+    private static int[] readLuminanceTable(File jpeg) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(jpeg.toPath())))) {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != 0xD8) {
+                return null;
+            }
+            int[] first = null;
+            while (true) {
+                int b = in.readUnsignedByte();
+                if (b != 0xFF) {
+                    continue;
+                }
+                int marker = in.readUnsignedByte();
+                while (marker == 0xFF) {
+                    marker = in.readUnsignedByte();
+                }
+                if (marker == 0xDA || marker == 0xD9) {
+                    return first;
+                }
+                if (marker == 0x00 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    continue;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (marker != 0xDB) {
+                    skipFully(in, length);
+                    continue;
+                }
+                while (length > 0) {
+                    int info = in.readUnsignedByte();
+                    boolean sixteenBit = (info >> 4) != 0;
+                    int[] table = new int[64];
+                    for (int i = 0; i < 64; i++) {
+                        table[i] = sixteenBit ? in.readUnsignedShort() : in.readUnsignedByte();
+                    }
+                    length -= 1 + (sixteenBit ? 128 : 64);
+                    if ((info & 0x0F) == 0) {
+                        // Table 0 is the luminance table in every common encoder
+                        return table;
+                    }
+                    if (first == null) {
+                        first = table;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+}
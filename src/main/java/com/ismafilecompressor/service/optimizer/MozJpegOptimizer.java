@@ -1,6 +1,8 @@
 package com.ismafilecompressor.service.optimizer;
 
+import com.ismafilecompressor.service.ToolRegistry;
 import com.ismafilecompressor.util.FileManager;
+import com.ismafilecompressor.util.ProcessRunner;
 import java.io.*;
 import java.util.concurrent.TimeUnit;
 
@@ -28,27 +30,16 @@ public class MozJpegOptimizer {
                 input.getAbsolutePath()
         );
 
-        Process process = pb.start();
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(30, TimeUnit.SECONDS)
+                .run();
 
-        // Read error stream
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-        }
-
-        // Wait for process
-        boolean completed = process.waitFor(30, TimeUnit.SECONDS);
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("MozJPEG optimization timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("MozJPEG failed with exit code " + exitCode + ": " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("MozJPEG failed with exit code " + result.getExitCode() + ": " + result.getOutput());
         }
 
         // Check if output was created
@@ -60,24 +51,11 @@ public class MozJpegOptimizer {
     }
 
     public boolean isAvailable() {
-        try {
-            Process process = new ProcessBuilder("cjpeg", "-version").start();
-            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return ToolRegistry.isAvailable(ToolRegistry.CJPEG);
     }
 
     public String getVersion() {
-        try {
-            Process process = new ProcessBuilder("cjpeg", "-version").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String version = reader.readLine();
-            process.waitFor(5, TimeUnit.SECONDS);
-            return version != null ? version : "Unknown";
-        } catch (Exception e) {
-            return "Not available";
-        }
+        return ToolRegistry.getVersion(ToolRegistry.CJPEG);
     }
 
     public double estimateCompressionRatio(int quality) {
@@ -1,6 +1,8 @@
 package com.ismafilecompressor.service.optimizer;
 
+import com.ismafilecompressor.service.ToolRegistry;
 import com.ismafilecompressor.util.FileManager;
+import com.ismafilecompressor.util.ProcessRunner;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.concurrent.TimeUnit;
@@ -35,35 +37,17 @@ public class PngQuantOptimizer {
             pb.command().add(4, String.valueOf(maxColors));
         }
 
-        Process process = pb.start();
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(30, TimeUnit.SECONDS)
+                .run();
 
-        // Read output and error streams
-        BufferedReader outputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-
-        StringBuilder outputText = new StringBuilder();
-        StringBuilder errorText = new StringBuilder();
-
-        String line;
-        while ((line = outputReader.readLine()) != null) {
-            outputText.append(line).append("\n");
-        }
-        while ((line = errorReader.readLine()) != null) {
-            errorText.append(line).append("\n");
-        }
-
-        // Wait for process
-        boolean completed = process.waitFor(30, TimeUnit.SECONDS);
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("pngquant optimization timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("pngquant failed with exit code " + exitCode +
-                    ": " + errorText + "\nOutput: " + outputText);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("pngquant failed with exit code " + result.getExitCode() +
+                    ": " + result.getOutput());
         }
 
         // Check if output was created
@@ -97,49 +81,27 @@ public class PngQuantOptimizer {
                 "--", input.getAbsolutePath()
         );
 
-        Process process = pb.start();
-
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-        }
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(30, TimeUnit.SECONDS)
+                .run();
 
-        boolean completed = process.waitFor(30, TimeUnit.SECONDS);
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("pngquant with dithering timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("pngquant dithering failed: " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("pngquant dithering failed: " + result.getOutput());
         }
 
         return output;
     }
 
     public boolean isAvailable() {
-        try {
-            Process process = new ProcessBuilder("pngquant", "--version").start();
-            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return ToolRegistry.isAvailable(ToolRegistry.PNGQUANT);
     }
 
     public String getVersion() {
-        try {
-            Process process = new ProcessBuilder("pngquant", "--version").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String version = reader.readLine();
-            process.waitFor(5, TimeUnit.SECONDS);
-            return version != null ? version : "Unknown";
-        } catch (Exception e) {
-            return "Not available";
-        }
+        return ToolRegistry.getVersion(ToolRegistry.PNGQUANT);
     }
 
     public double estimateSavings(int maxColors) {
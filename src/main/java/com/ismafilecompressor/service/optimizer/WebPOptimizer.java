@@ -1,6 +1,8 @@
 package com.ismafilecompressor.service.optimizer;
 
+import com.ismafilecompressor.service.ToolRegistry;
 import com.ismafilecompressor.util.FileManager;
+import com.ismafilecompressor.util.ProcessRunner;
 import java.io.*;
 import java.util.concurrent.TimeUnit;
 
@@ -45,27 +47,16 @@ public class WebPOptimizer {
             );
         }
 
-        Process process = pb.start();
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(60, TimeUnit.SECONDS)
+                .run();
 
-        // Read error stream
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-        }
-
-        // Wait for process
-        boolean completed = process.waitFor(60, TimeUnit.SECONDS);
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("WebP conversion timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("cwebp failed with exit code " + exitCode + ": " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("cwebp failed with exit code " + result.getExitCode() + ": " + result.getOutput());
         }
 
         // Check if output was created
@@ -91,49 +82,27 @@ public class WebPOptimizer {
                 "-o", output.getAbsolutePath()
         );
 
-        Process process = pb.start();
-
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder error = new StringBuilder();
-        String line;
-        while ((line = errorReader.readLine()) != null) {
-            error.append(line).append("\n");
-        }
+        ProcessRunner.Result result = ProcessRunner.of(pb.command())
+                .timeout(30, TimeUnit.SECONDS)
+                .run();
 
-        boolean completed = process.waitFor(30, TimeUnit.SECONDS);
-
-        if (!completed) {
-            process.destroyForcibly();
+        if (result.isTimedOut()) {
             throw new RuntimeException("WebP to " + outputFormat + " conversion timed out");
         }
 
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("dwebp failed with exit code " + exitCode + ": " + error);
+        if (result.getExitCode() != 0) {
+            throw new RuntimeException("dwebp failed with exit code " + result.getExitCode() + ": " + result.getOutput());
         }
 
         return output;
     }
 
     public boolean isAvailable() {
-        try {
-            Process process = new ProcessBuilder("cwebp", "-version").start();
-            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return ToolRegistry.isAvailable(ToolRegistry.CWEBP);
     }
 
     public String getVersion() {
-        try {
-            Process process = new ProcessBuilder("cwebp", "-version").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String version = reader.readLine();
-            process.waitFor(5, TimeUnit.SECONDS);
-            return version != null ? version : "Unknown";
-        } catch (Exception e) {
-            return "Not available";
-        }
+        return ToolRegistry.getVersion(ToolRegistry.CWEBP);
     }
 
     public double getCompressionAdvantage() {
@@ -154,19 +123,6 @@ public class WebPOptimizer {
     }
 
     public boolean supportsAnimation() {
-        try {
-            Process process = new ProcessBuilder("cwebp", "-help").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("-loop") || line.contains("animation")) {
-                    return true;
-                }
-            }
-            process.waitFor(5, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            // Ignore
-        }
-        return false;
+        return ToolRegistry.hasCapability(ToolRegistry.CWEBP_ANIMATION);
     }
 }
\ No newline at end of file
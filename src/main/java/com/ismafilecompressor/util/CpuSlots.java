@@ -0,0 +1,73 @@
+package com.ismafilecompressor.util;
+
+import com.ismafilecompressor.config.AppConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Slots for heap-heavy work done inside the JVM, one per CPU lane thread.
+ * CPU lane tasks hold a slot while they run. Work that starts on the PROCESS
+ * lane but then runs in Java (the PDFBox fallbacks, merging split gs output)
+ * takes one too, so it queues with the CPU lane instead of running as many
+ * copies at once as the PROCESS lane has jobs in flight.
+ * Slots are reentrant per thread: a holder that asks again gets a no-op slot.
+ */
+public final class CpuSlots {
+    private static final int CAPACITY = Math.max(1, AppConfig.getThreadCount());
+    private static final Semaphore SLOTS = new Semaphore(CAPACITY, true);
+    private static final ThreadLocal<Boolean> HELD = ThreadLocal.withInitial(() -> false);
+
+    private CpuSlots() {
+    }
+
+    public static Slot acquire() throws InterruptedException {
+        if (HELD.get()) {
+            return new Slot(false);
+        }
+        SLOTS.acquire();
+        HELD.set(true);
+        return new Slot(true);
+    }
+
+    /**
+     * A slot if one is free now and no CPU lane task is queued for it,
+     * otherwise null. For optional extra workers that should not queue.
+     */
+    public static Slot tryAcquire() {
+        if (HELD.get()) {
+            return new Slot(false);
+        }
+        if (SLOTS.hasQueuedThreads() || !SLOTS.tryAcquire()) {
+            return null;
+        }
+        HELD.set(true);
+        return new Slot(true);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", CAPACITY);
+        stats.put("available", SLOTS.availablePermits());
+        stats.put("waiting", SLOTS.getQueueLength());
+        return stats;
+    }
+
+    public static final class Slot implements AutoCloseable {
+        private boolean owned;
+
+        private Slot(boolean owned) {
+            this.owned = owned;
+        }
+
+        @Override
+        public void close() {
+            if (owned) {
+                owned = false;
+                HELD.set(false);
+                SLOTS.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.ismafilecompressor.util;
+
+import com.ismafilecompressor.config.AppConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide budget for decoded pixel memory. Before an image is decoded its
+ * size is estimated from the reader header and reserved here; a compression
+ * that cannot get its reservation waits until running ones release theirs.
+ * Accounting is in whole megabytes so the budget fits a Semaphore.
+ */
+public class DecodeMemoryBudget {
+    private static final long MB = 1024 * 1024;
+    private static final int CAPACITY_MB = computeCapacityMb();
+    private static final Semaphore BUDGET = new Semaphore(CAPACITY_MB, true);
+    private static final AtomicInteger HOLDERS = new AtomicInteger();
+
+    private DecodeMemoryBudget() {
+    }
+
+    private static int computeCapacityMb() {
+        long configured = AppConfig.getDecodeBudgetMb();
+        if (configured > 0) {
+            return (int) Math.min(Integer.MAX_VALUE, configured);
+        }
+        // Leave the rest of the heap for encoders, PDFBox and the web layer
+        long auto = (long) (Runtime.getRuntime().maxMemory() * AppConfig.getDecodeBudgetFraction()) / MB;
+        return (int) Math.max(64, Math.min(Integer.MAX_VALUE, auto));
+    }
+
+    public static long getCapacityBytes() {
+        return CAPACITY_MB * MB;
+    }
+
+    /**
+     * Bytes not reserved right now.
+     */
+    public static long getAvailableBytes() {
+        return BUDGET.availablePermits() * MB;
+    }
+
+    /**
+     * True if a reservation of this size could ever be granted.
+     */
+    public static boolean fits(long bytes) {
+        return toMb(bytes) <= CAPACITY_MB;
+    }
+
+    /**
+     * Block until the bytes are available. Callers must check {@link #fits}
+     * first; a request larger than the whole budget is rejected rather than
+     * waiting forever.
+     */
+    public static Reservation reserve(long bytes) throws InterruptedException {
+        int permits = toMb(bytes);
+        if (permits > CAPACITY_MB) {
+            throw new IllegalArgumentException("Reservation of " + permits + " MB exceeds the "
+                    + CAPACITY_MB + " MB decode budget");
+        }
+        BUDGET.acquire(permits);
+        HOLDERS.incrementAndGet();
+        return new Reservation(permits);
+    }
+
+    /**
+     * Reserve the bytes if they are free now and nobody is queued for them,
+     * otherwise return null. For callers with a way to go on that needs less
+     * memory.
+     */
+    public static Reservation tryReserve(long bytes) {
+        int permits = toMb(bytes);
+        if (permits > CAPACITY_MB || BUDGET.hasQueuedThreads() || !BUDGET.tryAcquire(permits)) {
+            return null;
+        }
+        HOLDERS.incrementAndGet();
+        return new Reservation(permits);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacityMB", CAPACITY_MB);
+        stats.put("availableMB", BUDGET.availablePermits());
+        stats.put("holders", HOLDERS.get());
+        stats.put("waiting", BUDGET.getQueueLength());
+        return stats;
+    }
+
+    private static int toMb(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bytes + MB - 1) / MB));
+    }
+
+    public static final class Reservation implements AutoCloseable {
+        private final int permits;
+        private boolean released;
+
+        private Reservation(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                HOLDERS.decrementAndGet();
+                BUDGET.release(permits);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.ismafilecompressor.util;
+
+/**
+ * Lets a compressor say that the file it returned is a fallback rather than
+ * its real result: a copy of the input after a tool failed or timed out, or
+ * the plain Java encode after an encoder race ran out of budget. Such a
+ * result depends on load and tool health, not only on the input, so the
+ * result cache must not keep it. Reports are per thread; CompressionService
+ * clears them before each file and reads them after.
+ */
+public final class FallbackReport {
+    private static final ThreadLocal<String> REASON = new ThreadLocal<>();
+
+    private FallbackReport() {
+    }
+
+    public static void mark(String reason) {
+        REASON.set(reason);
+    }
+
+    public static void clear() {
+        REASON.remove();
+    }
+
+    /**
+     * Reason given by the last mark on this thread, or null if the result is
+     * the compressor's own. Clears the report.
+     */
+    public static String take() {
+        String reason = REASON.get();
+        REASON.remove();
+        return reason;
+    }
+}
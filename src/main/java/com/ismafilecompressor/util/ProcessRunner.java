@@ -0,0 +1,250 @@
+package com.ismafilecompressor.util;
+
+import com.ismafilecompressor.config.AppConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one external tool invocation.
+ * Output is drained on a virtual thread, the wait is bounded by a timeout, and
+ * the process is killed if the calling thread is interrupted (job cancelled).
+ * Every running process holds permits from a shared CPU budget sized to the
+ * machine, so tools started from different lanes cannot oversubscribe the cores.
+ */
+public class ProcessRunner {
+    private static final int CPU_BUDGET_PERMITS = Math.max(1, AppConfig.getProcessCpuBudget());
+    private static final Semaphore CPU_BUDGET = new Semaphore(CPU_BUDGET_PERMITS, true);
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+
+    // Tool chatter beyond this is dropped; it is only used for error messages
+    private static final int MAX_CAPTURED_CHARS = 64 * 1024;
+    private static final long DESTROY_GRACE_MS = 2000;
+
+    private final List<String> command;
+    private long timeoutMs = TimeUnit.MINUTES.toMillis(5);
+    private int threads = 1;
+    private File outputFile;
+    private OutputStream outputSink;
+    private StdinWriter stdinWriter;
+
+    private ProcessRunner(List<String> command) {
+        this.command = new ArrayList<>(command);
+    }
+
+    public static ProcessRunner of(String... command) {
+        return new ProcessRunner(Arrays.asList(command));
+    }
+
+    public static ProcessRunner of(List<String> command) {
+        return new ProcessRunner(command);
+    }
+
+    public ProcessRunner timeout(long amount, TimeUnit unit) {
+        this.timeoutMs = unit.toMillis(amount);
+        return this;
+    }
+
+    /**
+     * Number of cores the tool is expected to keep busy. Taken from the shared
+     * CPU budget for as long as the process runs.
+     */
+    public ProcessRunner threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Write the tool's stdout to a file; stderr is still captured.
+     */
+    public ProcessRunner redirectOutput(File outputFile) {
+        this.outputFile = outputFile;
+        return this;
+    }
+
+    /**
+     * Copy the tool's stdout into a stream, for tools that write their result
+     * there; stderr is still captured. The copy is complete when run returns.
+     */
+    public ProcessRunner redirectOutput(OutputStream outputSink) {
+        this.outputSink = outputSink;
+        return this;
+    }
+
+    /**
+     * Feed the tool's stdin from a writer running on its own virtual thread,
+     * so a tool that starts emitting output before it has read everything
+     * cannot deadlock against us.
+     */
+    public ProcessRunner stdin(StdinWriter stdinWriter) {
+        this.stdinWriter = stdinWriter;
+        return this;
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        int permits = Math.min(Math.max(1, threads), CPU_BUDGET_PERMITS);
+        CPU_BUDGET.acquire(permits);
+        RUNNING.incrementAndGet();
+        try {
+            return execute();
+        } finally {
+            RUNNING.decrementAndGet();
+            CPU_BUDGET.release(permits);
+        }
+    }
+
+    private Result execute() throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        boolean stdoutIsResult = outputFile != null || outputSink != null;
+        if (outputFile != null) {
+            pb.redirectOutput(outputFile);
+        } else if (outputSink == null) {
+            pb.redirectErrorStream(true);
+        }
+
+        Process process = pb.start();
+        StringBuilder captured = new StringBuilder();
+        InputStream stream = stdoutIsResult ? process.getErrorStream() : process.getInputStream();
+        Thread drainer = Thread.ofVirtual()
+                .name("drain-" + command.get(0))
+                .start(() -> drain(stream, captured));
+        IOException[] sinkError = new IOException[1];
+        Thread pump = outputSink != null
+                ? Thread.ofVirtual().name("pump-" + command.get(0))
+                        .start(() -> pump(process.getInputStream(), outputSink, sinkError))
+                : null;
+        Thread feeder = stdinWriter != null
+                ? Thread.ofVirtual().name("feed-" + command.get(0)).start(() -> feed(process, stdinWriter))
+                : null;
+
+        try {
+            if (!process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                destroy(process);
+                drainer.join(DESTROY_GRACE_MS);
+                if (pump != null) {
+                    pump.join(DESTROY_GRACE_MS);
+                }
+                return new Result(-1, snapshot(captured), true);
+            }
+            // Grandchildren may keep the pipe open, so do not wait forever for EOF
+            drainer.join(DESTROY_GRACE_MS);
+            if (pump != null) {
+                pump.join(DESTROY_GRACE_MS);
+                if (pump.isAlive()) {
+                    throw new IOException(command.get(0) + " exited but its output did not end");
+                }
+                if (sinkError[0] != null) {
+                    throw sinkError[0];
+                }
+            }
+            if (feeder != null) {
+                feeder.join(DESTROY_GRACE_MS);
+            }
+            return new Result(process.exitValue(), snapshot(captured), false);
+        } catch (InterruptedException e) {
+            destroy(process);
+            throw e;
+        }
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cpuBudget", CPU_BUDGET_PERMITS);
+        stats.put("availablePermits", CPU_BUDGET.availablePermits());
+        stats.put("runningProcesses", RUNNING.get());
+        stats.put("waitingForBudget", CPU_BUDGET.getQueueLength());
+        return stats;
+    }
+
+    private static void feed(Process process, StdinWriter writer) {
+        try (OutputStream stdin = process.getOutputStream()) {
+            writer.write(stdin);
+        } catch (IOException e) {
+            // Tool exited or closed stdin early; its exit code tells what happened
+        }
+    }
+
+    private static void pump(InputStream stream, OutputStream sink, IOException[] error) {
+        try (InputStream in = stream) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (error[0] != null) {
+                    // Keep reading so the tool is not blocked on a full pipe
+                    continue;
+                }
+                try {
+                    sink.write(buffer, 0, read);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        } catch (IOException e) {
+            // Stream closed because the process was destroyed
+        }
+    }
+
+    private static void drain(InputStream stream, StringBuilder captured) {
+        try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                synchronized (captured) {
+                    int room = MAX_CAPTURED_CHARS - captured.length();
+                    if (room > 0) {
+                        captured.append(buffer, 0, Math.min(room, read));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Stream closed because the process was destroyed
+        }
+    }
+
+    private static String snapshot(StringBuilder captured) {
+        synchronized (captured) {
+            return captured.toString();
+        }
+    }
+
+    private static void destroy(Process process) throws InterruptedException {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroy();
+        if (!process.waitFor(DESTROY_GRACE_MS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+
+    public interface StdinWriter {
+        void write(OutputStream stdin) throws IOException;
+    }
+
+    public static final class Result {
+        private final int exitCode;
+        private final String output;
+        private final boolean timedOut;
+
+        private Result(int exitCode, String output, boolean timedOut) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.timedOut = timedOut;
+        }
+
+        public int getExitCode() { return exitCode; }
+        public String getOutput() { return output; }
+        public boolean isTimedOut() { return timedOut; }
+
+        public boolean isSuccess() {
+            return !timedOut && exitCode == 0;
+        }
+    }
+}
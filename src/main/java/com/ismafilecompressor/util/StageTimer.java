@@ -0,0 +1,48 @@
+package com.ismafilecompressor.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall-clock timings for the stages of one compression, e.g.
+ * decode / convert / resize / encode. Not thread-safe; one timer per file.
+ */
+public class StageTimer {
+    private final String label;
+    private final long start;
+    private final Map<String, Long> stages;
+    private long last;
+
+    public StageTimer(String label) {
+        this.label = label;
+        this.start = System.nanoTime();
+        this.last = start;
+        this.stages = new LinkedHashMap<>();
+    }
+
+    /**
+     * Close the current stage and record how long it took since the previous mark.
+     */
+    public void mark(String stage) {
+        long now = System.nanoTime();
+        stages.merge(stage, (now - last) / 1_000_000, Long::sum);
+        last = now;
+    }
+
+    public Map<String, Long> getStages() {
+        return stages;
+    }
+
+    public long getTotalMs() {
+        return (last - start) / 1_000_000;
+    }
+
+    public void log() {
+        StringBuilder sb = new StringBuilder("Timing ").append(label).append(':');
+        for (Map.Entry<String, Long> stage : stages.entrySet()) {
+            sb.append(' ').append(stage.getKey()).append('=').append(stage.getValue()).append("ms");
+        }
+        sb.append(" total=").append(getTotalMs()).append("ms");
+        LoggerUtil.logInfo(sb.toString());
+    }
+}
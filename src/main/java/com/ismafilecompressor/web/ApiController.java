@@ -3,6 +3,7 @@ package com.ismafilecompressor.web;
 import com.google.gson.Gson;
 import com.ismafilecompressor.config.AppConfig;
 import com.ismafilecompressor.model.*;
+import com.ismafilecompressor.service.CompressionJob;
 import com.ismafilecompressor.service.CompressionService;
 import com.ismafilecompressor.util.FileManager;
 import com.ismafilecompressor.util.FormatDetector;
@@ -135,9 +136,9 @@ public class ApiController {
                         }
                     };
 
-                    compressionService.addListener(listener);
-                    CompressionResult result = compressionService.compressFiles(files, options);
-                    compressionService.removeListener(listener);
+                    CompressionJob job = compressionService.compressFiles(files, options, listener);
+                    session.setJob(job);
+                    job.await();
 
                 } catch (Exception e) {
                     session.setStatus("error");
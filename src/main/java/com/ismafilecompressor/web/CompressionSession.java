@@ -3,6 +3,7 @@ package com.ismafilecompressor.web;
 import com.ismafilecompressor.model.CompressionOptions;
 import com.ismafilecompressor.model.CompressionResult;
 import com.ismafilecompressor.model.FileInfo;
+import com.ismafilecompressor.service.CompressionJob;
 
 import java.util.*;
 
@@ -23,6 +24,8 @@ public class CompressionSession {
     private List<Map<String, Object>> analysis;
     private volatile boolean cancelled = false;
     private List<java.util.concurrent.Future<?>> compressionTasks;
+    private volatile CompressionJob job;
+    private volatile JobAdmission.Ticket queueTicket;
 
     public CompressionSession(String sessionId) {
         this.sessionId = sessionId;
@@ -43,6 +46,10 @@ public class CompressionSession {
         this.cancelled = cancelled;
         if (cancelled) {
             this.status = "cancelled";
+            CompressionJob currentJob = job;
+            if (currentJob != null) {
+                currentJob.cancel();
+            }
             // Cancel all compression tasks
             if (compressionTasks != null) {
                 for (java.util.concurrent.Future<?> task : compressionTasks) {
@@ -54,6 +61,26 @@ public class CompressionSession {
         }
     }
 
+    public CompressionJob getJob() {
+        return job;
+    }
+
+    public void setJob(CompressionJob job) {
+        this.job = job;
+        // Cancellation may have arrived before the job was started
+        if (cancelled && job != null) {
+            job.cancel();
+        }
+    }
+
+    public JobAdmission.Ticket getQueueTicket() {
+        return queueTicket;
+    }
+
+    public void setQueueTicket(JobAdmission.Ticket queueTicket) {
+        this.queueTicket = queueTicket;
+    }
+
     public void addCompressionTask(java.util.concurrent.Future<?> task) {
         if (compressionTasks != null) {
             compressionTasks.add(task);
@@ -245,6 +272,7 @@ public class CompressionSession {
                 fileData.put("downloadUrl", "/api/download/" + encodedName + "?sessionId=" + sessionId);
                 fileData.put("size", fileInfo.getCompressedSize());
                 fileData.put("formattedSize", fileInfo.getFormattedCompressedSize());
+                fileData.put("cacheHit", fileInfo.isCacheHit());
                 downloadFiles.add(fileData);
             }
         }
@@ -0,0 +1,205 @@
+package com.ismafilecompressor.web;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded admission for compression jobs started over HTTP.
+ * A fixed number of jobs run at once, a limited number wait in FIFO order and
+ * each client may hold only a few slots, so a burst of requests is answered
+ * with 429 instead of piling threads onto the shared CompressionService.
+ */
+public class JobAdmission {
+    // Assumed job duration until real jobs have been measured
+    private static final long INITIAL_JOB_ESTIMATE_MS = 10_000;
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final int maxConcurrentJobs;
+    private final int queueDepth;
+    private final int maxJobsPerClient;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Integer> jobsPerClient;
+    private final AtomicLong admitted;
+    private final AtomicLong rejected;
+    private volatile double averageJobMs = INITIAL_JOB_ESTIMATE_MS;
+
+    public JobAdmission(int maxConcurrentJobs, int queueDepth, int maxJobsPerClient) {
+        this.maxConcurrentJobs = Math.max(1, maxConcurrentJobs);
+        this.queueDepth = Math.max(0, queueDepth);
+        this.maxJobsPerClient = Math.max(1, maxJobsPerClient);
+        this.jobsPerClient = new HashMap<>();
+        this.admitted = new AtomicLong();
+        this.rejected = new AtomicLong();
+        // Job threads only wait on CompressionJob.await(), so virtual threads are enough
+        BlockingQueue<Runnable> queue = this.queueDepth > 0
+                ? new ArrayBlockingQueue<>(this.queueDepth)
+                : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(this.maxConcurrentJobs, this.maxConcurrentJobs,
+                0L, TimeUnit.MILLISECONDS, queue,
+                Thread.ofVirtual().name("web-job-", 1).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queue a job for the given client, or refuse it when the client already
+     * holds its share of slots or the queue is full.
+     */
+    public Ticket submit(String clientKey, Runnable work) throws RejectedException {
+        synchronized (jobsPerClient) {
+            int held = jobsPerClient.getOrDefault(clientKey, 0);
+            if (held >= maxJobsPerClient) {
+                rejected.incrementAndGet();
+                throw new RejectedException("Too many compression jobs for this client (limit "
+                        + maxJobsPerClient + ")", getRetryAfterSeconds());
+            }
+            jobsPerClient.put(clientKey, held + 1);
+        }
+
+        Ticket ticket = new Ticket(clientKey, work);
+        try {
+            executor.execute(ticket);
+        } catch (RejectedExecutionException e) {
+            releaseClient(clientKey);
+            rejected.incrementAndGet();
+            throw new RejectedException("Server is busy, compression queue is full", getRetryAfterSeconds());
+        }
+        admitted.incrementAndGet();
+        return ticket;
+    }
+
+    /**
+     * Position in the waiting queue, 1 for the next job to start. Returns 0
+     * once the job is running or finished.
+     */
+    public int getQueuePosition(Ticket ticket) {
+        if (ticket.startedAt > 0 || ticket.isDone()) {
+            return 0;
+        }
+        int position = 1;
+        for (Runnable queued : executor.getQueue()) {
+            if (queued == ticket) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    /**
+     * Estimated wall-clock time the job will start, based on the average
+     * duration of recent jobs.
+     */
+    public long getExpectedStartTime(Ticket ticket) {
+        if (ticket.startedAt > 0) {
+            return ticket.startedAt;
+        }
+        int position = getQueuePosition(ticket);
+        long rounds = (position + maxConcurrentJobs - 1) / maxConcurrentJobs;
+        return System.currentTimeMillis() + (long) (rounds * averageJobMs);
+    }
+
+    public int getRetryAfterSeconds() {
+        int waiting = executor.getQueue().size() + 1;
+        double seconds = averageJobMs * waiting / maxConcurrentJobs / 1000.0;
+        return (int) Math.max(1, Math.ceil(seconds));
+    }
+
+    /**
+     * Drop cancelled jobs from the queue so they stop holding slots.
+     */
+    public void purge() {
+        executor.purge();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrentJobs", maxConcurrentJobs);
+        stats.put("queueDepth", queueDepth);
+        stats.put("maxJobsPerClient", maxJobsPerClient);
+        stats.put("running", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("admitted", admitted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("averageJobMs", Math.round(averageJobMs));
+        return stats;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void releaseClient(String clientKey) {
+        synchronized (jobsPerClient) {
+            int held = jobsPerClient.getOrDefault(clientKey, 0) - 1;
+            if (held > 0) {
+                jobsPerClient.put(clientKey, held);
+            } else {
+                jobsPerClient.remove(clientKey);
+            }
+        }
+    }
+
+    private void recordDuration(long durationMs) {
+        averageJobMs = averageJobMs + EWMA_ALPHA * (durationMs - averageJobMs);
+    }
+
+    public final class Ticket extends FutureTask<Void> {
+        private final String clientKey;
+        private final long submittedAt;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile long startedAt;
+
+        private Ticket(String clientKey, Runnable work) {
+            super(work, null);
+            this.clientKey = clientKey;
+            this.submittedAt = System.currentTimeMillis();
+        }
+
+        public long getSubmittedAt() { return submittedAt; }
+        public long getStartedAt() { return startedAt; }
+
+        @Override
+        public void run() {
+            startedAt = System.currentTimeMillis();
+            try {
+                super.run();
+            } finally {
+                // Cancelling a running job interrupts it; the work waits for the job's
+                // lane tasks to finish before returning, and only then is the slot freed
+                if (!released.get() && !isCancelled()) {
+                    recordDuration(System.currentTimeMillis() - startedAt);
+                }
+                release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            // A job cancelled before it started never reaches run()
+            if (startedAt == 0) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                releaseClient(clientKey);
+            }
+        }
+    }
+
+    public static class RejectedException extends Exception {
+        private final int retryAfterSeconds;
+
+        public RejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -4,7 +4,10 @@ import static spark.Spark.*;
 import javax.servlet.MultipartConfigElement;
 import com.google.gson.Gson;
 import com.ismafilecompressor.config.AppConfig;
+import com.ismafilecompressor.service.CompressionJob;
 import com.ismafilecompressor.service.CompressionService;
+import com.ismafilecompressor.service.ToolRegistry;
+import com.ismafilecompressor.service.compressor.EncoderRace;
 import com.ismafilecompressor.model.*;
 import com.ismafilecompressor.util.LoggerUtil;
 import spark.Request;
@@ -12,23 +15,37 @@ import spark.Response;
 import spark.staticfiles.StaticFilesConfiguration;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WebServer {
+    // Minimum time between two tool re-probes
+    private static final long TOOL_REFRESH_COOLDOWN_MS = 30_000;
+
     private final int port;
     private final CompressionService compressionService;
     private final Gson gson;
     private final Map<String, CompressionSession> sessions;
-    private final ExecutorService executorService;
+    private final JobAdmission jobAdmission;
+    private final Set<String> trustedProxies;
+    private final String adminToken;
+    private final AtomicLong lastToolRefresh = new AtomicLong();
 
     public WebServer(int port) {
         this.port = port;
         this.compressionService = new CompressionService();
         this.gson = new Gson();
         this.sessions = new ConcurrentHashMap<>();
-        this.executorService = Executors.newCachedThreadPool();
+        this.jobAdmission = new JobAdmission(AppConfig.getMaxConcurrentJobs(),
+                AppConfig.getJobQueueDepth(), AppConfig.getMaxJobsPerClient());
+        this.trustedProxies = AppConfig.getTrustedProxies();
+        this.adminToken = AppConfig.getAdminToken();
     }
 
     public void start() {
@@ -53,6 +70,7 @@ public class WebServer {
         path("/api", () -> {
             // System info
             get("/info", this::getSystemInfo);
+            post("/tools/refresh", this::refreshTools);
 
             // File upload
             post("/upload", this::handleUpload);
@@ -113,8 +131,8 @@ public class WebServer {
 
     public void stop() {
         spark.Spark.stop();
+        jobAdmission.shutdown();
         compressionService.shutdown();
-        executorService.shutdown();
     }
 
     private Object getSystemInfo(Request req, Response res) {
@@ -125,11 +143,56 @@ public class WebServer {
         info.put("maxMemory", Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB");
         info.put("availableProcessors", Runtime.getRuntime().availableProcessors());
         info.put("supportedFormats", compressionService.getSupportedFormats());
+        info.put("externalTools", ToolRegistry.getToolInfo());
+        info.put("resultCache", compressionService.getCacheStats());
+        info.put("scheduler", compressionService.getSchedulerStats());
+        info.put("jobQueue", jobAdmission.getStats());
+        info.put("encoderRaceWins", EncoderRace.getStats());
 
         res.type("application/json");
         return gson.toJson(info);
     }
 
+    /**
+     * Re-probing starts several processes per tool, so it is limited to
+     * localhost or callers with the admin token, and to one run per cooldown.
+     */
+    private Object refreshTools(Request req, Response res) {
+        res.type("application/json");
+        if (!isAdmin(req)) {
+            res.status(403);
+            return gson.toJson(Map.of("error", "Tool refresh is only allowed from localhost or with the admin token"));
+        }
+        long now = System.currentTimeMillis();
+        long last = lastToolRefresh.get();
+        if (now - last < TOOL_REFRESH_COOLDOWN_MS || !lastToolRefresh.compareAndSet(last, now)) {
+            int retryAfter = (int) Math.max(1, (TOOL_REFRESH_COOLDOWN_MS - (now - last) + 999) / 1000);
+            res.status(429);
+            res.header("Retry-After", String.valueOf(retryAfter));
+            return gson.toJson(Map.of("error", "Tools were refreshed recently", "retryAfter", retryAfter));
+        }
+        ToolRegistry.refresh();
+        return gson.toJson(ToolRegistry.getToolInfo());
+    }
+
+    /**
+     * The direct peer is localhost, or the request carries the configured
+     * admin token. X-Forwarded-For is not consulted here.
+     */
+    private boolean isAdmin(Request req) {
+        try {
+            if (InetAddress.getByName(req.ip()).isLoopbackAddress()) {
+                return true;
+            }
+        } catch (UnknownHostException e) {
+            // Not an address literal; fall through to the token
+        }
+        String token = req.headers("X-Admin-Token");
+        return !adminToken.isEmpty() && token != null
+                && MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8),
+                        token.getBytes(StandardCharsets.UTF_8));
+    }
+
     private Object handleUpload(Request req, Response res) {
         try {
             String sessionId = UUID.randomUUID().toString();
@@ -235,104 +298,149 @@ public class WebServer {
                 LoggerUtil.logInfo("Output directory set to: " + outputDir);
             }
 
-            // Start compression in background
-            Future<?> compressionFuture = executorService.submit(() -> {
-                try {
-                    session.setStatus("processing");
-                    session.setStartTime(System.currentTimeMillis());
-
-                    List<File> files = new ArrayList<>();
-                    for (CompressionSession.UploadedFile uf : session.getFiles()) {
-                        File file = new File(uf.path);
-                        if (file.exists()) {
-                            files.add(file);
-                        } else {
-                            LoggerUtil.logWarning("File not found: " + uf.path);
+            // Queue compression in background; refuse when the node is saturated
+            JobAdmission.Ticket ticket;
+            String previousStatus = session.getStatus();
+            // Set before submitting: an idle node starts the job right away
+            session.setStatus("queued");
+            try {
+                ticket = jobAdmission.submit(getClientKey(req), () -> {
+                    try {
+                        if (session.isCancelled()) {
+                            return;
+                        }
+                        session.setStatus("processing");
+                        session.setStartTime(System.currentTimeMillis());
+
+                        List<File> files = new ArrayList<>();
+                        for (CompressionSession.UploadedFile uf : session.getFiles()) {
+                            File file = new File(uf.path);
+                            if (file.exists()) {
+                                files.add(file);
+                            } else {
+                                LoggerUtil.logWarning("File not found: " + uf.path);
+                            }
                         }
-                    }
                     
-                    if (files.isEmpty()) {
-                        session.setStatus("error");
-                        session.setError("No valid files found");
-                        return;
-                    }
-
-                    // Add progress listener
-                    CompressionService.CompressionListener listener = new CompressionService.CompressionListener() {
-                        @Override
-                        public void onProgress(FileInfo fileInfo, int total, int processed) {
-                            session.setCurrentFile(fileInfo.getFileName());
-                            session.setProcessedCount(processed);
-                            int progress = total > 0 ? (int) ((processed * 100.0) / total) : 0;
-                            progress = Math.min(100, progress); // Cap at 100%
-                            session.setProgress(progress);
-                            LoggerUtil.logInfo(String.format("Progress: %d/%d files (%d%%)", processed, total, progress));
+                        if (files.isEmpty()) {
+                            session.setStatus("error");
+                            session.setError("No valid files found");
+                            return;
                         }
 
-                        @Override
-                        public void onComplete(CompressionResult result) {
-                            session.setResult(result);
-                            session.setProgress(100); // Ensure 100% on completion
-                            session.setProcessedCount(result.getFilesProcessed());
-                            // Only set to completed if there are successful files
-                            // If all files failed, status should be error (set in main thread)
-                            int totalFiles = session.getFiles().size();
-                            int failedFiles = result.getFilesFailed();
-                            int successFiles = result.getFilesProcessed() - failedFiles;
+                        // Add progress listener
+                        CompressionService.CompressionListener listener = new CompressionService.CompressionListener() {
+                            @Override
+                            public void onProgress(FileInfo fileInfo, int total, int processed) {
+                                session.setCurrentFile(fileInfo.getFileName());
+                                session.setProcessedCount(processed);
+                                int progress = total > 0 ? (int) ((processed * 100.0) / total) : 0;
+                                progress = Math.min(100, progress); // Cap at 100%
+                                session.setProgress(progress);
+                                LoggerUtil.logInfo(String.format("Progress: %d/%d files (%d%%)", processed, total, progress));
+                            }
+
+                            @Override
+                            public void onComplete(CompressionResult result) {
+                                session.setResult(result);
+                                session.setProgress(100); // Ensure 100% on completion
+                                session.setProcessedCount(result.getFilesProcessed());
+                                if (session.isCancelled()) {
+                                    return;
+                                }
+                                // Only set to completed if there are successful files
+                                // If all files failed, status should be error (set in main thread)
+                                int totalFiles = session.getFiles().size();
+                                int failedFiles = result.getFilesFailed();
+                                int successFiles = result.getFilesProcessed() - failedFiles;
                             
-                            if (totalFiles > 0 && successFiles == 0) {
-                                // All files failed
-                                session.setStatus("error");
-                                session.setError("All files failed to compress: " + result.getMessage());
-                                LoggerUtil.logInfo("Compression failed: " + result.getMessage());
-                            } else {
-                                // At least one file succeeded
-                                session.setStatus("completed");
-                                LoggerUtil.logInfo("Compression completed: " + result.getMessage());
+                                if (totalFiles > 0 && successFiles == 0) {
+                                    // All files failed
+                                    session.setStatus("error");
+                                    session.setError("All files failed to compress: " + result.getMessage());
+                                    LoggerUtil.logInfo("Compression failed: " + result.getMessage());
+                                } else {
+                                    // At least one file succeeded
+                                    session.setStatus("completed");
+                                    LoggerUtil.logInfo("Compression completed: " + result.getMessage());
+                                }
+                                session.setEndTime(System.currentTimeMillis());
+                            }
+
+                            @Override
+                            public void onError(FileInfo fileInfo, Exception e) {
+                                session.addError(fileInfo, e);
+                                LoggerUtil.logError("File compression error: " + fileInfo.getFileName(), e);
                             }
+                        };
+
+                        CompressionJob job = compressionService.compressFiles(files, options, listener);
+                        session.setJob(job);
+                        CompressionResult result = job.await();
+
+                        if (session.isCancelled()) {
+                            session.setResult(result);
                             session.setEndTime(System.currentTimeMillis());
+                            return;
                         }
 
-                        @Override
-                        public void onError(FileInfo fileInfo, Exception e) {
-                            session.addError(fileInfo, e);
-                            LoggerUtil.logError("File compression error: " + fileInfo.getFileName(), e);
+                        // Ensure completion status is set
+                        session.setResult(result);
+                        session.setProgress(100);
+                        session.setProcessedCount(result.getFilesProcessed());
+                        // If all files failed, set status to error
+                        if (result.getFilesFailed() > 0 && result.getFilesFailed() >= result.getFilesProcessed()) {
+                            session.setStatus("error");
+                            session.setError("All files failed to compress: " + result.getMessage());
+                        } else {
+                            session.setStatus("completed");
                         }
-                    };
-
-                    compressionService.addListener(listener);
-                    // Pass cancellation checker
-                    CompressionResult result = compressionService.compressFiles(files, options, 
-                        () -> session.isCancelled());
-                    compressionService.removeListener(listener);
-                    
-                    // Ensure completion status is set
-                    session.setResult(result);
-                    session.setProgress(100);
-                    session.setProcessedCount(result.getFilesProcessed());
-                    // If all files failed, set status to error
-                    if (result.getFilesFailed() > 0 && result.getFilesFailed() >= result.getFilesProcessed()) {
+                        session.setEndTime(System.currentTimeMillis());
+
+                    } catch (InterruptedException e) {
+                        // Encodes do not all stop on interrupt, so the admission slot is
+                        // only given back once every lane task of the job has returned
+                        CompressionJob job = session.getJob();
+                        if (job != null) {
+                            job.cancel();
+                            job.getCompletionFuture().join();
+                        }
+                        Thread.currentThread().interrupt();
+                        if (!session.isCancelled()) {
+                            session.setStatus("error");
+                            session.setError("Compression was interrupted");
+                        }
+                        session.setEndTime(System.currentTimeMillis());
+                    } catch (Exception e) {
                         session.setStatus("error");
-                        session.setError("All files failed to compress: " + result.getMessage());
-                    } else {
-                        session.setStatus("completed");
+                        session.setError(e.getMessage() != null ? e.getMessage() : "Compression failed: " + e.getClass().getSimpleName());
+                        session.setEndTime(System.currentTimeMillis());
+                        session.setProgress(100); // Set to 100% so frontend knows it's done
+                        LoggerUtil.logError("Compression failed", e);
                     }
-                    session.setEndTime(System.currentTimeMillis());
-
-                } catch (Exception e) {
-                    session.setStatus("error");
-                    session.setError(e.getMessage() != null ? e.getMessage() : "Compression failed: " + e.getClass().getSimpleName());
-                    session.setEndTime(System.currentTimeMillis());
-                    session.setProgress(100); // Set to 100% so frontend knows it's done
-                    LoggerUtil.logError("Compression failed", e);
-                }
-            });
-            
-            // Store the future for cancellation
-            session.addCompressionTask(compressionFuture);
+                });
+            } catch (JobAdmission.RejectedException e) {
+                session.setStatus(previousStatus);
+                res.status(429);
+                res.header("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                res.type("application/json");
+                Map<String, Object> error = new HashMap<>();
+                error.put("error", e.getMessage());
+                error.put("retryAfter", e.getRetryAfterSeconds());
+                return gson.toJson(error);
+            }
+
+            // Store the ticket for cancellation and queue reporting
+            session.setQueueTicket(ticket);
+            session.addCompressionTask(ticket);
 
             res.type("application/json");
-            return "{\"status\":\"started\",\"sessionId\":\"" + sessionId + "\"}";
+            Map<String, Object> response = new HashMap<>();
+            response.put("status", "started");
+            response.put("sessionId", sessionId);
+            response.put("queuePosition", jobAdmission.getQueuePosition(ticket));
+            response.put("expectedStartTime", jobAdmission.getExpectedStartTime(ticket));
+            return gson.toJson(response);
             
         } catch (Exception e) {
             LoggerUtil.logError("Compression start failed", e);
@@ -342,6 +450,28 @@ public class WebServer {
         }
     }
 
+    /**
+     * Address the per-client job limit is charged to. X-Forwarded-For is only
+     * believed when the request came from a configured proxy, and then read
+     * from the right: hops to the left of the last trusted proxy are written
+     * by the client and can be anything.
+     */
+    private String getClientKey(Request req) {
+        String peer = req.ip();
+        String forwarded = req.headers("X-Forwarded-For");
+        if (forwarded == null || forwarded.isBlank() || !trustedProxies.contains(peer)) {
+            return peer;
+        }
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!hop.isEmpty() && !trustedProxies.contains(hop)) {
+                return hop;
+            }
+        }
+        return peer;
+    }
+
     private CompressionOptions parseOptions(Map<String, Object> data) {
         CompressionOptions options = new CompressionOptions();
 
@@ -382,6 +512,42 @@ public class WebServer {
             }
         }
 
+        if (data.containsKey("losslessJpeg")) {
+            Object losslessValue = data.get("losslessJpeg");
+            if (losslessValue instanceof Boolean) {
+                options.setLosslessJpeg((Boolean) losslessValue);
+            } else if (losslessValue instanceof String) {
+                options.setLosslessJpeg(Boolean.parseBoolean((String) losslessValue));
+            }
+        }
+
+        if (data.containsKey("raceEncoders")) {
+            Object raceValue = data.get("raceEncoders");
+            if (raceValue instanceof Boolean) {
+                options.setRaceEncoders((Boolean) raceValue);
+            } else if (raceValue instanceof String) {
+                options.setRaceEncoders(Boolean.parseBoolean((String) raceValue));
+            }
+        }
+
+        if (data.containsKey("targetSizeBytes")) {
+            Object targetValue = data.get("targetSizeBytes");
+            if (targetValue instanceof Number) {
+                options.setTargetSizeBytes(((Number) targetValue).longValue());
+            } else if (targetValue instanceof String && !((String) targetValue).isBlank()) {
+                options.setTargetSizeBytes(Long.parseLong(((String) targetValue).trim()));
+            }
+        }
+
+        if (data.containsKey("minSsim")) {
+            Object ssimValue = data.get("minSsim");
+            if (ssimValue instanceof Number) {
+                options.setMinSsim(((Number) ssimValue).doubleValue());
+            } else if (ssimValue instanceof String && !((String) ssimValue).isBlank()) {
+                options.setMinSsim(Double.parseDouble(((String) ssimValue).trim()));
+            }
+        }
+
         if (data.containsKey("maxWidth")) {
             Object maxWidthValue = data.get("maxWidth");
             if (maxWidthValue instanceof Number) {
@@ -432,6 +598,13 @@ public class WebServer {
         progress.put("estimatedTime", session.getEstimatedTime());
         progress.put("formattedRemaining", session.getEstimatedTime());
 
+        // Queue position is 0 once the job is running
+        JobAdmission.Ticket ticket = session.getQueueTicket();
+        if (ticket != null) {
+            progress.put("queuePosition", jobAdmission.getQueuePosition(ticket));
+            progress.put("expectedStartTime", jobAdmission.getExpectedStartTime(ticket));
+        }
+
         // If completed, include result summary
         boolean isCompletedStatus = "completed".equalsIgnoreCase(session.getStatus());
         boolean hasResult = session.getResult() != null;
@@ -492,9 +665,9 @@ public class WebServer {
             return "{\"error\":\"Session not found\"}";
         }
 
-        // Cancel the compression
+        // Cancel only this session's job
         session.setCancelled(true);
-        compressionService.cancel();
+        jobAdmission.purge();
         
         res.type("application/json");
         return "{\"status\":\"cancelled\",\"message\":\"Compression cancelled successfully\"}";
@@ -0,0 +1,92 @@
+package com.ismafilecompressor.service.compressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small-image encodes as the PDF path does them, once through CodecPool and
+ * once with a registry lookup, a new writer and a new buffer per image.
+ * Not a unit test; {@code mvn -Pbenchmark test-compile exec:exec} runs it
+ * with the gc profiler, which reports the allocation rate next to latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecPoolBenchmark {
+    @Param({"jpeg", "png"})
+    public String format;
+
+    @Param({"32", "128"})
+    public int size;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setup() {
+        image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, (x * 255 / size) << 16 | (y * 255 / size) << 8 | random.nextInt(64));
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] pooled() throws IOException {
+        try (CodecPool.Lease<ImageWriter> writer = CodecPool.writer(format);
+             CodecPool.Buffer buffer = CodecPool.buffer()) {
+            write(writer.get(), image, buffer);
+            return buffer.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public byte[] lookup() throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            write(writer, image, buffer);
+            return buffer.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    static void write(ImageWriter writer, BufferedImage image, OutputStream out) throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.75f);
+        }
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ismafilecompressor.service.compressor;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CodecPoolTest {
+
+    @Test
+    void writerIsReusedAndResetAfterClose() throws IOException {
+        ImageWriter first;
+        try (CodecPool.Lease<ImageWriter> lease = CodecPool.writer("jpeg")) {
+            assertNotNull(lease);
+            first = lease.get();
+            encode(first, image());
+            assertNotNull(first.getOutput());
+        }
+        try (CodecPool.Lease<ImageWriter> lease = CodecPool.writer("jpeg")) {
+            assertSame(first, lease.get());
+            assertNull(lease.get().getOutput());
+        }
+    }
+
+    @Test
+    void readerIsReusedAndResetAfterClose() throws IOException {
+        byte[] png = png(image());
+        ImageReader first;
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(png));
+             CodecPool.Lease<ImageReader> lease = CodecPool.reader(iis)) {
+            assertNotNull(lease);
+            first = lease.get();
+            first.setInput(iis);
+            assertEquals(32, first.read(0).getWidth());
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(png));
+             CodecPool.Lease<ImageReader> lease = CodecPool.reader(iis)) {
+            assertSame(first, lease.get());
+            assertNull(lease.get().getInput());
+        }
+    }
+
+    @Test
+    void bufferComesBackEmpty() throws IOException {
+        CodecPool.Buffer first = CodecPool.buffer();
+        first.write(new byte[1000]);
+        first.close();
+
+        try (CodecPool.Buffer buffer = CodecPool.buffer()) {
+            assertSame(first, buffer);
+            assertEquals(0, buffer.size());
+        }
+    }
+
+    @Test
+    void concurrentLeasesNeverShareAWriter() throws Exception {
+        int threads = 16;
+        int rounds = 50;
+        Set<ImageWriter> held = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    BufferedImage image = image();
+                    int encoded = 0;
+                    for (int i = 0; i < rounds; i++) {
+                        try (CodecPool.Lease<ImageWriter> lease = CodecPool.writer("jpeg")) {
+                            ImageWriter writer = lease.get();
+                            assertTrue(held.add(writer), "writer leased twice at once");
+                            try {
+                                assertNotNull(ImageIO.read(new ByteArrayInputStream(encode(writer, image))));
+                                encoded++;
+                            } finally {
+                                held.remove(writer);
+                            }
+                        }
+                    }
+                    return encoded;
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(rounds, result.get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static BufferedImage image() {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                image.setRGB(x, y, (x * 8) << 16 | (y * 8) << 8);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(ImageWriter writer, BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,84 @@
+package com.ismafilecompressor.service.compressor;
+
+import com.ismafilecompressor.model.CompressionOptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A WebP request must produce a file whose bytes match its extension, whether
+ * or not cwebp or a Java WebP writer is installed on the machine running the
+ * tests.
+ */
+class ImageCompressorWebPTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void targetSizeSearchWritesTheFormatItNames() throws Exception {
+        CompressionOptions options = webpOptions();
+        options.setTargetSizeBytes(16 * 1024);
+
+        assertMagicMatchesExtension(new ImageCompressor().compress(noisyPng(true), options));
+    }
+
+    @Test
+    void perceptualSearchWritesTheFormatItNames() throws Exception {
+        CompressionOptions options = webpOptions();
+        options.setMinSsim(0.9);
+
+        assertMagicMatchesExtension(new ImageCompressor().compress(noisyPng(false), options));
+    }
+
+    private CompressionOptions webpOptions() {
+        CompressionOptions options = new CompressionOptions();
+        options.setCompressionLevel(CompressionOptions.CompressionLevel.BEST_QUALITY);
+        options.setOutputFormat("webp");
+        options.setRaceEncoders(false);
+        options.setOutputDirectory(dir.resolve("out").toString());
+        return options;
+    }
+
+    private File noisyPng(boolean alpha) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int alphaBits = alpha ? (x < 128 ? 0x80 : 0xFF) << 24 : 0;
+                image.setRGB(x, y, alphaBits | (random.nextInt() & 0xFFFFFF));
+            }
+        }
+        File png = dir.resolve(alpha ? "alpha.png" : "opaque.png").toFile();
+        ImageIO.write(image, "png", png);
+        return png;
+    }
+
+    private static void assertMagicMatchesExtension(File output) throws IOException {
+        byte[] header = new byte[12];
+        try (InputStream in = Files.newInputStream(output.toPath())) {
+            assertTrue(in.readNBytes(header, 0, header.length) == header.length, "output too short");
+        }
+        String name = output.getName().toLowerCase();
+        if (name.endsWith(".webp")) {
+            assertArrayEquals("RIFF".getBytes(StandardCharsets.US_ASCII), Arrays.copyOfRange(header, 0, 4));
+            assertArrayEquals("WEBP".getBytes(StandardCharsets.US_ASCII), Arrays.copyOfRange(header, 8, 12));
+        } else {
+            assertTrue(name.endsWith(".jpg"), "unexpected output name " + name);
+            assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, Arrays.copyOfRange(header, 0, 3));
+        }
+    }
+}
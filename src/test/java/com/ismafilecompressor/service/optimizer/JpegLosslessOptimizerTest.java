@@ -0,0 +1,186 @@
+package com.ismafilecompressor.service.optimizer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The optimizer rewrites entropy-coded data only, so every fixture must decode
+ * to exactly the same samples before and after, and never grow. Sizes are not
+ * multiples of the MCU so the padded edge blocks are covered too.
+ */
+class JpegLosslessOptimizerTest {
+    private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void baseline420() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_INT_RGB), false, 0, false), true);
+    }
+
+    @Test
+    void baseline444() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_INT_RGB), false, 0, true), true);
+    }
+
+    @Test
+    void baselineGrayscale() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_BYTE_GRAY), false, 0, false), true);
+    }
+
+    @Test
+    void baselineWithRestartInterval() throws IOException {
+        byte[] jpeg = jpeg(image(BufferedImage.TYPE_INT_RGB), false, 3, false);
+        assertTrue(hasMarker(jpeg, 0xDD), "fixture has no DRI segment");
+        assertLossless(jpeg, true);
+    }
+
+    @Test
+    void grayscaleWithRestartInterval() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_BYTE_GRAY), false, 5, false), true);
+    }
+
+    @Test
+    void progressiveIsKeptIntact() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_INT_RGB), true, 0, false), false);
+    }
+
+    @Test
+    void progressive444() throws IOException {
+        assertLossless(jpeg(image(BufferedImage.TYPE_INT_RGB), true, 0, true), false);
+    }
+
+    @Test
+    void fileApiWritesOnlySmallerResults() throws IOException {
+        byte[] jpeg = jpeg(image(BufferedImage.TYPE_INT_RGB), false, 0, false);
+        File input = dir.resolve("in.jpg").toFile();
+        File output = dir.resolve("out.jpg").toFile();
+        Files.write(input.toPath(), jpeg);
+
+        assertTrue(new JpegLosslessOptimizer().optimizeJpeg(input, output));
+        byte[] optimized = Files.readAllBytes(output.toPath());
+        assertTrue(optimized.length < jpeg.length, optimized.length + " >= " + jpeg.length);
+        assertSamePixels(jpeg, optimized);
+
+        // An optimized file has nothing left to gain, so it is reported, not rewritten
+        File again = dir.resolve("again.jpg").toFile();
+        assertFalse(new JpegLosslessOptimizer().optimizeJpeg(output, again));
+        assertFalse(again.exists());
+    }
+
+    private static void assertLossless(byte[] jpeg, boolean transcoded) throws IOException {
+        byte[] optimized = new JpegLosslessOptimizer().optimize(jpeg);
+        assertNotNull(optimized);
+        assertTrue(optimized.length <= jpeg.length, optimized.length + " > " + jpeg.length);
+        if (transcoded) {
+            assertTrue(hasMarker(optimized, 0xC2), "baseline input was not rewritten as progressive");
+        }
+        assertSamePixels(jpeg, optimized);
+    }
+
+    private static void assertSamePixels(byte[] expected, byte[] actual) throws IOException {
+        Raster a = ImageIO.read(new ByteArrayInputStream(expected)).getRaster();
+        Raster b = ImageIO.read(new ByteArrayInputStream(actual)).getRaster();
+        assertEquals(a.getWidth(), b.getWidth());
+        assertEquals(a.getHeight(), b.getHeight());
+        assertEquals(a.getNumBands(), b.getNumBands());
+        assertArrayEquals(a.getPixels(0, 0, a.getWidth(), a.getHeight(), (int[]) null),
+                b.getPixels(0, 0, b.getWidth(), b.getHeight(), (int[]) null));
+    }
+
+    private static BufferedImage image(int type) {
+        int width = 203;
+        int height = 141;
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(24)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(24)) & 0xFF;
+                int b = ((x ^ y) * 3 + random.nextInt(24)) & 0xFF;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes with the JDK writer, whose output uses the standard Huffman
+     * tables and so leaves room for the optimizer. The native metadata tree
+     * is edited to add a restart interval or to switch chroma to 4:4:4.
+     */
+    private static byte[] jpeg(BufferedImage image, boolean progressive, int restartInterval,
+                               boolean fullChroma) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(NATIVE_FORMAT);
+            Element markers = (Element) root.getElementsByTagName("markerSequence").item(0);
+            if (restartInterval > 0) {
+                IIOMetadataNode dri = new IIOMetadataNode("dri");
+                dri.setAttribute("interval", String.valueOf(restartInterval));
+                markers.insertBefore(dri, markers.getFirstChild());
+            }
+            if (fullChroma) {
+                NodeList specs = root.getElementsByTagName("componentSpec");
+                for (int i = 0; i < specs.getLength(); i++) {
+                    Element spec = (Element) specs.item(i);
+                    spec.setAttribute("HsamplingFactor", "1");
+                    spec.setAttribute("VsamplingFactor", "1");
+                }
+            }
+            metadata.setFromTree(NATIVE_FORMAT, root);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            }
+            return out.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static boolean hasMarker(byte[] jpeg, int code) {
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+}